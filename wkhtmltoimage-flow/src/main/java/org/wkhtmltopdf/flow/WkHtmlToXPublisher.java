@@ -0,0 +1,333 @@
+package org.wkhtmltopdf.flow;
+
+import org.wkhtmltopdf.WkHtmlToXEvent;
+import org.wkhtmltopdf.wkhtmltoimage.HtmlToImageConverter;
+import org.wkhtmltopdf.wkhtmltopdf.HtmlToPdfConverter;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Publishes a conversion as a {@link Flow.Publisher}: the progress, warnings and errors reported
+ * while converting, followed by the converted document as a sequence of chunks, honouring the
+ * demand of the subscriber. Nothing blocks the threads of the subscriber; the conversion starts
+ * on its first request, and a conversion still queued is removed from the queue when the
+ * subscriber cancels.
+ * <p>
+ * Signals are delivered on the configured executor, never on the render thread. Chunks are
+ * read-only slices of the converted document, cut as they are requested. While the subscriber
+ * is not requesting, at most the configured amount of events are buffered; further events are
+ * dropped, and a warning telling how many warnings and errors were dropped is published once the
+ * subscriber requests again. A publisher converts once and accepts a single subscriber.
+ */
+public final class WkHtmlToXPublisher implements Flow.Publisher<WkHtmlToXEvent> {
+    private static final ExecutorService converters = Executors.newCachedThreadPool(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setName("wkhtmltox-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Function<Consumer<WkHtmlToXEvent>, CompletableFuture<ByteBuffer>> conversion;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile Executor executor = ForkJoinPool.commonPool();
+    private volatile int chunkSize = 64 * 1024;
+    private volatile int maxBufferedEvents = 256;
+
+    private WkHtmlToXPublisher(Function<Consumer<WkHtmlToXEvent>, CompletableFuture<ByteBuffer>> conversion) {
+        this.conversion = conversion;
+    }
+
+    /**
+     * Creates a publisher of the conversion of the converter. Callbacks registered on the
+     * converter are still called.
+     */
+    public static WkHtmlToXPublisher of(HtmlToPdfConverter converter) {
+        return new WkHtmlToXPublisher(events -> interruptibly(() -> converter
+                .progress(progress -> events.accept(WkHtmlToXEvent.progress(progress)))
+                .warning(message -> events.accept(WkHtmlToXEvent.warning(message)))
+                .error(message -> events.accept(WkHtmlToXEvent.error(message)))
+                .toByteBuffer()));
+    }
+
+    /**
+     * Creates a publisher of the conversion of the converter. Callbacks registered on the
+     * converter are still called.
+     */
+    public static WkHtmlToXPublisher of(HtmlToImageConverter converter) {
+        return new WkHtmlToXPublisher(events -> interruptibly(() -> converter
+                .progress(progress -> events.accept(WkHtmlToXEvent.progress(progress)))
+                .warning(message -> events.accept(WkHtmlToXEvent.warning(message)))
+                .error(message -> events.accept(WkHtmlToXEvent.error(message)))
+                .toByteBuffer()));
+    }
+
+    /**
+     * Creates a publisher of a conversion started by the function, which reports the events of
+     * the conversion to the passed consumer and returns the future document. The future is
+     * cancelled if the subscriber cancels.
+     */
+    public static WkHtmlToXPublisher of(Function<Consumer<WkHtmlToXEvent>, CompletableFuture<ByteBuffer>> conversion) {
+        return new WkHtmlToXPublisher(conversion);
+    }
+
+    /**
+     * The executor delivering the signals to the subscriber. Defaults to the common
+     * {@link ForkJoinPool}.
+     */
+    public WkHtmlToXPublisher executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null.");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * The maximum size of the chunks of the converted document. Defaults to 64 KB.
+     */
+    public WkHtmlToXPublisher chunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * The amount of events buffered while the subscriber is not requesting. Defaults to 256.
+     */
+    public WkHtmlToXPublisher maxBufferedEvents(int maxBufferedEvents) {
+        if (maxBufferedEvents < 1) {
+            throw new IllegalArgumentException("Buffered events must be positive.");
+        }
+        this.maxBufferedEvents = maxBufferedEvents;
+        return this;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super WkHtmlToXEvent> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher already has a subscriber"));
+            return;
+        }
+        Subscription subscription = new Subscription(subscriber, executor, chunkSize, maxBufferedEvents);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Converts on a thread which is interrupted if the returned future is cancelled, so that a
+     * conversion still queued is removed from the queue.
+     */
+    private static CompletableFuture<ByteBuffer> interruptibly(Supplier<ByteBuffer> conversion) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        Future<?> converting = converters.submit(() -> {
+            try {
+                result.complete(conversion.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        result.whenComplete((buffer, error) -> {
+            if (result.isCancelled()) {
+                converting.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super WkHtmlToXEvent> subscriber;
+        private final Executor executor;
+        private final int chunkSize;
+        private final int maxBufferedEvents;
+        private final Queue<WkHtmlToXEvent> events = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile CompletableFuture<ByteBuffer> result;
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException invalidRequest;
+        private ByteBuffer output;
+        private boolean done;
+
+        Subscription(Flow.Subscriber<? super WkHtmlToXEvent> subscriber, Executor executor, int chunkSize,
+                     int maxBufferedEvents) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.chunkSize = chunkSize;
+            this.maxBufferedEvents = maxBufferedEvents;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " events, must be positive");
+                signal();
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            if (!cancelled && started.compareAndSet(false, true)) {
+                CompletableFuture<ByteBuffer> future;
+                try {
+                    future = conversion.apply(this::offer);
+                } catch (RuntimeException e) {
+                    future = new CompletableFuture<>();
+                    future.completeExceptionally(e);
+                }
+                result = future;
+                future.whenComplete((buffer, error) -> signal());
+                if (cancelled) {
+                    future.cancel(true);
+                }
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            CompletableFuture<ByteBuffer> result = this.result;
+            if (result != null) {
+                result.cancel(true);
+            }
+        }
+
+        private void offer(WkHtmlToXEvent event) {
+            if (cancelled) {
+                return;
+            }
+            if (buffered.get() >= maxBufferedEvents) {
+                if (event.getType() != WkHtmlToXEvent.Type.PROGRESS) {
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+            buffered.incrementAndGet();
+            events.add(event);
+            signal();
+        }
+
+        /**
+         * Drains on the executor. Only one drain runs at a time; signals arriving meanwhile make
+         * it loop once more.
+         */
+        private void signal() {
+            if (pending.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                cancel();
+            }
+        }
+
+        /**
+         * Emits buffered events and chunks while there is demand.
+         */
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!cancelled && !done && invalidRequest != null) {
+                    done = true;
+                    cancel();
+                    subscriber.onError(invalidRequest);
+                }
+                while (!cancelled && !done && demand.get() > 0) {
+                    WkHtmlToXEvent event = events.poll();
+                    if (event != null) {
+                        buffered.decrementAndGet();
+                    } else if (dropped.get() > 0) {
+                        event = WkHtmlToXEvent.warning(dropped.getAndSet(0)
+                                + " warnings and errors dropped while not requested");
+                    } else {
+                        event = nextChunk();
+                        if (event == null) {
+                            break;
+                        }
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(event);
+                }
+                if (!cancelled && !done && events.isEmpty() && dropped.get() == 0 && isFinished()) {
+                    done = true;
+                    Throwable error = failure();
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Returns the next chunk of the document once the conversion completed, or {@code null}.
+         */
+        private WkHtmlToXEvent nextChunk() {
+            CompletableFuture<ByteBuffer> result = this.result;
+            if (result == null || !result.isDone() || result.isCompletedExceptionally()) {
+                return null;
+            }
+            if (output == null) {
+                output = result.join().duplicate();
+            }
+            if (!output.hasRemaining()) {
+                return null;
+            }
+            ByteBuffer chunk = output.slice();
+            chunk.limit(Math.min(chunkSize, output.remaining()));
+            output.position(output.position() + chunk.remaining());
+            return WkHtmlToXEvent.output(chunk.asReadOnlyBuffer());
+        }
+
+        private boolean isFinished() {
+            CompletableFuture<ByteBuffer> result = this.result;
+            if (result == null || !result.isDone()) {
+                return false;
+            }
+            return result.isCompletedExceptionally() || (output != null && !output.hasRemaining())
+                    || !result.join().hasRemaining();
+        }
+
+        private Throwable failure() {
+            try {
+                result.join();
+                return null;
+            } catch (RuntimeException e) {
+                return e.getCause() != null ? e.getCause() : e;
+            }
+        }
+    }
+}
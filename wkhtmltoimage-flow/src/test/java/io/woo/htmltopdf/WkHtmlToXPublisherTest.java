@@ -0,0 +1,207 @@
+package io.woo.htmltopdf;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXEvent;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.flow.WkHtmlToXPublisher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXPublisherTest {
+    private final ExecutorService signals = Executors.newSingleThreadExecutor(r -> new Thread(r, "signals"));
+
+    @After
+    public void shutdown() {
+        signals.shutdownNow();
+    }
+
+    @Test
+    public void itPublishesEventsAndChunksAsRequested() throws InterruptedException {
+        WkHtmlToXPublisher publisher = WkHtmlToXPublisher.of(events -> {
+            events.accept(WkHtmlToXEvent.warning("slow font"));
+            return CompletableFuture.completedFuture(document("0123456789"));
+        }).executor(signals).chunkSize(4);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(2);
+        Thread.sleep(50);
+        assertEquals(2, recorder.events.size());
+        assertFalse(recorder.finished.await(0, TimeUnit.MILLISECONDS));
+
+        recorder.subscription.request(10);
+        assertTrue(recorder.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(4, recorder.events.size());
+        assertEquals("slow font", recorder.events.get(0).getMessage());
+        assertEquals("0123", text(recorder.events.get(1)));
+        assertEquals("89", text(recorder.events.get(3)));
+        assertTrue(recorder.completed);
+        assertEquals("signals", recorder.threads.get(0));
+    }
+
+    @Test
+    public void itDeliversSignalsOnTheExecutor() throws InterruptedException {
+        CompletableFuture<ByteBuffer> document = new CompletableFuture<>();
+        WkHtmlToXPublisher publisher = WkHtmlToXPublisher.of(events -> {
+            new Thread(() -> {
+                events.accept(WkHtmlToXEvent.warning("rendering"));
+                document.complete(document("pdf"));
+            }, "render").start();
+            return document;
+        }).executor(signals);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertTrue(recorder.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, recorder.events.size());
+        for (String thread : recorder.threads) {
+            assertEquals("signals", thread);
+        }
+    }
+
+    @Test
+    public void itCancelsTheConversion() throws InterruptedException {
+        CompletableFuture<ByteBuffer> document = new CompletableFuture<>();
+        WkHtmlToXPublisher publisher = WkHtmlToXPublisher.of(events -> document).executor(signals);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(1);
+        recorder.subscription.cancel();
+        document.complete(document("late"));
+        Thread.sleep(50);
+
+        assertTrue(document.isCancelled());
+        assertTrue(recorder.events.isEmpty());
+        assertFalse(recorder.finished.await(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void itSignalsFailedConversions() throws InterruptedException {
+        CompletableFuture<ByteBuffer> document = new CompletableFuture<>();
+        document.completeExceptionally(new WkHtmlToXException("Failed loading page"));
+        WkHtmlToXPublisher publisher = WkHtmlToXPublisher.of(events -> document).executor(signals);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(1);
+
+        assertTrue(recorder.finished.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.error instanceof WkHtmlToXException);
+    }
+
+    @Test
+    public void itSignalsNonPositiveRequestsWithoutConverting() throws InterruptedException {
+        AtomicBoolean converted = new AtomicBoolean();
+        WkHtmlToXPublisher publisher = WkHtmlToXPublisher.of(events -> {
+            converted.set(true);
+            return CompletableFuture.completedFuture(document("pdf"));
+        }).executor(signals);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+
+        recorder.subscription.request(0);
+
+        assertTrue(recorder.finished.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        assertEquals("signals", recorder.threads.get(0));
+        recorder.subscription.request(1);
+        Thread.sleep(50);
+        assertFalse(converted.get());
+    }
+
+    @Test
+    public void itBoundsTheEventsBufferedWhileNotRequested() throws InterruptedException {
+        WkHtmlToXPublisher publisher = WkHtmlToXPublisher.of(events -> {
+            for (int i = 0; i < 5; i++) {
+                events.accept(WkHtmlToXEvent.error("error " + i));
+            }
+            return CompletableFuture.completedFuture(document("pdf"));
+        }).executor(signals).maxBufferedEvents(2);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        CountDownLatch busy = new CountDownLatch(1);
+        signals.execute(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        recorder.subscription.request(1);
+        busy.countDown();
+        Thread.sleep(50);
+        assertEquals(1, recorder.events.size());
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertTrue(recorder.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(4, recorder.events.size());
+        assertEquals("error 0", recorder.events.get(0).getMessage());
+        assertEquals("error 1", recorder.events.get(1).getMessage());
+        assertEquals("3 warnings and errors dropped while not requested", recorder.events.get(2).getMessage());
+        assertEquals("pdf", text(recorder.events.get(3)));
+    }
+
+    private static ByteBuffer document(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(WkHtmlToXEvent event) {
+        ByteBuffer chunk = event.getChunk().duplicate();
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Recorder implements Flow.Subscriber<WkHtmlToXEvent> {
+        final List<WkHtmlToXEvent> events = new CopyOnWriteArrayList<>();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(WkHtmlToXEvent event) {
+            threads.add(Thread.currentThread().getName());
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            threads.add(Thread.currentThread().getName());
+            this.error = error;
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            threads.add(Thread.currentThread().getName());
+            completed = true;
+            finished.countDown();
+        }
+    }
+}
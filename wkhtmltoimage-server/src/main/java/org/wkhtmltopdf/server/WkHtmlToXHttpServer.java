@@ -0,0 +1,467 @@
+package org.wkhtmltopdf.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * An HTTP rendering service, so that several applications can share one warm renderer instead of
+ * each loading the native library. Built on the HTTP server of the JDK.
+ * <p>
+ * {@code POST /pdf} and {@code POST /image} convert the HTML in the request body, or the page of
+ * the http or https "url" query parameter, and respond with the document. Other query parameters
+ * are passed as settings, e.g. {@code /pdf?orientation=Landscape&object.web.defaultEncoding=utf-8},
+ * where parameters starting with "object." are settings of the PDF object, and "tenant" selects
+ * the tenant the conversion is scheduled for. Only layout and rendering settings which neither
+ * read nor write files are accepted, other settings are answered with 400; see
+ * {@link #allowSettings(String...)}. Pages are not allowed to load local files. Images default to
+ * PNG. {@code GET} may be used with a "url" parameter. Failed conversions are answered with 422
+ * and their log.
+ * <p>
+ * At most the configured amount of requests are queued or converting at the same time; further
+ * requests are answered with 503 right away. Documents converted from posted HTML are cached by
+ * the fingerprint of their settings and HTML, up to the configured amount of bytes; documents
+ * converted from URLs are not, as the pages may change. {@code GET /metrics} lists the
+ * {@link WkHtmlToXMetrics} as "name value" lines, {@code GET /health} answers 200 while the
+ * server is running. The server has no authentication and binds to the loopback interface unless
+ * another address is specified.
+ */
+public class WkHtmlToXHttpServer {
+    private static final String OBJECT_PREFIX = "object.";
+    private static final List<String> DEFAULT_SETTINGS = Arrays.asList(
+            // PDF
+            "size.pageSize", "size.width", "size.height", "orientation", "colorMode", "dpi", "imageDPI",
+            "imageQuality", "margin.top", "margin.bottom", "margin.left", "margin.right", "documentTitle",
+            "useCompression", "outline", "outlineDepth", "collate", "copies", "pageOffset",
+            "object.web.defaultEncoding", "object.web.background", "object.web.loadImages",
+            "object.web.enableJavascript", "object.web.printMediaType", "object.web.minimumFontSize",
+            "object.web.enableIntelligentShrinking", "object.load.zoomFactor", "object.load.jsdelay",
+            "object.load.windowStatus", "object.useExternalLinks", "object.useLocalLinks",
+            "object.produceForms", "object.includeInOutline", "object.pagesCount",
+            "object.header.left", "object.header.center", "object.header.right", "object.header.fontSize",
+            "object.header.fontName", "object.header.line", "object.header.spacing",
+            "object.footer.left", "object.footer.center", "object.footer.right", "object.footer.fontSize",
+            "object.footer.fontName", "object.footer.line", "object.footer.spacing",
+            // Images
+            "fmt", "quality", "screenWidth", "screenHeight", "smartWidth", "transparent",
+            "crop.left", "crop.top", "crop.width", "crop.height",
+            "web.defaultEncoding", "web.background", "web.loadImages", "web.enableJavascript",
+            "web.minimumFontSize", "load.zoomFactor", "load.jsdelay", "load.windowStatus");
+    private static final List<String> IMAGE_FORMATS = Arrays.asList("png", "jpg", "jpeg", "bmp", "svg");
+
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setName("wkhtmltox-http-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> allowedSettings = ConcurrentHashMap.newKeySet();
+    private final LongAdder requests;
+    private final LongAdder rejected;
+    private final LongAdder cacheHits;
+    private final LongAdder cacheMisses;
+    private volatile InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    private volatile BiFunction<WkHtmlToXJob, WkHtmlToXListener, WkHtmlToXResult> renderer =
+            (job, listener) -> WkHtmlToXTaskExecutor.getInstance().render(job, listener);
+    private volatile int maxRequestBytes = 10 << 20;
+    private volatile long maxCacheBytes = 64 << 20;
+    private Semaphore admitted = new Semaphore(100);
+    private int maxQueued = 100;
+    private long cacheBytes;
+    private HttpServer server;
+
+    private WkHtmlToXHttpServer() {
+        allowedSettings.addAll(DEFAULT_SETTINGS);
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        requests = metrics.counter("server.requests");
+        rejected = metrics.counter("server.rejected");
+        cacheHits = metrics.counter("server.cache.hits");
+        cacheMisses = metrics.counter("server.cache.misses");
+        metrics.gauge("server.inFlight", this::getInFlight);
+        metrics.gauge("server.cache.bytes", this::getCacheBytes);
+    }
+
+    public static WkHtmlToXHttpServer create() {
+        return new WkHtmlToXHttpServer();
+    }
+
+    /**
+     * Starts a server listening on the port and address given as arguments, defaulting to 8080 on
+     * the loopback interface, and rendering with the executor of this process. Pass "0.0.0.0" as
+     * address to accept connections from other hosts.
+     */
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        String host = args.length > 1 ? args[1] : InetAddress.getLoopbackAddress().getHostAddress();
+        WkHtmlToXHttpServer server = create().bind(host, port).start();
+        System.out.println("Rendering on http://" + host + ":" + server.getPort());
+    }
+
+    /**
+     * The address and port to listen on, e.g. "0.0.0.0" to accept connections from other hosts.
+     * Port 0 picks a free port.
+     */
+    public WkHtmlToXHttpServer bind(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+        return this;
+    }
+
+    /**
+     * Renders requested conversions with the specified function instead of the executor.
+     */
+    public WkHtmlToXHttpServer renderer(BiFunction<WkHtmlToXJob, WkHtmlToXListener, WkHtmlToXResult> renderer) {
+        this.renderer = renderer;
+        return this;
+    }
+
+    /**
+     * Additionally accepts the settings from clients, e.g. "object.header.htmlUrl", named as in
+     * the query: settings of the PDF object start with "object.". Only allow settings which
+     * neither read nor write files on the server, or only serve trusted clients.
+     */
+    public WkHtmlToXHttpServer allowSettings(String... names) {
+        allowedSettings.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * The amount of conversion requests queued or converting at the same time. Defaults to 100.
+     */
+    public synchronized WkHtmlToXHttpServer maxQueued(int maxQueued) {
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("Queued requests must be positive.");
+        }
+        this.admitted = new Semaphore(maxQueued);
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * The maximum size of request bodies. Defaults to 10 MB.
+     */
+    public WkHtmlToXHttpServer maxRequestBytes(int maxRequestBytes) {
+        if (maxRequestBytes < 1) {
+            throw new IllegalArgumentException("Request size must be positive.");
+        }
+        this.maxRequestBytes = maxRequestBytes;
+        return this;
+    }
+
+    /**
+     * The amount of bytes of converted documents cached. 0 disables the cache. Defaults to 64 MB.
+     */
+    public WkHtmlToXHttpServer maxCacheBytes(long maxCacheBytes) {
+        if (maxCacheBytes < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative.");
+        }
+        this.maxCacheBytes = maxCacheBytes;
+        synchronized (cache) {
+            evict();
+        }
+        return this;
+    }
+
+    /**
+     * Starts accepting requests. Has no effect if the server has already been started.
+     */
+    public synchronized WkHtmlToXHttpServer start() {
+        if (server != null) {
+            return this;
+        }
+        try {
+            server = HttpServer.create(address, 50);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to open HTTP server socket", e);
+        }
+        server.setExecutor(threads);
+        server.createContext("/pdf", exchange -> handle(exchange, this::convert));
+        server.createContext("/image", exchange -> handle(exchange, this::convert));
+        server.createContext("/metrics", exchange -> handle(exchange, this::metrics));
+        server.createContext("/health", exchange -> handle(exchange, this::health));
+        server.start();
+        return this;
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("HTTP server is not started");
+        }
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the amount of conversion requests queued or converting.
+     */
+    public synchronized int getInFlight() {
+        return maxQueued - admitted.availablePermits();
+    }
+
+    public long getCacheBytes() {
+        synchronized (cache) {
+            return cacheBytes;
+        }
+    }
+
+    /**
+     * Stops accepting requests and closes the open connections.
+     */
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        threads.shutdownNow();
+    }
+
+    private void convert(HttpExchange exchange) throws IOException {
+        requests.increment();
+        String method = exchange.getRequestMethod();
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (!"POST".equals(method) && !("GET".equals(method) && parameters.containsKey("url"))) {
+            respond(exchange, 405, "Convert with POST, or GET with a url parameter");
+            return;
+        }
+        Semaphore admitted;
+        synchronized (this) {
+            admitted = this.admitted;
+        }
+        if (!admitted.tryAcquire()) {
+            rejected.increment();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Too many queued conversions");
+            return;
+        }
+        try {
+            boolean pdf = exchange.getHttpContext().getPath().equals("/pdf");
+            String error = validate(parameters, pdf);
+            if (error != null) {
+                respond(exchange, 400, error);
+                return;
+            }
+            String html = null;
+            if (!parameters.containsKey("url")) {
+                byte[] body = readBody(exchange.getRequestBody(), maxRequestBytes);
+                if (body == null) {
+                    respond(exchange, 413, "Request body exceeds " + maxRequestBytes + " bytes");
+                    return;
+                }
+                html = new String(body, StandardCharsets.UTF_8);
+            }
+            WkHtmlToXJob job = pdf ? pdfJob(parameters, html) : imageJob(parameters, html);
+            String format = job.getSettings().get("fmt");
+            String contentType = pdf ? "application/pdf"
+                    : format.equals("jpg") ? "image/jpeg" : format.equals("svg") ? "image/svg+xml" : "image/" + format;
+            String key = html == null ? null : job.getType() + "/" + job.getFingerprint();
+            ByteBuffer output = key == null ? null : cached(key);
+            if (output != null) {
+                cacheHits.increment();
+            } else {
+                cacheMisses.increment();
+                WkHtmlToXResult result = renderer.apply(job, WkHtmlToXListener.NONE);
+                if (!result.isSuccess() || result.getOutputBuffer() == null) {
+                    respond(exchange, 422, result.getFailureMessage());
+                    return;
+                }
+                output = result.getOutputBuffer();
+                if (key != null) {
+                    cache(key, output);
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, output.remaining());
+            try (WritableByteChannel channel = Channels.newChannel(exchange.getResponseBody())) {
+                ByteBuffer buffer = output.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "Conversion failed: " + e.getMessage());
+        } finally {
+            admitted.release();
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        WkHtmlToXMetrics.getInstance().snapshot().forEach((name, value) ->
+                sb.append(name).append(' ').append(value).append('\n'));
+        respond(exchange, 200, sb.toString());
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "OK");
+    }
+
+    /**
+     * Returns why the parameters are not accepted, or {@code null} if they are.
+     */
+    private String validate(Map<String, String> parameters, boolean pdf) {
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (name.equals("tenant")) {
+                continue;
+            }
+            if (name.equals("url")) {
+                String url = parameter.getValue().toLowerCase();
+                if (!url.startsWith("http://") && !url.startsWith("https://")) {
+                    return "Only http and https URLs can be converted";
+                }
+            } else if (!allowedSettings.contains(name)) {
+                return "Setting not allowed: " + name;
+            }
+        }
+        String format = parameters.get("fmt");
+        if (!pdf && format != null && !IMAGE_FORMATS.contains(format.toLowerCase())) {
+            return "Unsupported image format: " + format;
+        }
+        return null;
+    }
+
+    private static WkHtmlToXJob pdfJob(Map<String, String> parameters, String html) {
+        Map<String, String> settings = new HashMap<>();
+        Map<String, String> objectSettings = new HashMap<>();
+        parameters.forEach((name, value) -> {
+            if (name.startsWith(OBJECT_PREFIX)) {
+                objectSettings.put(name.substring(OBJECT_PREFIX.length()), value);
+            } else if (!name.equals("tenant") && !name.equals("url")) {
+                settings.put(name, value);
+            }
+        });
+        if (parameters.containsKey("url")) {
+            objectSettings.put("page", parameters.get("url"));
+        }
+        objectSettings.put("load.blockLocalFileAccess", "true");
+        return WkHtmlToXJob.pdf(parameters.get("tenant"), settings,
+                Collections.singletonList(new WkHtmlToXJob.Input(objectSettings, html)));
+    }
+
+    private static WkHtmlToXJob imageJob(Map<String, String> parameters, String html) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("fmt", "png");
+        parameters.forEach((name, value) -> {
+            if (!name.equals("tenant") && !name.equals("url")) {
+                settings.put(name, name.equals("fmt") ? value.toLowerCase() : value);
+            }
+        });
+        if (parameters.containsKey("url")) {
+            settings.put("in", parameters.get("url"));
+        }
+        settings.put("load.blockLocalFileAccess", "true");
+        return WkHtmlToXJob.image(parameters.get("tenant"), settings, html);
+    }
+
+    private ByteBuffer cached(String key) {
+        synchronized (cache) {
+            ByteBuffer output = cache.get(key);
+            return output == null ? null : output.duplicate();
+        }
+    }
+
+    private void cache(String key, ByteBuffer output) {
+        if (output.remaining() > maxCacheBytes) {
+            return;
+        }
+        synchronized (cache) {
+            ByteBuffer previous = cache.put(key, output);
+            cacheBytes += output.remaining() - (previous == null ? 0 : previous.remaining());
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<ByteBuffer> eldest = cache.values().iterator();
+        while (cacheBytes > maxCacheBytes && eldest.hasNext()) {
+            cacheBytes -= eldest.next().remaining();
+            eldest.remove();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : parameter.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return parameters;
+    }
+
+    /**
+     * Reads the request body, or returns {@code null} if it exceeds the maximum size.
+     */
+    private static byte[] readBody(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            if (body.size() + read > maxBytes) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void handle(HttpExchange exchange, Handler handler) {
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException e) {
+            // The client is gone, or the response was already started.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+}
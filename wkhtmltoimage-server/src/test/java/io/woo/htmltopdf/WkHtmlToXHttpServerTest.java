@@ -0,0 +1,176 @@
+package io.woo.htmltopdf;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.server.WkHtmlToXHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXHttpServerTest {
+    private WkHtmlToXHttpServer server;
+
+    @After
+    public void close() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void itRendersPostedHtmlWithQuerySettings() throws IOException {
+        List<WkHtmlToXJob> jobs = new CopyOnWriteArrayList<>();
+        server = start(jobs, null);
+
+        HttpURLConnection connection = post("/pdf?orientation=Landscape&object.web.defaultEncoding=utf-8&tenant=a",
+                "<p>hello</p>");
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/pdf", connection.getContentType());
+        assertEquals("pdf:<p>hello</p>", read(connection.getInputStream()));
+        WkHtmlToXJob job = jobs.get(0);
+        assertEquals("a", job.getTenant());
+        assertEquals("Landscape", job.getSettings().get("orientation"));
+        assertEquals("utf-8", job.getInputs().get(0).getSettings().get("web.defaultEncoding"));
+    }
+
+    @Test
+    public void itServesRepeatedConversionsFromTheCache() throws IOException {
+        List<WkHtmlToXJob> jobs = new CopyOnWriteArrayList<>();
+        server = start(jobs, null);
+
+        assertEquals("image:<p>a</p>", read(post("/image", "<p>a</p>").getInputStream()));
+        HttpURLConnection cached = post("/image", "<p>a</p>");
+        assertEquals("image:<p>a</p>", read(cached.getInputStream()));
+        assertEquals("image/png", cached.getContentType());
+        read(post("/image?fmt=jpg", "<p>a</p>").getInputStream());
+
+        assertEquals(2, jobs.size());
+    }
+
+    @Test
+    public void itRejectsSettingsWhichAreNotAllowed() throws IOException {
+        List<WkHtmlToXJob> jobs = new CopyOnWriteArrayList<>();
+        server = start(jobs, null);
+
+        assertEquals(400, post("/pdf?dumpOutline=/tmp/outline.xml", "<p>a</p>").getResponseCode());
+        assertEquals(400, post("/pdf?object.load.cookieJar=/tmp/cookies", "<p>a</p>").getResponseCode());
+        assertEquals(400, post("/pdf?object.page=/etc/passwd", "<p>a</p>").getResponseCode());
+        assertEquals(400, post("/image?out=/tmp/image.png", "<p>a</p>").getResponseCode());
+        assertEquals(400, get("/pdf?url=file:///etc/passwd").getResponseCode());
+        assertEquals(0, jobs.size());
+
+        server.allowSettings("object.load.cookieJar");
+        assertEquals(200, post("/pdf?object.load.cookieJar=/tmp/cookies", "<p>a</p>").getResponseCode());
+        assertEquals("true", jobs.get(0).getInputs().get(0).getSettings().get("load.blockLocalFileAccess"));
+    }
+
+    @Test
+    public void itDoesNotCacheConvertedUrls() throws IOException {
+        List<WkHtmlToXJob> jobs = new CopyOnWriteArrayList<>();
+        server = start(jobs, null);
+
+        assertEquals(200, get("/image?url=https://example.com/").getResponseCode());
+        assertEquals(200, get("/image?url=https://example.com/").getResponseCode());
+
+        assertEquals(2, jobs.size());
+        assertEquals("https://example.com/", jobs.get(0).getSettings().get("in"));
+        assertEquals(0, server.getCacheBytes());
+    }
+
+    @Test
+    public void itRejectsRequestsBeyondTheQueueLimit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server = start(new CopyOnWriteArrayList<>(), release).maxQueued(1);
+
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return post("/pdf", "<p>slow</p>").getResponseCode();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getInFlight() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        HttpURLConnection rejected = post("/pdf", "<p>other</p>");
+        assertEquals(503, rejected.getResponseCode());
+        assertEquals("1", rejected.getHeaderField("Retry-After"));
+        release.countDown();
+        assertEquals(200, (int) first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void itExposesHealthAndMetrics() throws IOException {
+        server = start(new CopyOnWriteArrayList<>(), null);
+        read(post("/pdf", "<p>a</p>").getInputStream());
+
+        HttpURLConnection health = get("/health");
+        assertEquals(200, health.getResponseCode());
+        assertEquals("OK", read(health.getInputStream()));
+        String metrics = read(get("/metrics").getInputStream());
+        assertTrue(metrics, metrics.contains("server.requests "));
+        assertTrue(metrics, metrics.contains("server.cache.misses "));
+    }
+
+    private static WkHtmlToXHttpServer start(List<WkHtmlToXJob> jobs, CountDownLatch release) {
+        return WkHtmlToXHttpServer.create()
+                .renderer((job, listener) -> {
+                    jobs.add(job);
+                    try {
+                        if (release != null) {
+                            release.await(5, TimeUnit.SECONDS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    String output = (job.getType() == WkHtmlToXJob.Type.PDF ? "pdf:" : "image:")
+                            + job.getInputs().get(0).getHtmlData();
+                    return new WkHtmlToXResult(true, output.getBytes(StandardCharsets.UTF_8), Collections.emptyList());
+                })
+                .start();
+    }
+
+    private HttpURLConnection post(String path, String html) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path)
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(html.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,274 @@
+package org.wkhtmltopdf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delays new conversions while the memory they would need is not available, and rejects them if
+ * it does not become available in time. Each conversion reserves the output size previously
+ * observed for its settings, as its document is held in the native library and copied into the
+ * heap before it is returned. A conversion is admitted while the reserved output bytes stay
+ * within their limit, the free share of the maximum heap stays above its minimum and the resident
+ * memory of the process, including the native heap, stays below its limit.
+ * <p>
+ * A conversion is always admitted while no other conversion is admitted, as waiting would not
+ * free any memory. Reserved bytes, heap headroom and resident memory are exposed in the
+ * {@link WkHtmlToXMetrics} as "admission.inFlightBytes", "admission.heapHeadroom" and
+ * "admission.rssBytes", waiting conversions as "admission.waiting", and delayed and rejected
+ * conversions as "admission.delayed" and "admission.rejected".
+ */
+public class WkHtmlToXAdmissionControl {
+    private static final double SIZE_SMOOTHING = 0.2;
+    private static final int MAX_TRACKED_SETTINGS = 1024;
+    private static final long POLL_MILLIS = 50;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Map<String, Double> outputSizes = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+            return size() > MAX_TRACKED_SETTINGS;
+        }
+    };
+    private final LongAdder delayed;
+    private final LongAdder rejected;
+    private volatile long maxInFlightBytes = Long.MAX_VALUE;
+    private volatile double minHeapHeadroom;
+    private volatile long maxRssBytes;
+    private volatile long defaultOutputBytes = 1 << 20;
+    private volatile long maxWaitMillis = 30_000;
+    private long inFlightBytes;
+    private int admitted;
+    private int waiting;
+
+    private WkHtmlToXAdmissionControl() {
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        metrics.gauge("admission.inFlightBytes", this::getInFlightBytes);
+        metrics.gauge("admission.heapHeadroom", WkHtmlToXAdmissionControl::getHeapHeadroom);
+        metrics.gauge("admission.rssBytes", WkHtmlToXAdmissionControl::getResidentBytes);
+        metrics.gauge("admission.waiting", this::getWaiting);
+        delayed = metrics.counter("admission.delayed");
+        rejected = metrics.counter("admission.rejected");
+    }
+
+    /**
+     * Creates a new {@code WkHtmlToXAdmissionControl} without limits, waiting up to 30 seconds
+     * for memory once limits are set.
+     */
+    public static WkHtmlToXAdmissionControl create() {
+        return new WkHtmlToXAdmissionControl();
+    }
+
+    /**
+     * The maximum amount of output bytes reserved by admitted conversions.
+     */
+    public WkHtmlToXAdmissionControl maxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes < 1) {
+            throw new IllegalArgumentException("In-flight bytes must be positive.");
+        }
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    /**
+     * The share of the maximum heap, between 0 and 1, which must be free to admit a conversion.
+     */
+    public WkHtmlToXAdmissionControl minHeapHeadroom(double minHeapHeadroom) {
+        if (minHeapHeadroom < 0 || minHeapHeadroom >= 1) {
+            throw new IllegalArgumentException("Heap headroom must be between 0 and 1.");
+        }
+        this.minHeapHeadroom = minHeapHeadroom;
+        return this;
+    }
+
+    /**
+     * The resident memory of the process above which no conversion is admitted. Only supported
+     * on Linux. 0, the default, disables the limit. Render worker processes are bounded by
+     * {@link org.wkhtmltopdf.worker.WorkerPool#maxRssBytes(long)} instead.
+     */
+    public WkHtmlToXAdmissionControl maxRssBytes(long maxRssBytes) {
+        if (maxRssBytes < 0) {
+            throw new IllegalArgumentException("Memory limit must not be negative.");
+        }
+        this.maxRssBytes = maxRssBytes;
+        return this;
+    }
+
+    /**
+     * The output size reserved for conversions whose settings have not been converted before.
+     */
+    public WkHtmlToXAdmissionControl defaultOutputBytes(long defaultOutputBytes) {
+        if (defaultOutputBytes < 0) {
+            throw new IllegalArgumentException("Output size must not be negative.");
+        }
+        this.defaultOutputBytes = defaultOutputBytes;
+        return this;
+    }
+
+    /**
+     * The time, in milliseconds, a conversion waits for memory before it is rejected.
+     */
+    public WkHtmlToXAdmissionControl maxWaitMillis(long maxWaitMillis) {
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Wait time must not be negative.");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * Waits until the job may be converted and reserves its estimated output size.
+     *
+     * @return the reserved amount of bytes, to be passed to {@link #release(WkHtmlToXJob, long, WkHtmlToXResult)}
+     * @throws WkHtmlToXException if memory did not become available in time
+     */
+    public long acquire(WkHtmlToXJob job) throws InterruptedException {
+        long estimate = estimate(job);
+        lock.lockInterruptibly();
+        try {
+            if (!isAdmissible(estimate)) {
+                delayed.increment();
+                long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                waiting++;
+                try {
+                    while (!isAdmissible(estimate)) {
+                        if (remaining <= 0) {
+                            rejected.increment();
+                            throw new WkHtmlToXException("Conversion rejected, not enough memory available");
+                        }
+                        // Heap and resident memory also shrink without releases, e.g. after a GC.
+                        long wait = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS));
+                        remaining -= wait - released.awaitNanos(wait);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+            admitted++;
+            inFlightBytes += estimate;
+            return estimate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves the estimated output size of the job if it may be converted without waiting.
+     *
+     * @return the reserved amount of bytes, or -1 if the job has to wait for memory
+     */
+    public long tryAcquire(WkHtmlToXJob job) {
+        long estimate = estimate(job);
+        lock.lock();
+        try {
+            if (!isAdmissible(estimate)) {
+                return -1;
+            }
+            admitted++;
+            inFlightBytes += estimate;
+            return estimate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the bytes reserved by {@link #acquire(WkHtmlToXJob)} and learns the output size of
+     * the settings of the job from its result, if any.
+     */
+    public void release(WkHtmlToXJob job, long reserved, WkHtmlToXResult result) {
+        lock.lock();
+        try {
+            admitted--;
+            inFlightBytes -= reserved;
+            if (result != null && result.getOutputSize() >= 0) {
+                outputSizes.merge(job.getSettingsFingerprint(), (double) result.getOutputSize(),
+                        (size, observed) -> size + SIZE_SMOOTHING * (observed - size));
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the output size reserved for the job.
+     */
+    public long estimate(WkHtmlToXJob job) {
+        lock.lock();
+        try {
+            Double size = outputSizes.get(job.getSettingsFingerprint());
+            return size == null ? defaultOutputBytes : size.longValue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getInFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of conversions waiting for memory.
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the share of the maximum heap which is not in use.
+     */
+    public static double getHeapHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return 1 - (double) used / runtime.maxMemory();
+    }
+
+    /**
+     * Returns the resident memory of the process, including the native heap, or -1 if unknown.
+     */
+    public static long getResidentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not on Linux; resident memory is not tracked.
+        }
+        return -1;
+    }
+
+    private boolean isAdmissible(long estimate) {
+        if (admitted == 0) {
+            return true;
+        }
+        if (inFlightBytes + estimate > maxInFlightBytes) {
+            return false;
+        }
+        if (minHeapHeadroom > 0 && getHeapHeadroom() < minHeapHeadroom) {
+            return false;
+        }
+        long maxRssBytes = this.maxRssBytes;
+        return maxRssBytes == 0 || getResidentBytes() <= maxRssBytes;
+    }
+}
@@ -0,0 +1,163 @@
+package org.wkhtmltopdf;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many conversions run at the same time, adjusting the limit to the observed
+ * latency and failures (additive increase, multiplicative decrease).
+ * <p>
+ * Every completed conversion is compared against a slowly moving latency baseline. While
+ * conversions succeed within the tolerated multiple of the baseline and the limit is actually
+ * being used, the limit grows by roughly one per limit's worth of completions. A failure, or a
+ * conversion slower than tolerated, shrinks the limit by the backoff factor.
+ */
+public class WkHtmlToXConcurrencyLimiter {
+    private static final double BASELINE_SMOOTHING = 0.05;
+    private static final double FAILURE_SMOOTHING = 0.1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int minLimit = 1;
+    private int maxLimit = 1;
+    private volatile double tolerance = 2.0;
+    private volatile double backoff = 0.9;
+    private double limit = 1;
+    private int inFlight;
+    private double baselineMillis;
+    private double failureRate;
+
+    /**
+     * The bounds the limit is kept within.
+     */
+    public WkHtmlToXConcurrencyLimiter bounds(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Bounds must satisfy 1 <= min <= max.");
+        }
+        lock.lock();
+        try {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            limit = Math.max(minLimit, Math.min(maxLimit, limit));
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * How many times slower than the baseline a conversion may be before the limit is decreased.
+     */
+    public WkHtmlToXConcurrencyLimiter tolerance(double tolerance) {
+        if (tolerance < 1) {
+            throw new IllegalArgumentException("Tolerance must be at least 1.");
+        }
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * The factor the limit is multiplied with when a conversion fails or is too slow.
+     */
+    public WkHtmlToXConcurrencyLimiter backoff(double backoff) {
+        if (backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("Backoff must be between 0 and 1.");
+        }
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * Waits until fewer conversions than the current limit are running and reserves a slot.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= getLimit()) {
+                available.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a slot reserved with {@link #acquire()} and adjusts the limit to the outcome of the conversion.
+     */
+    public void release(long latency, TimeUnit unit, boolean success) {
+        double millis = unit.toNanos(latency) / 1_000_000.0;
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= getLimit();
+            inFlight--;
+            failureRate += FAILURE_SMOOTHING * ((success ? 0 : 1) - failureRate);
+            if (!success) {
+                limit = Math.max(minLimit, limit * backoff);
+            } else {
+                if (baselineMillis == 0) {
+                    baselineMillis = millis;
+                }
+                if (millis > baselineMillis * tolerance) {
+                    limit = Math.max(minLimit, limit * backoff);
+                } else if (saturated) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                baselineMillis += BASELINE_SMOOTHING * (millis - baselineMillis);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current amount of conversions allowed to run at the same time.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of reserved slots.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the moving average of the latency of successful conversions, in milliseconds.
+     */
+    public double getBaselineMillis() {
+        lock.lock();
+        try {
+            return baselineMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the moving average of the share of failed conversions.
+     */
+    public double getFailureRate() {
+        lock.lock();
+        try {
+            return failureRate;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
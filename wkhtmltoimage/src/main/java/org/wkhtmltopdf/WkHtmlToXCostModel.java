@@ -0,0 +1,128 @@
+package org.wkhtmltopdf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimates how long a conversion will occupy the render thread, in milliseconds.
+ * <p>
+ * A prior estimate is derived from the size of the HTML, the amount of objects and the
+ * javascript delay. Observed durations are remembered per settings fingerprint as a moving
+ * average of the ratio between the actual duration and the prior, which then scales the
+ * prior of later conversions with the same fingerprint. The most recent durations are kept as
+ * well, to derive latency percentiles per fingerprint.
+ */
+public class WkHtmlToXCostModel {
+    private static final double SMOOTHING = 0.2;
+    private static final int MAX_FINGERPRINTS = 10_000;
+    private static final int SAMPLES_PER_FINGERPRINT = 128;
+
+    private volatile long baseCost = 100;
+    private volatile long objectCost = 50;
+    private volatile double kilobyteCost = 1.0;
+    private final Map<String, Double> ratios = lruMap();
+    private final Map<String, Samples> samples = lruMap();
+
+    /**
+     * The fixed cost, in milliseconds, of every conversion.
+     */
+    public WkHtmlToXCostModel baseCost(long baseCost) {
+        this.baseCost = baseCost;
+        return this;
+    }
+
+    /**
+     * The additional cost, in milliseconds, of every object of a conversion.
+     */
+    public WkHtmlToXCostModel objectCost(long objectCost) {
+        this.objectCost = objectCost;
+        return this;
+    }
+
+    /**
+     * The additional cost, in milliseconds, of every kilobyte of HTML passed in directly.
+     */
+    public WkHtmlToXCostModel kilobyteCost(double kilobyteCost) {
+        this.kilobyteCost = kilobyteCost;
+        return this;
+    }
+
+    /**
+     * Returns the expected duration of the job, in milliseconds. A {@code null} job is
+     * estimated at the base cost.
+     */
+    public long estimate(WkHtmlToXJob job) {
+        long prior = prior(job);
+        if (job == null) {
+            return prior;
+        }
+        Double ratio = ratios.get(job.getSettingsFingerprint());
+        return ratio == null ? prior : Math.max(1, Math.round(prior * ratio));
+    }
+
+    /**
+     * Records the observed duration of a finished job.
+     */
+    public void record(WkHtmlToXJob job, long elapsedMillis) {
+        if (job == null) {
+            return;
+        }
+        double sample = (double) Math.max(1, elapsedMillis) / prior(job);
+        ratios.merge(job.getSettingsFingerprint(), sample,
+                (previous, current) -> previous + SMOOTHING * (current - previous));
+        samples.computeIfAbsent(job.getSettingsFingerprint(), fingerprint -> new Samples()).add(elapsedMillis);
+    }
+
+    /**
+     * Returns the specified percentile (between 0 and 1) of the recent durations of jobs with the
+     * same settings fingerprint, in milliseconds, or -1 if fewer than {@code minSamples} durations
+     * have been recorded.
+     */
+    public long percentile(WkHtmlToXJob job, double percentile, int minSamples) {
+        Samples recorded = samples.get(job.getSettingsFingerprint());
+        return recorded == null ? -1 : recorded.percentile(percentile, minSamples);
+    }
+
+    private long prior(WkHtmlToXJob job) {
+        if (job == null) {
+            return baseCost;
+        }
+        return Math.max(1, baseCost
+                + objectCost * job.getObjectCount()
+                + Math.round(kilobyteCost * job.getInputSize() / 1024.0)
+                + job.getJavascriptDelay());
+    }
+
+    private static <V> Map<String, V> lruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_FINGERPRINTS;
+            }
+        });
+    }
+
+    private static class Samples {
+        private final long[] values = new long[SAMPLES_PER_FINGERPRINT];
+        private int count;
+        private int next;
+
+        synchronized void add(long value) {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        synchronized long percentile(double percentile, int minSamples) {
+            if (count < Math.max(1, minSamples)) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
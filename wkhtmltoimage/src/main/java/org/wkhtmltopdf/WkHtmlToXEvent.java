@@ -0,0 +1,85 @@
+package org.wkhtmltopdf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An event of a conversion published to reactive subscribers: progress, a warning or an error
+ * reported while converting, or a chunk of the converted document.
+ */
+public class WkHtmlToXEvent {
+
+    public enum Type {
+        PROGRESS,
+        WARNING,
+        ERROR,
+        /**
+         * A chunk of the converted document. Chunks are published in order once the conversion completed.
+         */
+        OUTPUT
+    }
+
+    private final Type type;
+    private final WkHtmlToXProgress progress;
+    private final String message;
+    private final ByteBuffer chunk;
+
+    private WkHtmlToXEvent(Type type, WkHtmlToXProgress progress, String message, ByteBuffer chunk) {
+        this.type = type;
+        this.progress = progress;
+        this.message = message;
+        this.chunk = chunk;
+    }
+
+    public static WkHtmlToXEvent progress(WkHtmlToXProgress progress) {
+        return new WkHtmlToXEvent(Type.PROGRESS, progress, null, null);
+    }
+
+    public static WkHtmlToXEvent warning(String message) {
+        return new WkHtmlToXEvent(Type.WARNING, null, message, null);
+    }
+
+    public static WkHtmlToXEvent error(String message) {
+        return new WkHtmlToXEvent(Type.ERROR, null, message, null);
+    }
+
+    public static WkHtmlToXEvent output(ByteBuffer chunk) {
+        return new WkHtmlToXEvent(Type.OUTPUT, null, null, chunk);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the progress of a {@link Type#PROGRESS} event, or {@code null}.
+     */
+    public WkHtmlToXProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Returns the message of a {@link Type#WARNING} or {@link Type#ERROR} event, or {@code null}.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns a read-only buffer over the chunk of an {@link Type#OUTPUT} event, or {@code null}.
+     */
+    public ByteBuffer getChunk() {
+        return chunk;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case PROGRESS:
+                return "PROGRESS " + progress.getPhaseDescription() + " " + progress.getPhaseProgress() + "%";
+            case OUTPUT:
+                return "OUTPUT " + chunk.remaining() + " bytes";
+            default:
+                return type + " " + message;
+        }
+    }
+}
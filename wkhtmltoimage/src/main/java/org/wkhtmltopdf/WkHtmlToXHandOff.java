@@ -0,0 +1,34 @@
+package org.wkhtmltopdf;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How callers wait for conversions rendered on other threads. Replaced by a variant for virtual
+ * threads in the Java 21 release of the multi-release JAR.
+ */
+final class WkHtmlToXHandOff {
+
+    private WkHtmlToXHandOff() {
+    }
+
+    /**
+     * Waits for the result of a task.
+     */
+    static <T> T await(CompletableFuture<T> result) throws InterruptedException, ExecutionException {
+        return result.get();
+    }
+
+    /**
+     * Creates the executor running blocking operations on behalf of non-blocking callers.
+     */
+    static ExecutorService newCallerExecutor() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package org.wkhtmltopdf;
+
+/**
+ * Decides when a slow conversion rendered by a worker process is duplicated on an idle worker.
+ * The first attempt to finish provides the result, the other attempt is cancelled and its
+ * worker is replaced.
+ */
+public class WkHtmlToXHedgingPolicy {
+    private volatile double percentile = 0.95;
+    private volatile int minSamples = 20;
+    private volatile long minDelayMillis = 1000;
+
+    /**
+     * Creates a new {@code WkHtmlToXHedgingPolicy} hedging conversions running longer than the
+     * 95th percentile of their settings fingerprint, and at least one second.
+     */
+    public static WkHtmlToXHedgingPolicy create() {
+        return new WkHtmlToXHedgingPolicy();
+    }
+
+    /**
+     * The percentile (between 0 and 1) of the durations observed for the settings fingerprint
+     * after which a conversion is hedged.
+     */
+    public WkHtmlToXHedgingPolicy percentile(double percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1.");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * The amount of durations that must have been observed for the settings fingerprint before
+     * its conversions are hedged.
+     */
+    public WkHtmlToXHedgingPolicy minSamples(int minSamples) {
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * The minimum time, in milliseconds, a conversion runs before it is hedged.
+     */
+    public WkHtmlToXHedgingPolicy minDelay(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+        return this;
+    }
+
+    /**
+     * Returns the delay, in milliseconds, after which the job should be hedged, or -1 if it
+     * should not be hedged.
+     */
+    public long getDelay(WkHtmlToXCostModel costModel, WkHtmlToXJob job) {
+        if (job == null) {
+            return -1;
+        }
+        long threshold = costModel.percentile(job, percentile, minSamples);
+        return threshold < 0 ? -1 : Math.max(minDelayMillis, threshold);
+    }
+}
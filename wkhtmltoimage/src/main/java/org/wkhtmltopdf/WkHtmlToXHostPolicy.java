@@ -0,0 +1,59 @@
+package org.wkhtmltopdf;
+
+/**
+ * Scheduling limits applied to all conversions loading pages from the same host, protecting the
+ * host from being overloaded by a large batch of conversions.
+ */
+public class WkHtmlToXHostPolicy {
+    private volatile int maxInFlight = Integer.MAX_VALUE;
+    private volatile double ratePerSecond;
+    private volatile int burst = 1;
+
+    /**
+     * Creates a new {@code WkHtmlToXHostPolicy} without limits.
+     */
+    public static WkHtmlToXHostPolicy create() {
+        return new WkHtmlToXHostPolicy();
+    }
+
+    /**
+     * The maximum amount of conversions loading pages from the host that may be running at the same time.
+     */
+    public WkHtmlToXHostPolicy maxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("In-flight limit must be positive.");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * The maximum rate at which conversions loading pages from the host are started, with bursts
+     * of up to the specified amount of conversions after idle periods. A rate of 0 disables
+     * the limit.
+     */
+    public WkHtmlToXHostPolicy rate(double perSecond, int burst) {
+        if (perSecond < 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must not be negative and burst must be positive.");
+        }
+        this.ratePerSecond = perSecond;
+        this.burst = burst;
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    boolean isUnlimited() {
+        return maxInFlight == Integer.MAX_VALUE && ratePerSecond == 0;
+    }
+}
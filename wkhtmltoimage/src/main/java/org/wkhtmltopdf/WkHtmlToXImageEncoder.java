@@ -0,0 +1,219 @@
+package org.wkhtmltopdf;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decodes images rendered by the native library and encodes them with {@link ImageIO} on a pool
+ * of Java threads, one per core, so that compression does not occupy the render thread. Any
+ * format with a registered ImageIO writer can be produced, e.g. WebP if a WebP plugin is on the
+ * classpath.
+ */
+public final class WkHtmlToXImageEncoder {
+    private static final WkHtmlToXImageEncoder instance =
+            new WkHtmlToXImageEncoder(Runtime.getRuntime().availableProcessors());
+    private static final int DEFAULT_JPEG_QUALITY = 94;
+    private final ThreadPoolExecutor pool;
+    private final LongAdder encoded;
+
+    private WkHtmlToXImageEncoder(int threads) {
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        metrics.gauge("encoder.queued", () -> pool.getQueue().size());
+        metrics.gauge("encoder.active", pool::getActiveCount);
+        encoded = metrics.counter("encoder.encoded");
+    }
+
+    public static WkHtmlToXImageEncoder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns whether ImageIO can write the specified format, e.g. "png" or "jpg".
+     */
+    public static boolean canEncode(String format) {
+        return ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    /**
+     * Decodes an image, e.g. a BMP rendered by the native library, on the encoder pool.
+     */
+    public CompletableFuture<BufferedImage> decode(byte[] image) {
+        return CompletableFuture.supplyAsync(() -> read(image), pool);
+    }
+
+    /**
+     * Encodes an image on the encoder pool.
+     *
+     * @param quality The compression quality (1-100) for lossy formats, or -1 for the default.
+     */
+    public CompletableFuture<byte[]> encode(BufferedImage image, String format, int quality) {
+        return CompletableFuture.supplyAsync(() -> write(image, format, quality), pool);
+    }
+
+    /**
+     * Scales an image and encodes it on the encoder pool. A width or height of 0 is derived from the
+     * other dimension, keeping the aspect ratio; if both are 0 the image is not scaled.
+     *
+     * @param quality The compression quality (1-100) for lossy formats, or -1 for the default.
+     */
+    public CompletableFuture<byte[]> encode(BufferedImage image, int width, int height, String format, int quality) {
+        return CompletableFuture.supplyAsync(() -> write(scale(image, width, height), format, quality), pool);
+    }
+
+    /**
+     * Cuts a region out of an image and encodes it on the encoder pool. The region is clipped to
+     * the bounds of the image.
+     *
+     * @param quality The compression quality (1-100) for lossy formats, or -1 for the default.
+     * @throws WkHtmlToXException if the region lies outside of the image
+     */
+    public CompletableFuture<byte[]> encodeRegion(BufferedImage image, int left, int top, int width, int height,
+                                                  String format, int quality) {
+        int x = Math.max(0, left);
+        int y = Math.max(0, top);
+        int right = Math.min(image.getWidth(), left + width);
+        int bottom = Math.min(image.getHeight(), top + height);
+        if (right <= x || bottom <= y) {
+            throw new WkHtmlToXException("Region " + width + "x" + height + "+" + left + "+" + top
+                    + " lies outside of the " + image.getWidth() + "x" + image.getHeight() + " image");
+        }
+        return CompletableFuture.supplyAsync(() ->
+                write(image.getSubimage(x, y, right - x, bottom - y), format, quality), pool);
+    }
+
+    /**
+     * Decodes an image and encodes it to another format on the encoder pool, waiting for the result.
+     *
+     * @param quality The compression quality (1-100) for lossy formats, or -1 for the default.
+     * @throws WkHtmlToXException if the image could not be decoded or encoded
+     */
+    public byte[] transcode(byte[] image, String format, int quality) {
+        return await(CompletableFuture.supplyAsync(() -> write(read(image), format, quality), pool));
+    }
+
+    /**
+     * Waits for a future of this encoder, rethrowing its failure.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new WkHtmlToXException("Image encoding failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread is interrupted!", e);
+        }
+    }
+
+    private static BufferedImage read(byte[] image) {
+        try {
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+            if (decoded == null) {
+                throw new WkHtmlToXException("Rendered image has an unsupported format");
+            }
+            return decoded;
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to decode rendered image", e);
+        }
+    }
+
+    private byte[] write(BufferedImage image, String format, int quality) {
+        String name = format.toLowerCase(Locale.ROOT);
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(name);
+        if (!writers.hasNext()) {
+            throw new WkHtmlToXException("No ImageIO writer for format '" + format + "'");
+        }
+        ImageWriter writer = writers.next();
+        boolean jpeg = name.equals("jpg") || name.equals("jpeg");
+        if (jpeg && image.getColorModel().hasAlpha()) {
+            image = withoutAlpha(image);
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed() && (quality >= 0 || jpeg)) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null && param.getCompressionTypes().length > 0) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality((quality >= 0 ? quality : DEFAULT_JPEG_QUALITY) / 100f);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to encode image as " + format, e);
+        } finally {
+            writer.dispose();
+        }
+        encoded.increment();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Scales an image to the specified size, halving it repeatedly when shrinking by more than a
+     * factor of two so that thumbnails stay smooth.
+     */
+    static BufferedImage scale(BufferedImage image, int width, int height) {
+        if (width <= 0 && height <= 0) {
+            return image;
+        }
+        if (width <= 0) {
+            width = Math.max(1, (int) Math.round((double) image.getWidth() * height / image.getHeight()));
+        } else if (height <= 0) {
+            height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+        }
+        BufferedImage scaled = image;
+        do {
+            int stepWidth = Math.max(width, scaled.getWidth() / 2);
+            int stepHeight = Math.max(height, scaled.getHeight() / 2);
+            if (scaled.getWidth() <= width || scaled.getHeight() <= height) {
+                stepWidth = width;
+                stepHeight = height;
+            }
+            BufferedImage step = new BufferedImage(stepWidth, stepHeight, scaled.getColorModel().hasAlpha()
+                    ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(scaled, 0, 0, stepWidth, stepHeight, null);
+            graphics.dispose();
+            scaled = step;
+        } while (scaled.getWidth() != width || scaled.getHeight() != height);
+        return scaled;
+    }
+
+    private static BufferedImage withoutAlpha(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        graphics.dispose();
+        return rgb;
+    }
+}
@@ -0,0 +1,263 @@
+package org.wkhtmltopdf;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Describes a conversion independently of the converter that created it: the global settings,
+ * the objects to convert and the tenant it is scheduled under.
+ */
+public class WkHtmlToXJob {
+
+    public enum Type {
+        PDF,
+        IMAGE
+    }
+
+    /**
+     * Settings which point at the input or output of a conversion rather than at how it is rendered.
+     */
+    private static final List<String> LOCATION_SETTINGS = Arrays.asList("in", "out", "page");
+
+    private final Type type;
+    private final String tenant;
+    private final Map<String, String> settings;
+    private final List<Input> inputs;
+    private volatile String settingsFingerprint;
+    private volatile String fingerprint;
+
+    private WkHtmlToXJob(Type type, String tenant, Map<String, String> settings, List<Input> inputs) {
+        this.type = type;
+        this.tenant = tenant == null ? "" : tenant;
+        this.settings = Collections.unmodifiableMap(new TreeMap<>(settings));
+        this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+    }
+
+    /**
+     * Creates a job converting the specified objects into a single PDF document.
+     */
+    public static WkHtmlToXJob pdf(String tenant, Map<String, String> settings, List<Input> objects) {
+        return new WkHtmlToXJob(Type.PDF, tenant, settings, objects);
+    }
+
+    /**
+     * Creates a job converting the specified HTML, or the "in" setting if the HTML is {@code null}, to an image.
+     */
+    public static WkHtmlToXJob image(String tenant, Map<String, String> settings, String htmlData) {
+        return new WkHtmlToXJob(Type.IMAGE, tenant, settings,
+                Collections.singletonList(new Input(Collections.emptyMap(), htmlData)));
+    }
+
+    /**
+     * Returns a copy of the job with the specified global setting changed, or removed if the
+     * value is {@code null}.
+     */
+    public WkHtmlToXJob withSetting(String name, String value) {
+        Map<String, String> settings = new TreeMap<>(this.settings);
+        if (value == null) {
+            settings.remove(name);
+        } else {
+            settings.put(name, value);
+        }
+        return new WkHtmlToXJob(type, tenant, settings, inputs);
+    }
+
+    /**
+     * Returns a copy of the job converting the specified objects instead.
+     */
+    public WkHtmlToXJob withInputs(List<Input> inputs) {
+        return new WkHtmlToXJob(type, tenant, settings, inputs);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Returns the global settings of the conversion.
+     */
+    public Map<String, String> getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the objects to convert. Image jobs always have exactly one input.
+     */
+    public List<Input> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * Returns the amount of objects to convert.
+     */
+    public int getObjectCount() {
+        return inputs.size();
+    }
+
+    /**
+     * Returns the lower case hosts of the http and https URLs the job loads its objects from,
+     * i.e. the "in" setting of image jobs and the "page" settings of PDF objects.
+     */
+    public Set<String> getHosts() {
+        Set<String> hosts = new TreeSet<>();
+        if (type == Type.IMAGE) {
+            addHost(hosts, settings.get("in"));
+        }
+        for (Input input : inputs) {
+            addHost(hosts, input.getSettings().get("page"));
+        }
+        return hosts;
+    }
+
+    private static void addHost(Set<String> hosts, String url) {
+        if (url == null) {
+            return;
+        }
+        String lower = url.trim().toLowerCase(Locale.ROOT);
+        if (!lower.startsWith("http://") && !lower.startsWith("https://")) {
+            return;
+        }
+        try {
+            String host = new URI(url.trim()).getHost();
+            if (host != null) {
+                hosts.add(host.toLowerCase(Locale.ROOT));
+            }
+        } catch (URISyntaxException e) {
+            // Not a URL the native library could load either.
+        }
+    }
+
+    /**
+     * Returns the total length of the HTML passed in directly, in characters.
+     */
+    public long getInputSize() {
+        return inputs.stream()
+                .mapToLong(input -> input.getHtmlData() == null ? 0 : input.getHtmlData().length())
+                .sum();
+    }
+
+    /**
+     * Returns the total javascript delay, in milliseconds, the conversion waits for across all objects.
+     */
+    public long getJavascriptDelay() {
+        long delay = parseLong(settings.get("load.jsdelay"));
+        for (Input input : inputs) {
+            delay += parseLong(input.getSettings().get("load.jsdelay"));
+        }
+        return delay;
+    }
+
+    /**
+     * Returns a digest of the settings of the job, leaving out the input and output locations
+     * and the HTML content. Conversions with equal fingerprints are rendered the same way and
+     * tend to have similar costs.
+     */
+    public String getSettingsFingerprint() {
+        String fingerprint = settingsFingerprint;
+        if (fingerprint == null) {
+            StringBuilder sb = new StringBuilder(type.name());
+            appendSettings(sb, settings);
+            for (Input input : inputs) {
+                sb.append('|');
+                appendSettings(sb, input.getSettings());
+            }
+            fingerprint = sha256(sb.toString());
+            settingsFingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns a digest of everything the converted document depends on: the settings, the input
+     * locations and the HTML content, but not the output location. Conversions with equal
+     * fingerprints produce the same document, as long as the pages they load do not change.
+     */
+    public String getFingerprint() {
+        String fingerprint = this.fingerprint;
+        if (fingerprint == null) {
+            StringBuilder sb = new StringBuilder(type.name());
+            settings.forEach((k, v) -> {
+                if (!k.equals("out")) {
+                    sb.append(k).append('=').append(v).append(';');
+                }
+            });
+            for (Input input : inputs) {
+                sb.append('|');
+                input.getSettings().forEach((k, v) -> sb.append(k).append('=').append(v).append(';'));
+                sb.append('|').append(input.getHtmlData());
+            }
+            fingerprint = sha256(sb.toString());
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    private static void appendSettings(StringBuilder sb, Map<String, String> settings) {
+        settings.forEach((k, v) -> {
+            if (!LOCATION_SETTINGS.contains(k)) {
+                sb.append(k).append('=').append(v).append(';');
+            }
+        });
+    }
+
+    static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * An object of a conversion: its settings and the HTML to convert, if not loaded from a URL.
+     */
+    public static class Input {
+        private final Map<String, String> settings;
+        private final String htmlData;
+
+        public Input(Map<String, String> settings, String htmlData) {
+            this.settings = Collections.unmodifiableMap(new TreeMap<>(settings));
+            this.htmlData = htmlData;
+        }
+
+        public Map<String, String> getSettings() {
+            return settings;
+        }
+
+        public String getHtmlData() {
+            return htmlData;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.wkhtmltopdf;
+
+/**
+ * Receives the events reported while a job is being converted.
+ */
+public interface WkHtmlToXListener {
+
+    WkHtmlToXListener NONE = new WkHtmlToXListener() {
+    };
+
+    default void warning(String message) {
+    }
+
+    default void error(String message) {
+    }
+
+    default void progress(WkHtmlToXProgress progress) {
+    }
+
+    default void finished(boolean success) {
+    }
+}
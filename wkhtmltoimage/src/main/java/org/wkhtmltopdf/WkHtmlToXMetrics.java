@@ -0,0 +1,48 @@
+package org.wkhtmltopdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named gauges and counters describing the state of the library, e.g. the
+ * current concurrency limit or the amount of queued conversions.
+ */
+public class WkHtmlToXMetrics {
+    private static final WkHtmlToXMetrics instance = new WkHtmlToXMetrics();
+    private final Map<String, Supplier<? extends Number>> metrics = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+
+    public static WkHtmlToXMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers a gauge, replacing any metric previously registered under the same name.
+     */
+    public void gauge(String name, Supplier<? extends Number> gauge) {
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * Returns the counter registered under the specified name, registering it if necessary.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> {
+            LongAdder counter = new LongAdder();
+            metrics.put(n, counter::sum);
+            return counter;
+        });
+    }
+
+    /**
+     * Returns the current value of every metric, ordered by name.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        metrics.forEach((name, metric) -> snapshot.put(name, metric.get()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,106 @@
+package org.wkhtmltopdf;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finishes the loading of a page as soon as the page signals it is ready, instead of after a
+ * fixed JavaScript delay. A page signals readiness by setting {@code window.status} to an agreed
+ * value; if it does not within the maximum wait, the page is converted anyway.
+ * <p>
+ * An injected script watches the status and reports how long pages waited, which is recorded in
+ * the {@link WkHtmlToXMetrics} as "readiness.signalled", "readiness.timedOut",
+ * "readiness.waitMillis.total" and "readiness.waitMillis.max". Scripts appended with
+ * {@link #whenReady(String)} run once the page is ready, right before it is converted.
+ */
+public final class WkHtmlToXReadiness {
+    private static final String READY = "wkhtmltox-ready";
+    private static final String TIMED_OUT = "wkhtmltox-ready-timeout";
+    private static final String RUN_SCRIPT = "load.runScript.append";
+    private static final LongAdder signalled;
+    private static final LongAdder timedOut;
+    private static final LongAdder waitMillis;
+    private static final AtomicLong maxWaitMillis = new AtomicLong();
+
+    static {
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        signalled = metrics.counter("readiness.signalled");
+        timedOut = metrics.counter("readiness.timedOut");
+        waitMillis = metrics.counter("readiness.waitMillis.total");
+        metrics.gauge("readiness.waitMillis.max", maxWaitMillis::get);
+    }
+
+    private WkHtmlToXReadiness() {
+    }
+
+    /**
+     * Adds the settings waiting for the page to set {@code window.status} to the specified value
+     * to the load settings of a page.
+     *
+     * @param settings      The settings of an image conversion or of a PDF object.
+     * @param windowStatus  The value of {@code window.status} signalling readiness.
+     * @param maxWaitMillis The time, after the page has loaded, after which it is converted anyway.
+     */
+    public static void configure(Map<String, String> settings, String windowStatus, long maxWaitMillis) {
+        // The native loader waits for a status only set by the injected script, so that scripts
+        // waiting for readiness have run before the page is converted. It only polls the status
+        // after a positive JavaScript delay, so the smallest one is kept.
+        String internalStatus = windowStatus + "-" + READY;
+        settings.put("load.windowStatus", internalStatus);
+        settings.put("load.jsdelay", "1");
+        settings.put("load.debugJavascript", "true");
+        settings.put(RUN_SCRIPT, "(function(){var s=" + WkHtmlToXScripts.string(windowStatus)
+                + ",t=new Date().getTime(),q=[],done=false,i,o;"
+                + "function fire(ready){if(done)return;done=true;clearInterval(i);clearTimeout(o);"
+                + "var w=new Date().getTime()-t;"
+                + "if(ready){" + WkHtmlToXScripts.log(READY, "w") + "}"
+                + "else{" + WkHtmlToXScripts.log(TIMED_OUT, "w") + "}"
+                + "for(var k=0;k<q.length;k++){try{q[k]();}catch(e){}}"
+                + "window.status=" + WkHtmlToXScripts.string(internalStatus) + ";}"
+                + "window.__wkhtmltoxWhenReady=function(f){if(done)f();else q.push(f);};"
+                + "i=setInterval(function(){if(window.status===s)fire(true);},10);"
+                + "o=setTimeout(function(){fire(false);}," + maxWaitMillis + ");"
+                + "if(window.status===s)fire(true);})();\n"
+                + settings.getOrDefault(RUN_SCRIPT, ""));
+    }
+
+    /**
+     * Appends a script run once the page is loaded, or once it is ready if the settings wait for
+     * readiness, to the settings of a page.
+     */
+    public static void append(Map<String, String> settings, String script) {
+        settings.merge(RUN_SCRIPT, whenReady(script), (previous, appended) -> previous + "\n" + appended);
+    }
+
+    /**
+     * Wraps a script so that it runs once the page is ready, or right away if the page does not
+     * wait for readiness.
+     */
+    public static String whenReady(String script) {
+        return "(window.__wkhtmltoxWhenReady||function(f){f();})(function(){" + script + "});";
+    }
+
+    /**
+     * Records the waits reported in the log of a conversion.
+     */
+    public static void record(List<String> log) {
+        for (String line : log) {
+            boolean ready = line.contains(READY + ":");
+            if (!ready && !line.contains(TIMED_OUT + ":")) {
+                continue;
+            }
+            String marker = (ready ? READY : TIMED_OUT) + ":";
+            long wait;
+            try {
+                wait = Long.parseLong(line.substring(line.indexOf(marker) + marker.length()).trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            (ready ? signalled : timedOut).increment();
+            waitMillis.add(wait);
+            maxWaitMillis.accumulateAndGet(wait, Math::max);
+        }
+    }
+}
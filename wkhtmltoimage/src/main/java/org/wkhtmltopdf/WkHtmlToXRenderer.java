@@ -0,0 +1,141 @@
+package org.wkhtmltopdf;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Converts a {@link WkHtmlToXJob} using the native library. Must only be called from the thread
+ * owning the library, which is the render thread of the {@link WkHtmlToXTaskExecutor} or the
+ * main thread of a render worker process.
+ */
+public final class WkHtmlToXRenderer {
+    private static final AtomicBoolean pdfInitialized = new AtomicBoolean(false);
+    private static final AtomicBoolean imageInitialized = new AtomicBoolean(false);
+
+    private WkHtmlToXRenderer() {
+    }
+
+    public static WkHtmlToXResult render(WkHtmlToX wkHtmlToX, WkHtmlToXJob job, WkHtmlToXListener listener) {
+        List<String> log = new ArrayList<>();
+        WkHtmlToXListener logging = new WkHtmlToXListener() {
+            @Override
+            public void warning(String message) {
+                log.add("Warning: " + message);
+                listener.warning(message);
+            }
+
+            @Override
+            public void error(String message) {
+                log.add("Error: " + message);
+                listener.error(message);
+            }
+
+            @Override
+            public void progress(WkHtmlToXProgress progress) {
+                listener.progress(progress);
+            }
+
+            @Override
+            public void finished(boolean success) {
+                listener.finished(success);
+            }
+        };
+        boolean toMemory = !job.getSettings().containsKey("out");
+        int[] httpErrorCode = new int[1];
+        byte[] output;
+        if (job.getType() == WkHtmlToXJob.Type.PDF) {
+            output = renderPdf(wkHtmlToX, job, logging, toMemory, httpErrorCode);
+        } else {
+            output = renderImage(wkHtmlToX, job, logging, toMemory, httpErrorCode);
+        }
+        boolean success = output != null;
+        return new WkHtmlToXResult(success, toMemory ? output : null, log, httpErrorCode[0]);
+    }
+
+    private static byte[] renderPdf(WkHtmlToX wkHtmlToX, WkHtmlToXJob job, WkHtmlToXListener listener,
+                                    boolean toMemory, int[] httpErrorCode) {
+        if (!pdfInitialized.get()) {
+            wkHtmlToX.wkhtmltopdf_init(0);
+            pdfInitialized.set(true);
+        }
+        Pointer globalSettings = wkHtmlToX.wkhtmltopdf_create_global_settings();
+        job.getSettings().forEach((k, v) -> wkHtmlToX.wkhtmltopdf_set_global_setting(globalSettings, k, v));
+        Pointer converter = wkHtmlToX.wkhtmltopdf_create_converter(globalSettings);
+        WkHtmlToX.wkhtmltopdf_str_callback warning = (c, s) -> listener.warning(s);
+        WkHtmlToX.wkhtmltopdf_str_callback error = (c, s) -> listener.error(s);
+        WkHtmlToX.wkhtmltopdf_int_callback progress = (c, phaseProgress) -> {
+            int phase = wkHtmlToX.wkhtmltopdf_current_phase(c);
+            int totalPhases = wkHtmlToX.wkhtmltopdf_phase_count(c);
+            String phaseDesc = wkHtmlToX.wkhtmltopdf_phase_description(c, phase);
+            listener.progress(new WkHtmlToXProgress(phase, phaseDesc, totalPhases, phaseProgress));
+        };
+        WkHtmlToX.wkhtmltopdf_int_callback finished = (c, i) -> listener.finished(i == 1);
+        wkHtmlToX.wkhtmltopdf_set_warning_callback(converter, warning);
+        wkHtmlToX.wkhtmltopdf_set_error_callback(converter, error);
+        wkHtmlToX.wkhtmltopdf_set_progress_changed_callback(converter, progress);
+        wkHtmlToX.wkhtmltopdf_set_finished_callback(converter, finished);
+        try {
+            for (WkHtmlToXJob.Input input : job.getInputs()) {
+                Pointer objectSettings = wkHtmlToX.wkhtmltopdf_create_object_settings();
+                input.getSettings().forEach((k, v) -> wkHtmlToX.wkhtmltopdf_set_object_setting(objectSettings, k, v));
+                wkHtmlToX.wkhtmltopdf_add_object(converter, objectSettings, input.getHtmlData());
+            }
+            int converted = wkHtmlToX.wkhtmltopdf_convert(converter);
+            httpErrorCode[0] = wkHtmlToX.wkhtmltopdf_http_error_code(converter);
+            if (converted != 1) {
+                return null;
+            }
+            if (!toMemory) {
+                return new byte[0];
+            }
+            PointerByReference out = new PointerByReference();
+            long size = wkHtmlToX.wkhtmltopdf_get_output(converter, out);
+            return out.getValue().getByteArray(0, (int) size);
+        } finally {
+            wkHtmlToX.wkhtmltopdf_destroy_converter(converter);
+        }
+    }
+
+    private static byte[] renderImage(WkHtmlToX wkHtmlToX, WkHtmlToXJob job, WkHtmlToXListener listener,
+                                      boolean toMemory, int[] httpErrorCode) {
+        if (!imageInitialized.get()) {
+            wkHtmlToX.wkhtmltoimage_init(0);
+            imageInitialized.set(true);
+        }
+        Pointer globalSettings = wkHtmlToX.wkhtmltoimage_create_global_settings();
+        job.getSettings().forEach((k, v) -> wkHtmlToX.wkhtmltoimage_set_global_setting(globalSettings, k, v));
+        Pointer converter = wkHtmlToX.wkhtmltoimage_create_converter(globalSettings, job.getInputs().get(0).getHtmlData());
+        WkHtmlToX.wkhtmltoimage_str_callback warning = (c, s) -> listener.warning(s);
+        WkHtmlToX.wkhtmltoimage_str_callback error = (c, s) -> listener.error(s);
+        WkHtmlToX.wkhtmltoimage_int_callback progress = (c, phaseProgress) -> {
+            int phase = wkHtmlToX.wkhtmltoimage_current_phase(c);
+            int totalPhases = wkHtmlToX.wkhtmltoimage_phase_count(c);
+            String phaseDesc = wkHtmlToX.wkhtmltoimage_phase_description(c, phase);
+            listener.progress(new WkHtmlToXProgress(phase, phaseDesc, totalPhases, phaseProgress));
+        };
+        WkHtmlToX.wkhtmltoimage_int_callback finished = (c, i) -> listener.finished(i == 1);
+        wkHtmlToX.wkhtmltoimage_set_warning_callback(converter, warning);
+        wkHtmlToX.wkhtmltoimage_set_error_callback(converter, error);
+        wkHtmlToX.wkhtmltoimage_set_progress_changed_callback(converter, progress);
+        wkHtmlToX.wkhtmltoimage_set_finished_callback(converter, finished);
+        try {
+            int converted = wkHtmlToX.wkhtmltoimage_convert(converter);
+            httpErrorCode[0] = wkHtmlToX.wkhtmltoimage_http_error_code(converter);
+            if (converted != 1) {
+                return null;
+            }
+            if (!toMemory) {
+                return new byte[0];
+            }
+            PointerByReference out = new PointerByReference();
+            long size = wkHtmlToX.wkhtmltoimage_get_output(converter, out);
+            return out.getValue().getByteArray(0, (int) size);
+        } finally {
+            wkHtmlToX.wkhtmltoimage_destroy_converter(converter);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.wkhtmltopdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a converted job.
+ */
+public class WkHtmlToXResult {
+    private final boolean success;
+    private final ByteBuffer buffer;
+    private volatile byte[] output;
+    private final List<String> log;
+    private final int httpErrorCode;
+
+    public WkHtmlToXResult(boolean success, byte[] output, List<String> log) {
+        this(success, output, log, 0);
+    }
+
+    public WkHtmlToXResult(boolean success, byte[] output, List<String> log, int httpErrorCode) {
+        this(success, output == null ? null : ByteBuffer.wrap(output), output, log, httpErrorCode);
+    }
+
+    private WkHtmlToXResult(boolean success, ByteBuffer buffer, byte[] output, List<String> log, int httpErrorCode) {
+        this.success = success;
+        this.buffer = buffer == null ? null : buffer.asReadOnlyBuffer();
+        this.output = output;
+        this.log = Collections.unmodifiableList(log);
+        this.httpErrorCode = httpErrorCode;
+    }
+
+    /**
+     * Creates a result whose document is held in a buffer, e.g. a file mapped into memory, which
+     * is only copied if {@link #getOutput()} is called.
+     */
+    public static WkHtmlToXResult ofBuffer(boolean success, ByteBuffer output, List<String> log, int httpErrorCode) {
+        return new WkHtmlToXResult(success, output, null, log, httpErrorCode);
+    }
+
+    /**
+     * Returns whether the conversion completed successfully.
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Returns the converted document, or {@code null} if the conversion failed or the
+     * document was written to the "out" location.
+     */
+    public byte[] getOutput() {
+        byte[] output = this.output;
+        if (output == null && buffer != null) {
+            output = new byte[buffer.remaining()];
+            buffer.duplicate().get(output);
+            this.output = output;
+        }
+        return output;
+    }
+
+    /**
+     * Returns a read-only buffer over the converted document, without copying it, or
+     * {@code null} if there is no converted document.
+     */
+    public ByteBuffer getOutputBuffer() {
+        return buffer == null ? null : buffer.duplicate();
+    }
+
+    /**
+     * Returns the size of the converted document in bytes, or -1 if there is none.
+     */
+    public int getOutputSize() {
+        return buffer == null ? -1 : buffer.remaining();
+    }
+
+    /**
+     * Returns an {@code InputStream} over the converted document, reading it without copying.
+     *
+     * @throws WkHtmlToXException if there is no converted document
+     */
+    public InputStream toInputStream() {
+        if (buffer == null) {
+            throw new WkHtmlToXException("Conversion produced no output");
+        }
+        if (output != null) {
+            return new ByteArrayInputStream(output);
+        }
+        ByteBuffer source = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, source.remaining());
+                source.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public long skip(long n) {
+                int count = (int) Math.max(0, Math.min(n, source.remaining()));
+                source.position(source.position() + count);
+                return count;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return source.remaining();
+            }
+        };
+    }
+
+    /**
+     * Returns the warnings and errors reported during the conversion, prefixed with "Warning: "
+     * and "Error: " respectively.
+     */
+    public List<String> getLog() {
+        return log;
+    }
+
+    /**
+     * Returns the HTTP status code of the page if loading it failed with an HTTP error, e.g. 404
+     * or 503, or 0 otherwise.
+     */
+    public int getHttpErrorCode() {
+        return httpErrorCode;
+    }
+
+    /**
+     * Returns the message of a {@link WkHtmlToXException} reporting that the conversion failed.
+     */
+    public String getFailureMessage() {
+        return "Conversion returned with failure"
+                + (httpErrorCode == 0 ? "" : " (HTTP error code " + httpErrorCode + ")")
+                + ". Log:\n" + String.join("\n", log);
+    }
+}
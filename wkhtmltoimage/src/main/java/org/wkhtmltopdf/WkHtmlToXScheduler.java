@@ -0,0 +1,458 @@
+package org.wkhtmltopdf;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders pending conversions across tenants using deficit round-robin, so that every tenant
+ * with waiting work receives a share of the render capacity proportional to its weight.
+ * Per-tenant queue and in-flight limits keep a single busy tenant from growing the queue
+ * or occupying all render slots.
+ * <p>
+ * Within a tenant, conversions are ordered shortest-expected-first: each task is estimated by
+ * the {@link WkHtmlToXCostModel} and ranked by its submission time pushed back by its estimated
+ * cost times the stretch factor. Cheap conversions thus overtake expensive ones, while an
+ * expensive conversion can only be overtaken by conversions submitted within a bounded time
+ * after it, so it is never starved. The deficit of a tenant is accounted in the same
+ * estimated milliseconds.
+ * <p>
+ * Conversions loading pages from a host at its in-flight or rate limit are passed over in favour
+ * of the next conversion of the tenant for another host; they keep their place in the queue.
+ */
+public class WkHtmlToXScheduler {
+    private static final Comparator<WkHtmlToXTask<?>> ORDER = Comparator
+            .<WkHtmlToXTask<?>>comparingLong(WkHtmlToXTask::getPriority)
+            .thenComparingLong(WkHtmlToXTask::getSequence);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition runnable = lock.newCondition();
+    private final Map<String, WkHtmlToXTenantPolicy> policies = new ConcurrentHashMap<>();
+    private final Map<String, TenantQueue> queues = new HashMap<>();
+    private final Deque<TenantQueue> active = new ArrayDeque<>();
+    private final Map<String, WkHtmlToXHostPolicy> hostPolicies = new ConcurrentHashMap<>();
+    private final Map<String, HostState> hosts = new HashMap<>();
+    private volatile WkHtmlToXHostPolicy defaultHostPolicy = WkHtmlToXHostPolicy.create();
+    private volatile WkHtmlToXTenantPolicy defaultPolicy = WkHtmlToXTenantPolicy.create();
+    private volatile WkHtmlToXCostModel costModel = new WkHtmlToXCostModel();
+    private volatile double stretch = 2.0;
+    private volatile long quantum = 100;
+    private long sequence;
+    private long nextTokenNanos = Long.MAX_VALUE;
+
+    /**
+     * Sets the policy used for tenants without an explicitly configured policy.
+     */
+    public WkHtmlToXScheduler defaultTenantPolicy(WkHtmlToXTenantPolicy policy) {
+        this.defaultPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Sets the policy of the specified tenant.
+     */
+    public WkHtmlToXScheduler tenant(String tenant, WkHtmlToXTenantPolicy policy) {
+        policies.put(tenant, policy);
+        return this;
+    }
+
+    /**
+     * Sets the policy used for hosts without an explicitly configured policy.
+     */
+    public WkHtmlToXScheduler defaultHostPolicy(WkHtmlToXHostPolicy policy) {
+        this.defaultHostPolicy = policy;
+        signal();
+        return this;
+    }
+
+    /**
+     * Sets the policy of the specified host, e.g. "api.example.com", limiting conversions
+     * loading pages from it.
+     */
+    public WkHtmlToXScheduler host(String host, WkHtmlToXHostPolicy policy) {
+        hostPolicies.put(host.toLowerCase(Locale.ROOT), policy);
+        signal();
+        return this;
+    }
+
+    public WkHtmlToXHostPolicy getHostPolicy(String host) {
+        return hostPolicies.getOrDefault(host, defaultHostPolicy);
+    }
+
+    /**
+     * Sets the model used to estimate the cost of submitted conversions.
+     */
+    public WkHtmlToXScheduler costModel(WkHtmlToXCostModel costModel) {
+        this.costModel = costModel;
+        return this;
+    }
+
+    public WkHtmlToXCostModel getCostModel() {
+        return costModel;
+    }
+
+    /**
+     * How far, relative to its estimated cost, a conversion is pushed back in the queue of its
+     * tenant. With a stretch of 2, a conversion estimated at 10 seconds is ranked as if it was
+     * submitted 20 seconds later. A stretch of 0 renders conversions in submission order.
+     */
+    public WkHtmlToXScheduler shortestJobFirst(double stretch) {
+        if (stretch < 0) {
+            throw new IllegalArgumentException("Stretch must not be negative.");
+        }
+        this.stretch = stretch;
+        return this;
+    }
+
+    /**
+     * The estimated milliseconds of rendering a tenant of weight 1 is credited per round.
+     */
+    public WkHtmlToXScheduler quantum(long quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("Quantum must be positive.");
+        }
+        this.quantum = quantum;
+        return this;
+    }
+
+    public WkHtmlToXTenantPolicy getPolicy(String tenant) {
+        return policies.getOrDefault(tenant, defaultPolicy);
+    }
+
+    /**
+     * Adds a task to the queue of its tenant.
+     *
+     * @throws WkHtmlToXException if the queue limit of the tenant has been reached
+     */
+    public void submit(WkHtmlToXTask<?> task) {
+        String tenant = task.getTenant();
+        long cost = costModel.estimate(task.getJob());
+        long priority = System.nanoTime() + Math.round(cost * stretch * 1_000_000);
+        lock.lock();
+        try {
+            TenantQueue queue = queues.computeIfAbsent(tenant, TenantQueue::new);
+            int maxQueued = getPolicy(tenant).getMaxQueued();
+            if (queue.tasks.size() >= maxQueued) {
+                removeIfIdle(queue);
+                throw new WkHtmlToXException("Queue limit of " + maxQueued + " reached for tenant '" + tenant + "'");
+            }
+            task.schedule(cost, priority, sequence++);
+            queue.tasks.add(task);
+            if (queue.tasks.size() == 1) {
+                active.addLast(queue);
+            }
+            runnable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a task which has not started yet from the queue.
+     *
+     * @return {@code true} if the task was still queued
+     */
+    public boolean cancel(WkHtmlToXTask<?> task) {
+        lock.lock();
+        try {
+            TenantQueue queue = queues.get(task.getTenant());
+            if (queue == null || !queue.tasks.remove(task)) {
+                return false;
+            }
+            if (queue.tasks.isEmpty()) {
+                active.remove(queue);
+                queue.resetTurn();
+                removeIfIdle(queue);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a task may be started and removes it from the queue. The caller must
+     * invoke {@link #done(WkHtmlToXTask)} once the task has finished.
+     */
+    public WkHtmlToXTask<?> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                nextTokenNanos = Long.MAX_VALUE;
+                WkHtmlToXTask<?> task = poll();
+                if (task != null) {
+                    return task;
+                }
+                if (nextTokenNanos == Long.MAX_VALUE) {
+                    runnable.await();
+                } else {
+                    // Waiting for a rate limited host to be allowed another conversion.
+                    runnable.awaitNanos(Math.max(nextTokenNanos, 1_000_000));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the in-flight slot held by a task returned from {@link #take()}.
+     */
+    public void done(WkHtmlToXTask<?> task) {
+        lock.lock();
+        try {
+            TenantQueue queue = queues.get(task.getTenant());
+            if (queue != null) {
+                queue.inFlight--;
+                removeIfIdle(queue);
+            }
+            for (String host : task.getHosts()) {
+                HostState state = hosts.get(host);
+                if (state != null) {
+                    state.inFlight--;
+                    removeIfIdle(host, state, System.nanoTime());
+                }
+            }
+            runnable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of tasks waiting across all tenants.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queues.values().stream().mapToInt(q -> q.tasks.size()).sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of tasks of the specified tenant waiting in the queue.
+     */
+    public int getQueued(String tenant) {
+        lock.lock();
+        try {
+            TenantQueue queue = queues.get(tenant);
+            return queue == null ? 0 : queue.tasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of tasks of the specified tenant that have been started but not finished.
+     */
+    public int getInFlight(String tenant) {
+        lock.lock();
+        try {
+            TenantQueue queue = queues.get(tenant);
+            return queue == null ? 0 : queue.inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private WkHtmlToXTask<?> poll() {
+        while (true) {
+            long quantum = this.quantum;
+            long now = System.nanoTime();
+            boolean anyRunnable = false;
+            for (int i = active.size(); i > 0; i--) {
+                TenantQueue queue = active.peekFirst();
+                WkHtmlToXTenantPolicy policy = getPolicy(queue.tenant);
+                WkHtmlToXTask<?> head = queue.inFlight < policy.getMaxInFlight() ? next(queue, now) : null;
+                if (head == null) {
+                    // A tenant at its in-flight limit, or with only throttled conversions, forfeits
+                    // its turn instead of banking credit.
+                    queue.resetTurn();
+                    active.addLast(active.pollFirst());
+                    continue;
+                }
+                anyRunnable = true;
+                if (!queue.turnStarted) {
+                    queue.deficit += quantum * policy.getWeight();
+                    queue.turnStarted = true;
+                }
+                if (queue.deficit >= head.getEstimatedCost()) {
+                    queue.deficit -= head.getEstimatedCost();
+                    queue.tasks.remove(head);
+                    queue.inFlight++;
+                    start(head, now);
+                    if (queue.tasks.isEmpty()) {
+                        active.pollFirst();
+                        queue.resetTurn();
+                    }
+                    return head;
+                }
+                queue.turnStarted = false;
+                active.addLast(active.pollFirst());
+            }
+            if (!anyRunnable) {
+                return null;
+            }
+            skipIdleRounds(quantum, now);
+        }
+    }
+
+    /**
+     * Returns the first task of the tenant whose hosts are below their limits, or {@code null}.
+     */
+    private WkHtmlToXTask<?> next(TenantQueue queue, long now) {
+        if (hostPolicies.isEmpty() && defaultHostPolicy.isUnlimited()) {
+            return queue.tasks.first();
+        }
+        for (WkHtmlToXTask<?> task : queue.tasks) {
+            if (isStartable(task, now)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private boolean isStartable(WkHtmlToXTask<?> task, long now) {
+        for (String host : task.getHosts()) {
+            WkHtmlToXHostPolicy policy = getHostPolicy(host);
+            HostState state = hosts.get(host);
+            if (state == null || policy.isUnlimited()) {
+                continue;
+            }
+            if (state.inFlight >= policy.getMaxInFlight()) {
+                return false;
+            }
+            if (removeIfIdle(host, state, now)) {
+                continue;
+            }
+            long wait = state.nanosUntilToken(policy, now);
+            if (wait > 0) {
+                nextTokenNanos = Math.min(nextTokenNanos, wait);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a host once nothing runs against it and its bucket is full again.
+     */
+    private boolean removeIfIdle(String host, HostState state, long now) {
+        if (state.inFlight == 0 && state.nanosUntilToken(getHostPolicy(host), now) == 0
+                && state.tokens >= getHostPolicy(host).getBurst()) {
+            hosts.remove(host);
+            return true;
+        }
+        return false;
+    }
+
+    private void start(WkHtmlToXTask<?> task, long now) {
+        task.started();
+        for (String host : task.getHosts()) {
+            WkHtmlToXHostPolicy policy = getHostPolicy(host);
+            HostState state = hosts.computeIfAbsent(host, h -> new HostState(policy, now));
+            state.inFlight++;
+            state.takeToken(policy, now);
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            runnable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Credits every runnable tenant with the rounds that would pass before any of them can
+     * afford its next task, instead of looping through those rounds one quantum at a time.
+     */
+    private void skipIdleRounds(long quantum, long now) {
+        long rounds = Long.MAX_VALUE;
+        Map<TenantQueue, WkHtmlToXTask<?>> heads = new HashMap<>();
+        for (TenantQueue queue : active) {
+            WkHtmlToXTenantPolicy policy = getPolicy(queue.tenant);
+            WkHtmlToXTask<?> head = queue.inFlight < policy.getMaxInFlight() ? next(queue, now) : null;
+            if (head != null) {
+                heads.put(queue, head);
+                long credit = quantum * policy.getWeight();
+                long missing = head.getEstimatedCost() - queue.deficit;
+                rounds = Math.min(rounds, (missing + credit - 1) / credit);
+            }
+        }
+        for (TenantQueue queue : heads.keySet()) {
+            queue.deficit += (rounds - 1) * quantum * getPolicy(queue.tenant).getWeight();
+        }
+    }
+
+    private void removeIfIdle(TenantQueue queue) {
+        if (queue.tasks.isEmpty() && queue.inFlight == 0) {
+            queues.remove(queue.tenant);
+        }
+    }
+
+    /**
+     * The conversions running against a host and its token bucket, kept while any is running.
+     */
+    private static class HostState {
+        private int inFlight;
+        private double tokens;
+        private long refilled;
+
+        HostState(WkHtmlToXHostPolicy policy, long now) {
+            tokens = policy.getBurst();
+            refilled = now;
+        }
+
+        long nanosUntilToken(WkHtmlToXHostPolicy policy, long now) {
+            double rate = policy.getRatePerSecond();
+            if (rate == 0) {
+                tokens = policy.getBurst();
+                return 0;
+            }
+            refill(policy, now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * 1e9);
+        }
+
+        void takeToken(WkHtmlToXHostPolicy policy, long now) {
+            if (policy.getRatePerSecond() > 0) {
+                refill(policy, now);
+                tokens -= 1;
+            }
+        }
+
+        private void refill(WkHtmlToXHostPolicy policy, long now) {
+            tokens = Math.min(policy.getBurst(), tokens + (now - refilled) / 1e9 * policy.getRatePerSecond());
+            refilled = now;
+        }
+    }
+
+    private static class TenantQueue {
+        private final String tenant;
+        private final NavigableSet<WkHtmlToXTask<?>> tasks = new TreeSet<>(ORDER);
+        private int inFlight;
+        private long deficit;
+        private boolean turnStarted;
+
+        TenantQueue(String tenant) {
+            this.tenant = tenant;
+        }
+
+        void resetTurn() {
+            deficit = 0;
+            turnStarted = false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.wkhtmltopdf;
+
+import java.util.List;
+
+/**
+ * Helpers for JavaScript injected into converted pages which reports back to Java. With the
+ * "load.debugJavascript" setting enabled, console messages of the page are reported as warnings,
+ * so injected scripts log a marker followed by a value which is then looked up in the conversion log.
+ */
+public final class WkHtmlToXScripts {
+    /**
+     * The prefix of all markers logged by scripts injected by this library.
+     */
+    public static final String MARKER_PREFIX = "wkhtmltox-";
+
+    private WkHtmlToXScripts() {
+    }
+
+    /**
+     * Returns the value as a JavaScript string literal.
+     */
+    public static String string(String value) {
+        StringBuilder literal = new StringBuilder("'");
+        for (char c : value.toCharArray()) {
+            if (c == '\'' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < 0x20 || c == '<' || c == '>' || c == 0x2028 || c == 0x2029) {
+                literal.append(String.format("\\u%04x", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('\'').toString();
+    }
+
+    /**
+     * Returns a statement logging the marker followed by the value of the expression.
+     */
+    public static String log(String marker, String expression) {
+        return "console.log(" + string(marker + ":") + "+(" + expression + "));";
+    }
+
+    /**
+     * Returns whether a warning was logged by an injected script rather than by the page.
+     */
+    public static boolean isMarker(String message) {
+        return message.contains(MARKER_PREFIX) && message.matches("(?s).*" + MARKER_PREFIX + "[a-z-]+:.*");
+    }
+
+    /**
+     * Returns the value last logged with the marker by {@link #log(String, String)}, or
+     * {@code null} if the marker was not logged.
+     */
+    public static String find(List<String> log, String marker) {
+        String prefix = marker + ":";
+        for (int i = log.size() - 1; i >= 0; i--) {
+            String line = log.get(i);
+            int index = line.indexOf(prefix);
+            if (index >= 0) {
+                return line.substring(index + prefix.length()).trim();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+package org.wkhtmltopdf;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A unit of work waiting for, or running on, the native render thread.
+ */
+public class WkHtmlToXTask<T> {
+    private final String tenant;
+    private final WkHtmlToXJob job;
+    private final WkHtmlToXListener listener;
+    private final Function<WkHtmlToX, T> fn;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private long estimatedCost;
+    private long priority;
+    private long sequence;
+    private Set<String> hosts;
+    private volatile boolean started;
+
+    public WkHtmlToXTask(String tenant, Function<WkHtmlToX, T> fn) {
+        this(tenant, null, null, fn);
+    }
+
+    public WkHtmlToXTask(WkHtmlToXJob job, Function<WkHtmlToX, T> fn) {
+        this(job.getTenant(), job, null, fn);
+    }
+
+    private WkHtmlToXTask(String tenant, WkHtmlToXJob job, WkHtmlToXListener listener, Function<WkHtmlToX, T> fn) {
+        this.tenant = tenant == null ? "" : tenant;
+        this.job = job;
+        this.listener = listener;
+        this.fn = fn;
+    }
+
+    /**
+     * Creates a task converting the job with {@link WkHtmlToXRenderer}. Unlike tasks wrapping an
+     * arbitrary function, such tasks may also be rendered by worker processes.
+     */
+    public static WkHtmlToXTask<WkHtmlToXResult> render(WkHtmlToXJob job, WkHtmlToXListener listener) {
+        return new WkHtmlToXTask<>(job.getTenant(), job, listener,
+                wkHtmlToX -> WkHtmlToXRenderer.render(wkHtmlToX, job, listener));
+    }
+
+    /**
+     * Returns the tenant key the task is scheduled under. The default tenant is the empty string.
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Returns the conversion performed by the task, or {@code null} if it was not described.
+     */
+    public WkHtmlToXJob getJob() {
+        return job;
+    }
+
+    /**
+     * Returns the hosts the job of the task loads pages from.
+     *
+     * @see WkHtmlToXJob#getHosts()
+     */
+    public Set<String> getHosts() {
+        if (hosts == null) {
+            hosts = job == null ? Collections.emptySet() : job.getHosts();
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns whether the task converts its job with {@link WkHtmlToXRenderer}.
+     */
+    public boolean isRender() {
+        return listener != null;
+    }
+
+    /**
+     * Returns the listener receiving the events of a render task, or {@code null} for other tasks.
+     */
+    public WkHtmlToXListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Returns the duration, in milliseconds, the scheduler expected the task to take when it was submitted.
+     */
+    public long getEstimatedCost() {
+        return estimatedCost;
+    }
+
+    /**
+     * Returns the future completed with the outcome of the task.
+     */
+    public CompletableFuture<T> getResult() {
+        return result;
+    }
+
+    /**
+     * Returns whether the scheduler has started the task, i.e. removed it from the queue to run it.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Runs the task on the calling thread, completing its result.
+     */
+    public void run(WkHtmlToX wkHtmlToX) {
+        try {
+            result.complete(fn.apply(wkHtmlToX));
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    void schedule(long estimatedCost, long priority, long sequence) {
+        this.estimatedCost = estimatedCost;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    void started() {
+        started = true;
+    }
+
+    long getPriority() {
+        return priority;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+}
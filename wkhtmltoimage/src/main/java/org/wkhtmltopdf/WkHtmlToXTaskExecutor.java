@@ -0,0 +1,667 @@
+package org.wkhtmltopdf;
+
+import org.wkhtmltopdf.asset.WkHtmlToXAssets;
+import org.wkhtmltopdf.host.WkHtmlToXCircuitBreaker;
+import org.wkhtmltopdf.journal.WkHtmlToXJournal;
+import org.wkhtmltopdf.proxy.WkHtmlToXProxy;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+import org.wkhtmltopdf.worker.Worker;
+import org.wkhtmltopdf.worker.WorkerPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public final class WkHtmlToXTaskExecutor {
+    private static final WkHtmlToXTaskExecutor instance = new WkHtmlToXTaskExecutor();
+    private static final int RENDER_THREADS = 1;
+    private static final String PART_SUFFIX = ".part";
+    private final WkHtmlToXScheduler scheduler;
+    private final WkHtmlToXConcurrencyLimiter limiter;
+    private final Semaphore renderSlots;
+    private final ExecutorService renderThread;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService callers;
+    private final LongAdder hedgesStarted;
+    private final LongAdder hedgesWon;
+    private volatile WorkerPool workerPool;
+    private volatile WkHtmlToXHedgingPolicy hedgingPolicy;
+    private volatile WkHtmlToXProxy proxy;
+    private volatile WkHtmlToXAssets assets;
+    private volatile WkHtmlToXCircuitBreaker circuitBreaker;
+    private volatile WkHtmlToXAdmissionControl admissionControl;
+    private volatile WkHtmlToXRemoteNodes remoteNodes;
+    private volatile WkHtmlToXJournal journal;
+
+    private WkHtmlToXTaskExecutor() {
+        scheduler = new WkHtmlToXScheduler();
+        limiter = new WkHtmlToXConcurrencyLimiter().bounds(1, RENDER_THREADS);
+        renderSlots = new Semaphore(RENDER_THREADS);
+        renderThread = Executors.newSingleThreadExecutor(WkHtmlToXTaskExecutor::daemonThread);
+        timer = Executors.newSingleThreadScheduledExecutor(WkHtmlToXTaskExecutor::daemonThread);
+        callers = WkHtmlToXHandOff.newCallerExecutor();
+        daemonThread(this::dispatchLoop).start();
+
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        metrics.gauge("executor.concurrency.limit", limiter::getLimit);
+        metrics.gauge("executor.concurrency.inFlight", limiter::getInFlight);
+        metrics.gauge("executor.latency.baselineMillis", limiter::getBaselineMillis);
+        metrics.gauge("executor.failureRate", limiter::getFailureRate);
+        metrics.gauge("scheduler.queued", scheduler::getQueued);
+        hedgesStarted = metrics.counter("executor.hedges.started");
+        hedgesWon = metrics.counter("executor.hedges.won");
+    }
+
+    public static WkHtmlToXTaskExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the scheduler deciding the order in which queued conversions are rendered.
+     */
+    public WkHtmlToXScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns the limiter deciding how many conversions are rendered at the same time. Its upper
+     * bound is capped by the amount of render slots, which is 1 for the in-process render thread
+     * and the pool size when worker processes are used.
+     */
+    public WkHtmlToXConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Renders conversions in the worker processes of the specified pool instead of on the
+     * in-process render thread, starting the pool if necessary. Functions passed to
+     * {@code execute} keep running on the in-process render thread.
+     */
+    public WkHtmlToXTaskExecutor workers(WorkerPool pool) {
+        pool.start();
+        workerPool = pool;
+        limiter.bounds(1, pool.getSize());
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        metrics.gauge("workers.size", pool::getSize);
+        metrics.gauge("workers.idle", pool::getIdle);
+        metrics.gauge("workers.busy", pool::getBusy);
+        metrics.gauge("workers.restarts", pool::getRestarts);
+        return this;
+    }
+
+    /**
+     * Renders conversions on the specified remote render nodes instead of in this process,
+     * starting their health checks if necessary, or stops doing so if the nodes are
+     * {@code null}. Functions passed to {@code execute} keep running on the in-process render
+     * thread. As the proxy and asset store of this process are not reachable from the nodes,
+     * they are not applied to conversions rendered remotely; configure them on the nodes instead.
+     */
+    public WkHtmlToXTaskExecutor remote(WkHtmlToXRemoteNodes nodes) {
+        if (nodes != null) {
+            nodes.start();
+            limiter.bounds(1, nodes.getCapacity());
+        } else {
+            limiter.bounds(1, workerPool == null ? RENDER_THREADS : workerPool.getSize());
+        }
+        remoteNodes = nodes;
+        return this;
+    }
+
+    /**
+     * Duplicates slow conversions on idle worker processes according to the specified policy,
+     * or disables hedging if the policy is {@code null}. Only applies to conversions rendered
+     * by worker processes.
+     */
+    public WkHtmlToXTaskExecutor hedging(WkHtmlToXHedgingPolicy policy) {
+        hedgingPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Loads the pages of conversions which do not set "load.proxy" themselves through the
+     * specified proxy, starting it if necessary, or stops doing so if the proxy is {@code null}.
+     * The proxy lets requests to the asset store of the executor through even if the loopback
+     * address is not allowed. Only applies to conversions passed to {@code render}.
+     */
+    public WkHtmlToXTaskExecutor proxy(WkHtmlToXProxy proxy) {
+        if (proxy != null) {
+            proxy.start();
+            WkHtmlToXAssets assets = this.assets;
+            if (assets != null) {
+                proxy.exempt(assets.getBaseUrl());
+            }
+        }
+        this.proxy = proxy;
+        return this;
+    }
+
+    /**
+     * Resolves the {@code wkasset://} URLs of conversions with the specified asset store,
+     * starting it if necessary, or stops doing so if the store is {@code null}. Only applies to
+     * conversions passed to {@code render}.
+     */
+    public WkHtmlToXTaskExecutor assets(WkHtmlToXAssets assets) {
+        if (assets != null) {
+            assets.start();
+            WkHtmlToXProxy proxy = this.proxy;
+            if (proxy != null) {
+                proxy.exempt(assets.getBaseUrl());
+            }
+        }
+        this.assets = assets;
+        return this;
+    }
+
+    /**
+     * Fails conversions loading pages from hosts which keep failing right away, as decided by
+     * the specified circuit breaker, or stops doing so if it is {@code null}. Only applies to
+     * conversions passed to {@code render}.
+     */
+    public WkHtmlToXTaskExecutor circuitBreaker(WkHtmlToXCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Delays or rejects new conversions while memory is short, as decided by the specified
+     * admission control, or stops doing so if it is {@code null}. Only applies to conversions
+     * passed to {@code render}.
+     */
+    public WkHtmlToXTaskExecutor admissionControl(WkHtmlToXAdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+        return this;
+    }
+
+    /**
+     * Records conversions writing to an "out" location in the specified journal before they are
+     * queued, and their completion, or stops doing so if it is {@code null}. Only applies to
+     * conversions passed to {@code render}.
+     */
+    public WkHtmlToXTaskExecutor journal(WkHtmlToXJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public <T> T execute(Function<WkHtmlToX, T> fn) {
+        return execute((String) null, fn);
+    }
+
+    /**
+     * Runs the function on the render thread, scheduling it under the specified tenant key.
+     *
+     * @param tenant The tenant key, or {@code null} for the default tenant.
+     */
+    public <T> T execute(String tenant, Function<WkHtmlToX, T> fn) {
+        return await(new WkHtmlToXTask<>(tenant, fn));
+    }
+
+    /**
+     * Runs the function on the render thread, scheduling it according to the tenant and the
+     * estimated cost of the specified job.
+     */
+    public <T> T execute(WkHtmlToXJob job, Function<WkHtmlToX, T> fn) {
+        return await(new WkHtmlToXTask<>(job, fn));
+    }
+
+    /**
+     * Runs a blocking operation, e.g. a conversion waiting for its turn on the render thread, on
+     * a helper thread, so that non-blocking callers do not have to wait for it.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(operation, callers);
+    }
+
+    /**
+     * Converts the job, on the render thread or in a worker process.
+     */
+    public WkHtmlToXResult render(WkHtmlToXJob job, WkHtmlToXListener listener) {
+        CompletableFuture<WkHtmlToXResult> result = new CompletableFuture<>();
+        WkHtmlToXAdmissionControl admission = admissionControl;
+        WkHtmlToXTask<WkHtmlToXResult> task = renderTask(job, listener, result, admission,
+                admission == null ? 0 : acquire(admission, job));
+        queue(task);
+        return await(task, result);
+    }
+
+    /**
+     * Queues the job for conversion without waiting for it, e.g. to render several parts of a
+     * document concurrently in worker processes. A job which has to wait for memory is admitted
+     * on a helper thread, and the returned future fails if it is rejected.
+     */
+    public CompletableFuture<WkHtmlToXResult> renderAsync(WkHtmlToXJob job, WkHtmlToXListener listener) {
+        CompletableFuture<WkHtmlToXResult> result = new CompletableFuture<>();
+        WkHtmlToXAdmissionControl admission = admissionControl;
+        long reserved = admission == null ? 0 : admission.tryAcquire(job);
+        if (reserved >= 0) {
+            queue(renderTask(job, listener, result, admission, reserved));
+            return result;
+        }
+        callers.execute(() -> {
+            try {
+                queue(renderTask(job, listener, result, admission, acquire(admission, job)));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private static long acquire(WkHtmlToXAdmissionControl admission, WkHtmlToXJob job) {
+        try {
+            return admission.acquire(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread is interrupted!", e);
+        }
+    }
+
+    private void queue(WkHtmlToXTask<?> task) {
+        if (!task.getResult().isDone()) {
+            submit(task);
+        }
+    }
+
+    /**
+     * Creates the task rendering the job, which is already completed if the job was rejected,
+     * releases the bytes reserved by the admission control once it is done and completes the
+     * result with its outcome. Journaled jobs are rendered to a sibling {@code .part} file, which
+     * is forced to disk and moved into place before the result is completed and the job is
+     * marked finished, so that an output left by a crash is complete.
+     *
+     * @throws WkHtmlToXException if the journal failed
+     */
+    private WkHtmlToXTask<WkHtmlToXResult> renderTask(WkHtmlToXJob job, WkHtmlToXListener listener,
+                                                      CompletableFuture<WkHtmlToXResult> result,
+                                                      WkHtmlToXAdmissionControl admission, long reserved) {
+        WkHtmlToXJournal journal = this.journal;
+        String out = journal == null ? null : job.getSettings().get("out");
+        WkHtmlToXTask<WkHtmlToXResult> task;
+        try {
+            WkHtmlToXJob rendered = out == null ? job : withFormat(job.withSetting("out", out + PART_SUFFIX), job, out);
+            task = WkHtmlToXTask.render(prepare(rendered), listener);
+        } catch (RuntimeException e) {
+            if (admission != null) {
+                admission.release(job, reserved, null);
+            }
+            throw e;
+        }
+        if (admission != null) {
+            task.getResult().whenComplete((converted, error) -> admission.release(job, reserved, converted));
+        }
+        if (out == null) {
+            task.getResult().whenComplete((converted, error) -> complete(result, converted, error));
+        } else {
+            long id;
+            try {
+                id = journal.submitted(job);
+            } catch (WkHtmlToXException e) {
+                task.getResult().completeExceptionally(e);
+                throw e;
+            }
+            task.getResult().whenComplete((converted, error) -> {
+                try {
+                    commit(out, converted, error);
+                } catch (IOException e) {
+                    error = new WkHtmlToXException("Failed to write " + out, e);
+                }
+                journal.finished(id);
+                complete(result, converted, error);
+            });
+        }
+        WkHtmlToXCircuitBreaker breaker = circuitBreaker;
+        Set<String> hosts = breaker == null ? Collections.emptySet() : job.getHosts();
+        if (hosts.isEmpty()) {
+            return task;
+        }
+        if (!breaker.tryAcquire(hosts)) {
+            String message = "Host unavailable, not loading " + String.join(", ", hosts);
+            listener.error(message);
+            listener.finished(false);
+            task.getResult().complete(new WkHtmlToXResult(false, null,
+                    Collections.singletonList("Error: " + message)));
+            return task;
+        }
+        task.getResult().whenComplete((converted, error) -> {
+            if (task.isStarted()) {
+                breaker.record(hosts, converted);
+            } else {
+                breaker.release(hosts);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Moves the {@code .part} file of a successful journaled conversion into place once it is on
+     * disk, or deletes it if the conversion failed.
+     */
+    private static void commit(String out, WkHtmlToXResult result, Throwable error) throws IOException {
+        Path part = Paths.get(out + PART_SUFFIX);
+        if (error != null || !result.isSuccess()) {
+            Files.deleteIfExists(part);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(part, Paths.get(out), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, T value, Throwable error) {
+        if (error == null) {
+            result.complete(value);
+        } else {
+            result.completeExceptionally(error);
+        }
+    }
+
+    private WkHtmlToXJob prepare(WkHtmlToXJob job) {
+        if (remoteNodes != null) {
+            return job;
+        }
+        WkHtmlToXAssets assets = this.assets;
+        if (assets != null) {
+            job = assets.apply(job);
+        }
+        WkHtmlToXProxy proxy = this.proxy;
+        return proxy == null ? job : proxy.apply(job);
+    }
+
+    /**
+     * Queues the task, completing it with the rejection if the queue of its tenant is full, so
+     * that the admission reservation and the journal entry of the task are released.
+     */
+    private void submit(WkHtmlToXTask<?> task) {
+        try {
+            scheduler.submit(task);
+        } catch (RuntimeException e) {
+            task.getResult().completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private <T> T await(WkHtmlToXTask<T> task) {
+        submit(task);
+        return await(task, task.getResult());
+    }
+
+    /**
+     * Waits for the result of the queued task, removing the task from the queue if the thread is
+     * interrupted while waiting.
+     */
+    private <T> T await(WkHtmlToXTask<?> task, CompletableFuture<T> result) {
+        try {
+            return WkHtmlToXHandOff.await(result);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            if (scheduler.cancel(task)) {
+                task.getResult().cancel(false);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread is interrupted!", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatchLoop() {
+        while (true) {
+            WkHtmlToXTask<?> task;
+            try {
+                limiter.acquire();
+                task = scheduler.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            WorkerPool pool = workerPool;
+            WkHtmlToXRemoteNodes nodes = remoteNodes;
+            try {
+                if (nodes != null && task.isRender()) {
+                    dispatchToNode(nodes, (WkHtmlToXTask<WkHtmlToXResult>) task, start);
+                } else if (pool != null && task.isRender()) {
+                    dispatchToWorker(pool, (WkHtmlToXTask<WkHtmlToXResult>) task, start);
+                } else {
+                    renderSlots.acquire();
+                    renderThread.execute(() -> renderInProcess(task, start));
+                }
+            } catch (InterruptedException e) {
+                task.getResult().completeExceptionally(e);
+                finish(task, start);
+                return;
+            }
+        }
+    }
+
+    private void renderInProcess(WkHtmlToXTask<?> task, long start) {
+        try {
+            task.run(WkHtmlToXLibraryLoader.getInstance());
+        } catch (Throwable t) {
+            task.getResult().completeExceptionally(t);
+        } finally {
+            renderSlots.release();
+            finish(task, start);
+        }
+    }
+
+    private void dispatchToWorker(WorkerPool pool, WkHtmlToXTask<WkHtmlToXResult> task, long start)
+            throws InterruptedException {
+        Worker worker;
+        try {
+            worker = pool.acquire();
+        } catch (WkHtmlToXException e) {
+            task.getResult().completeExceptionally(e);
+            finish(task, start);
+            return;
+        }
+        Hedge hedge = new Hedge(pool, task, start);
+        hedge.attempt(worker, task.getListener());
+        WkHtmlToXHedgingPolicy policy = hedgingPolicy;
+        long delay = policy == null ? -1 : policy.getDelay(scheduler.getCostModel(), task.getJob());
+        if (delay >= 0) {
+            timer.schedule(() -> {
+                if (hedge.isSettled()) {
+                    return;
+                }
+                Worker spare = pool.tryAcquire();
+                if (spare != null) {
+                    hedgesStarted.increment();
+                    hedge.attempt(spare, WkHtmlToXListener.NONE);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void dispatchToNode(WkHtmlToXRemoteNodes nodes, WkHtmlToXTask<WkHtmlToXResult> task, long start) {
+        String out = task.getJob().getSettings().get("out");
+        WkHtmlToXJob job = out == null ? task.getJob() : inMemory(task.getJob(), out);
+        nodes.render(job, task.getListener()).whenComplete((result, error) -> {
+            if (error == null && out != null && result.isSuccess()) {
+                try {
+                    write(out, result);
+                    result = new WkHtmlToXResult(true, null, result.getLog(), result.getHttpErrorCode());
+                } catch (IOException e) {
+                    error = new WkHtmlToXException("Failed to write " + out, e);
+                }
+            }
+            if (error == null) {
+                task.getListener().finished(result.isSuccess());
+                task.getResult().complete(result);
+            } else {
+                task.getResult().completeExceptionally(error);
+            }
+            finish(task, start);
+        });
+    }
+
+    private void finish(WkHtmlToXTask<?> task, long start) {
+        long elapsed = System.nanoTime() - start;
+        boolean success = !task.getResult().isCompletedExceptionally();
+        if (task.isRender() && success) {
+            WkHtmlToXResult result = (WkHtmlToXResult) task.getResult().join();
+            WkHtmlToXReadiness.record(result.getLog());
+            success = result.isSuccess();
+        }
+        limiter.release(elapsed, TimeUnit.NANOSECONDS, success);
+        if (success) {
+            // Failed conversions often end early, e.g. on an unreachable host, and would skew the estimates.
+            scheduler.getCostModel().record(task.getJob(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+        scheduler.done(task);
+    }
+
+    private static Thread daemonThread(Runnable r) {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The attempts of rendering one task in worker processes. The first attempt to succeed
+     * settles the task, and workers still busy with other attempts are recycled; the task only
+     * fails once every attempt started has failed.
+     */
+    private class Hedge {
+        private final WorkerPool pool;
+        private final WkHtmlToXTask<WkHtmlToXResult> task;
+        private final WkHtmlToXJob job;
+        private final String out;
+        private final long start;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private final AtomicInteger running = new AtomicInteger();
+        private final List<Attempt> attempts = new CopyOnWriteArrayList<>();
+
+        Hedge(WorkerPool pool, WkHtmlToXTask<WkHtmlToXResult> task, long start) {
+            this.pool = pool;
+            this.task = task;
+            this.start = start;
+            this.out = task.getJob().getSettings().get("out");
+            this.job = out == null ? task.getJob() : inMemory(task.getJob(), out);
+        }
+
+        boolean isSettled() {
+            return settled.get();
+        }
+
+        void attempt(Worker worker, WkHtmlToXListener listener) {
+            Attempt attempt = new Attempt(worker);
+            attempts.add(attempt);
+            running.incrementAndGet();
+            if (settled.get()) {
+                running.decrementAndGet();
+                attempt.close(false);
+                return;
+            }
+            worker.submit(job, listener).whenComplete((result, error) -> {
+                attempt.close(error != null);
+                boolean success = error == null && result.isSuccess();
+                boolean last = running.decrementAndGet() == 0;
+                if ((!success && !last) || !settled.compareAndSet(false, true)) {
+                    return;
+                }
+                for (Attempt other : attempts) {
+                    if (other != attempt) {
+                        other.close(true);
+                    }
+                }
+                if (success && attempts.indexOf(attempt) > 0) {
+                    hedgesWon.increment();
+                }
+                complete(result, error);
+            });
+        }
+
+        private void complete(WkHtmlToXResult result, Throwable error) {
+            if (error == null && out != null && result.isSuccess()) {
+                try {
+                    write(out, result);
+                    result = new WkHtmlToXResult(true, null, result.getLog(), result.getHttpErrorCode());
+                } catch (IOException e) {
+                    error = new WkHtmlToXException("Failed to write " + out, e);
+                }
+            }
+            if (error == null) {
+                task.getListener().finished(result.isSuccess());
+                task.getResult().complete(result);
+            } else {
+                task.getResult().completeExceptionally(error);
+            }
+            finish(task, start);
+        }
+
+        private class Attempt {
+            private final Worker worker;
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            Attempt(Worker worker) {
+                this.worker = worker;
+            }
+
+            void close(boolean recycle) {
+                if (closed.compareAndSet(false, true)) {
+                    if (recycle) {
+                        pool.recycle(worker);
+                    } else {
+                        pool.release(worker);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(String out, WkHtmlToXResult result) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(out), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer output = result.getOutputBuffer();
+            while (output.hasRemaining()) {
+                channel.write(output);
+            }
+        }
+    }
+
+    /**
+     * Workers always return the document to the parent, which writes it to the "out" location,
+     * so that hedged attempts never write the same file.
+     */
+    private static WkHtmlToXJob inMemory(WkHtmlToXJob job, String out) {
+        return withFormat(job.withSetting("out", null), job, out);
+    }
+
+    /**
+     * Sets the image format of the job to the extension of the "out" location, unless the
+     * original job sets it, as the format can no longer be derived from where it is written.
+     */
+    private static WkHtmlToXJob withFormat(WkHtmlToXJob rewritten, WkHtmlToXJob job, String out) {
+        int extension = out.lastIndexOf('.');
+        if (job.getType() == WkHtmlToXJob.Type.IMAGE && !job.getSettings().containsKey("fmt") && extension >= 0) {
+            return rewritten.withSetting("fmt", out.substring(extension + 1));
+        }
+        return rewritten;
+    }
+
+}
\ No newline at end of file
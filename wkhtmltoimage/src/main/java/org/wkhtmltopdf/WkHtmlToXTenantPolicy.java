@@ -0,0 +1,63 @@
+package org.wkhtmltopdf;
+
+/**
+ * Scheduling limits applied to all conversions tagged with the same tenant key.
+ */
+public class WkHtmlToXTenantPolicy {
+    private volatile int weight = 1;
+    private volatile int maxQueued = Integer.MAX_VALUE;
+    private volatile int maxInFlight = Integer.MAX_VALUE;
+
+    /**
+     * Creates a new {@code WkHtmlToXTenantPolicy} with weight 1 and no limits.
+     */
+    public static WkHtmlToXTenantPolicy create() {
+        return new WkHtmlToXTenantPolicy();
+    }
+
+    /**
+     * The relative share of render capacity the tenant receives while other tenants are waiting.
+     */
+    public WkHtmlToXTenantPolicy weight(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be positive.");
+        }
+        this.weight = weight;
+        return this;
+    }
+
+    /**
+     * The maximum amount of conversions the tenant may have waiting in the queue. Further
+     * submissions are rejected with a {@link WkHtmlToXException}.
+     */
+    public WkHtmlToXTenantPolicy maxQueued(int maxQueued) {
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("Queue limit must not be negative.");
+        }
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * The maximum amount of conversions of the tenant that may be running at the same time.
+     */
+    public WkHtmlToXTenantPolicy maxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("In-flight limit must be positive.");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+}
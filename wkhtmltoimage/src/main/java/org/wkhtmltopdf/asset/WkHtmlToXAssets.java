@@ -0,0 +1,367 @@
+package org.wkhtmltopdf.asset;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A byte-bounded in-memory store of assets, e.g. fonts, images, stylesheets or header HTML,
+ * which converted pages reference with {@code wkasset://} URLs such as
+ * {@code <link rel="stylesheet" href="wkasset://css/report.css">}. The assets are served from
+ * memory by an HTTP server on the loopback interface, so repeated conversions never read them
+ * from disk or the network.
+ * <p>
+ * Once passed to {@link org.wkhtmltopdf.WkHtmlToXTaskExecutor#assets(WkHtmlToXAssets)}, the
+ * {@code wkasset://} URLs in the HTML and the settings of every conversion are rewritten to
+ * point at the server. When the store is full, the least recently served assets are evicted;
+ * evicted assets are loaded again on demand if a loader is set. Served assets, loads and the
+ * size of the store are recorded in the {@link WkHtmlToXMetrics} as "assets.served",
+ * "assets.loaded", "assets.notFound" and "assets.bytes".
+ */
+public class WkHtmlToXAssets implements Closeable {
+    /**
+     * The scheme of URLs resolved by the store.
+     */
+    public static final String SCHEME = "wkasset://";
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "font/ttf");
+        CONTENT_TYPES.put("otf", "font/otf");
+    }
+
+    private final LinkedHashMap<String, Asset> assets = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes = 32L * 1024 * 1024;
+    private long bytes;
+    private Function<String, byte[]> loader;
+    private volatile HttpServer server;
+    private ExecutorService threads;
+    private final LongAdder served;
+    private final LongAdder loaded;
+    private final LongAdder notFound;
+
+    private WkHtmlToXAssets() {
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        served = metrics.counter("assets.served");
+        loaded = metrics.counter("assets.loaded");
+        notFound = metrics.counter("assets.notFound");
+        metrics.gauge("assets.bytes", this::getBytes);
+    }
+
+    public static WkHtmlToXAssets create() {
+        return new WkHtmlToXAssets();
+    }
+
+    /**
+     * The maximum total size of the stored assets, in bytes. Defaults to 32 MiB.
+     */
+    public synchronized WkHtmlToXAssets maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+        return this;
+    }
+
+    /**
+     * Loads assets which are not stored, e.g. because they were evicted, by path. The loader
+     * returns {@code null} for unknown assets.
+     */
+    public synchronized WkHtmlToXAssets loader(Function<String, byte[]> loader) {
+        this.loader = loader;
+        return this;
+    }
+
+    /**
+     * Stores an asset, with its content type guessed from the extension of the path.
+     *
+     * @param path The path of the asset, e.g. "fonts/brand.woff2" for {@code wkasset://fonts/brand.woff2}.
+     */
+    public WkHtmlToXAssets put(String path, byte[] content) {
+        return put(path, content, guessContentType(path));
+    }
+
+    /**
+     * Stores an asset with the specified content type, replacing any asset stored under the same path.
+     */
+    public synchronized WkHtmlToXAssets put(String path, byte[] content, String contentType) {
+        String key = normalize(path);
+        if (content.length > maxBytes) {
+            throw new WkHtmlToXException("Asset " + key + " is larger than the store.");
+        }
+        remove(key);
+        assets.put(key, new Asset(content, contentType));
+        bytes += content.length;
+        evict();
+        return this;
+    }
+
+    /**
+     * Stores an HTML or CSS asset encoded as UTF-8.
+     */
+    public WkHtmlToXAssets put(String path, String content) {
+        return put(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized WkHtmlToXAssets remove(String path) {
+        Asset asset = assets.remove(normalize(path));
+        if (asset != null) {
+            bytes -= asset.content.length;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the content of an asset, loading it if necessary, or {@code null} if it is unknown.
+     *
+     * @param path The path of the asset, with or without the {@code wkasset://} scheme.
+     */
+    public byte[] get(String path) {
+        Asset asset = lookup(normalize(path));
+        return asset == null ? null : asset.content;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Starts serving the assets on an ephemeral port of the loopback interface.
+     */
+    public synchronized WkHtmlToXAssets start() {
+        if (server != null) {
+            return this;
+        }
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Could not start asset server: " + e.getMessage());
+        }
+        threads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "wkhtmltox-assets");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(threads);
+        server.createContext("/", this::serve);
+        server.start();
+        this.server = server;
+        return this;
+    }
+
+    /**
+     * Returns the URL the {@code wkasset://} scheme is rewritten to.
+     */
+    public String getBaseUrl() {
+        HttpServer server = this.server;
+        if (server == null) {
+            throw new IllegalStateException("Asset server is not started.");
+        }
+        return baseUrl(server);
+    }
+
+    /**
+     * Rewrites the {@code wkasset://} URLs in the text to point at the server.
+     */
+    public String resolve(String text) {
+        return text == null || !text.contains(SCHEME) ? text : text.replace(SCHEME, getBaseUrl());
+    }
+
+    /**
+     * Returns a copy of the job with the {@code wkasset://} URLs in its HTML and settings
+     * rewritten, or the job itself if the server is not running.
+     */
+    public WkHtmlToXJob apply(WkHtmlToXJob job) {
+        if (server == null) {
+            return job;
+        }
+        WkHtmlToXJob resolved = job;
+        for (Map.Entry<String, String> setting : job.getSettings().entrySet()) {
+            if (setting.getValue().contains(SCHEME)) {
+                resolved = resolved.withSetting(setting.getKey(), resolve(setting.getValue()));
+            }
+        }
+        List<WkHtmlToXJob.Input> inputs = new ArrayList<>();
+        boolean changed = false;
+        for (WkHtmlToXJob.Input input : job.getInputs()) {
+            Map<String, String> settings = new TreeMap<>(input.getSettings());
+            settings.replaceAll((name, value) -> resolve(value));
+            String html = resolve(input.getHtmlData());
+            boolean inputChanged = !settings.equals(input.getSettings()) || html != input.getHtmlData();
+            inputs.add(inputChanged ? new WkHtmlToXJob.Input(settings, html) : input);
+            changed |= inputChanged;
+        }
+        return changed ? resolved.withInputs(inputs) : resolved;
+    }
+
+    /**
+     * Stops serving the assets. The stored assets are kept.
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            threads.shutdownNow();
+            server = null;
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = normalize(exchange.getRequestURI().getPath());
+            Asset asset = lookup(path);
+            if (asset == null) {
+                notFound.increment();
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            served.increment();
+            byte[] content = asset.content;
+            if (asset.contentType.startsWith("text/")) {
+                // Assets such as header HTML or stylesheets may reference other assets.
+                content = replace(content, SCHEME.getBytes(StandardCharsets.US_ASCII),
+                        baseUrl(exchange.getHttpContext().getServer()).getBytes(StandardCharsets.US_ASCII));
+            }
+            exchange.getResponseHeaders().set("Content-Type", asset.contentType);
+            // The assets are in memory already, caching proxies should not keep another copy.
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Asset lookup(String path) {
+        Function<String, byte[]> loader;
+        synchronized (this) {
+            Asset asset = assets.get(path);
+            if (asset != null || this.loader == null) {
+                return asset;
+            }
+            loader = this.loader;
+        }
+        byte[] content = loader.apply(path);
+        if (content == null) {
+            return null;
+        }
+        loaded.increment();
+        Asset asset = new Asset(content, guessContentType(path));
+        if (content.length <= maxBytes) {
+            put(path, content, asset.contentType);
+        }
+        return asset;
+    }
+
+    private void evict() {
+        for (Iterator<Asset> it = assets.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            bytes -= it.next().content.length;
+            it.remove();
+        }
+    }
+
+    private static String baseUrl(HttpServer server) {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/";
+    }
+
+    private static String normalize(String path) {
+        if (path.startsWith(SCHEME)) {
+            path = path.substring(SCHEME.length());
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the content type of a file with the extension of the path.
+     */
+    public static String guessContentType(String path) {
+        int dot = path.lastIndexOf('.');
+        String extension = dot < 0 ? "" : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    private static byte[] replace(byte[] content, byte[] target, byte[] replacement) {
+        ByteArrayOutputStream out = null;
+        int start = 0;
+        for (int i = 0; i <= content.length - target.length; i++) {
+            int j = 0;
+            while (j < target.length && content[i + j] == target[j]) {
+                j++;
+            }
+            if (j == target.length) {
+                if (out == null) {
+                    out = new ByteArrayOutputStream(content.length + 64);
+                }
+                out.write(content, start, i - start);
+                out.write(replacement, 0, replacement.length);
+                start = i + target.length;
+                i = start - 1;
+            }
+        }
+        if (out == null) {
+            return content;
+        }
+        out.write(content, start, content.length - start);
+        return out.toByteArray();
+    }
+
+    private static class Asset {
+        final byte[] content;
+        final String contentType;
+
+        Asset(byte[] content, String contentType) {
+            this.content = content;
+            this.contentType = contentType;
+        }
+    }
+}
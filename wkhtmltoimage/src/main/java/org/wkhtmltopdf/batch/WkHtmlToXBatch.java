@@ -0,0 +1,312 @@
+package org.wkhtmltopdf.batch;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Renders one template against many data rows with a shared settings profile, streaming the
+ * documents into a ZIP archive or a directory. The stages form a pipeline: while the oldest
+ * documents are compressed and written on the calling thread, the following rows are merged into
+ * the template and rendered by the executor, in worker processes if configured. At most the
+ * configured window of documents is rendering or waiting to be written, bounding the memory
+ * held, and documents are written in the order of their rows.
+ * <p>
+ * Documents written to a directory are written by the executor directly, and only moved into
+ * place once complete. A failed row fails the batch, unless a failure handler is set, which is
+ * called with the row number and the cause and the batch continues.
+ */
+public class WkHtmlToXBatch {
+    private static final String PART_SUFFIX = ".part";
+
+    private final WkHtmlToXTemplate template;
+    private final Map<String, String> settings = new HashMap<>();
+    private final Map<String, String> objectSettings = new HashMap<>();
+    private BiFunction<WkHtmlToXJob, WkHtmlToXListener, CompletableFuture<WkHtmlToXResult>> renderer =
+            (job, listener) -> WkHtmlToXTaskExecutor.getInstance().renderAsync(job, listener);
+    private Function<Map<String, ?>, String> name;
+    private BiConsumer<Long, Throwable> failure;
+    private String format = "pdf";
+    private String tenant;
+    private int window = 8;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private WkHtmlToXBatch(WkHtmlToXTemplate template) {
+        this.template = template;
+    }
+
+    public static WkHtmlToXBatch create(String template) {
+        return new WkHtmlToXBatch(WkHtmlToXTemplate.compile(template));
+    }
+
+    public static WkHtmlToXBatch create(WkHtmlToXTemplate template) {
+        return new WkHtmlToXBatch(template);
+    }
+
+    /**
+     * The output format: "pdf", the default, or an image format such as "png" or "jpg".
+     */
+    public WkHtmlToXBatch format(String format) {
+        this.format = format.toLowerCase();
+        return this;
+    }
+
+    /**
+     * Sets a global setting of every document, e.g. "orientation" or "size.pageSize".
+     */
+    public WkHtmlToXBatch setting(String name, String value) {
+        settings.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets a setting of the PDF object of every document, e.g. "web.defaultEncoding".
+     */
+    public WkHtmlToXBatch objectSetting(String name, String value) {
+        objectSettings.put(name, value);
+        return this;
+    }
+
+    /**
+     * The tenant the conversions are scheduled for.
+     */
+    public WkHtmlToXBatch tenant(String tenant) {
+        this.tenant = tenant;
+        return this;
+    }
+
+    /**
+     * Names the document of each row, e.g. {@code row -> "invoice-" + row.get("number") + ".pdf"}.
+     * Defaults to the row number, starting at 1, padded to six digits, e.g. "000001.pdf".
+     */
+    public WkHtmlToXBatch name(Function<Map<String, ?>, String> name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * The amount of documents rendering or waiting to be written at the same time. Defaults to 8.
+     */
+    public WkHtmlToXBatch window(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive.");
+        }
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * The compression level of ZIP entries, from 0 to 9. Defaults to the default level of
+     * {@link Deflater}; PDF documents are already compressed and gain little from higher levels.
+     */
+    public WkHtmlToXBatch compressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9.");
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Skips failed rows, calling the handler with the row number and the cause, instead of
+     * failing the batch.
+     */
+    public WkHtmlToXBatch failure(BiConsumer<Long, Throwable> failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    /**
+     * Renders documents with the specified function instead of the executor.
+     */
+    public WkHtmlToXBatch renderer(
+            BiFunction<WkHtmlToXJob, WkHtmlToXListener, CompletableFuture<WkHtmlToXResult>> renderer) {
+        this.renderer = renderer;
+        return this;
+    }
+
+    /**
+     * Renders the rows into a ZIP archive created at the path.
+     *
+     * @return the amount of documents written
+     * @throws WkHtmlToXException if a row failed without failure handler, or writing failed
+     */
+    public long toZip(Path zip, Iterator<? extends Map<String, ?>> rows) {
+        try (OutputStream out = Files.newOutputStream(zip)) {
+            return toZip(out, rows);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to write " + zip, e);
+        }
+    }
+
+    /**
+     * Renders the rows into a ZIP archive written to the stream, which is not closed.
+     *
+     * @return the amount of documents written
+     * @throws WkHtmlToXException if a row failed without failure handler, or writing failed
+     */
+    public long toZip(OutputStream out, Iterator<? extends Map<String, ?>> rows) {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.setLevel(compressionLevel);
+        WritableByteChannel channel = Channels.newChannel(zip);
+        long written = run(rows, null, (entry, result) -> {
+            zip.putNextEntry(new ZipEntry(entry));
+            ByteBuffer output = result.getOutputBuffer();
+            while (output.hasRemaining()) {
+                channel.write(output);
+            }
+            zip.closeEntry();
+        });
+        try {
+            zip.finish();
+            zip.flush();
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to write ZIP archive", e);
+        }
+        return written;
+    }
+
+    /**
+     * Renders the rows into files of the directory, creating it if necessary.
+     *
+     * @return the amount of documents written
+     * @throws WkHtmlToXException if a row failed without failure handler, or writing failed
+     */
+    public long toDirectory(Path directory, Iterator<? extends Map<String, ?>> rows) {
+        return run(rows, directory, (entry, result) -> {
+            Path output = directory.resolve(entry);
+            Files.move(part(output), output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        });
+    }
+
+    private long run(Iterator<? extends Map<String, ?>> rows, Path directory, Sink sink) {
+        Deque<Pending> pending = new ArrayDeque<>();
+        long row = 0;
+        long written = 0;
+        try {
+            while (rows.hasNext()) {
+                Map<String, ?> data = rows.next();
+                row++;
+                String entry = name == null ? String.format("%06d.%s", row, format) : name.apply(data);
+                Path out = null;
+                if (directory != null) {
+                    Path output = directory.resolve(entry);
+                    Files.createDirectories(output.toAbsolutePath().getParent());
+                    out = part(output);
+                }
+                pending.add(new Pending(row, entry, render(job(template.merge(data), out))));
+                if (pending.size() >= window) {
+                    written += write(pending.poll(), directory, sink);
+                }
+            }
+            while (!pending.isEmpty()) {
+                written += write(pending.poll(), directory, sink);
+            }
+            return written;
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to write documents", e);
+        } finally {
+            for (Pending abandoned : pending) {
+                abandoned.result.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for the oldest document and writes it.
+     *
+     * @return 1 if the document was written, 0 if the row failed and was skipped
+     */
+    private int write(Pending pending, Path directory, Sink sink) throws IOException {
+        Throwable error;
+        try {
+            WkHtmlToXResult result = pending.result.get();
+            if (result.isSuccess()) {
+                sink.write(pending.entry, result);
+                return 1;
+            }
+            error = new WkHtmlToXException(result.getFailureMessage());
+        } catch (ExecutionException e) {
+            error = e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread is interrupted!");
+        }
+        if (directory != null) {
+            Files.deleteIfExists(part(directory.resolve(pending.entry)));
+        }
+        if (failure == null) {
+            throw new WkHtmlToXException("Failed to render row " + pending.row + ": " + error.getMessage(), error);
+        }
+        failure.accept(pending.row, error);
+        return 0;
+    }
+
+    private CompletableFuture<WkHtmlToXResult> render(WkHtmlToXJob job) {
+        try {
+            return renderer.apply(job, WkHtmlToXListener.NONE);
+        } catch (RuntimeException e) {
+            CompletableFuture<WkHtmlToXResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private WkHtmlToXJob job(String html, Path out) {
+        Map<String, String> settings = new HashMap<>(this.settings);
+        if (out != null) {
+            settings.put("out", out.toString());
+        }
+        if (format.equals("pdf")) {
+            return WkHtmlToXJob.pdf(tenant, settings,
+                    Collections.singletonList(new WkHtmlToXJob.Input(new HashMap<>(objectSettings), html)));
+        }
+        settings.put("fmt", format);
+        return WkHtmlToXJob.image(tenant, settings, html);
+    }
+
+    private static Path part(Path output) {
+        return output.resolveSibling(output.getFileName() + PART_SUFFIX);
+    }
+
+    private interface Sink {
+        void write(String entry, WkHtmlToXResult result) throws IOException;
+    }
+
+    private static class Pending {
+        final long row;
+        final String entry;
+        final CompletableFuture<WkHtmlToXResult> result;
+
+        Pending(long row, String entry, CompletableFuture<WkHtmlToXResult> result) {
+            this.row = row;
+            this.entry = entry;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.wkhtmltopdf.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTML template with placeholders, parsed once and merged with many data rows.
+ * {@code {{name}}} is replaced with the HTML-escaped value of the row, {@code {{{name}}}} with the
+ * value as is. Placeholders without a value are replaced with nothing.
+ */
+public class WkHtmlToXTemplate {
+    private final List<String> texts = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<Boolean> escaped = new ArrayList<>();
+    private final int length;
+
+    private WkHtmlToXTemplate(String template) {
+        int position = 0;
+        while (true) {
+            int start = template.indexOf("{{", position);
+            if (start < 0) {
+                break;
+            }
+            boolean raw = template.startsWith("{{{", start);
+            String close = raw ? "}}}" : "}}";
+            int end = template.indexOf(close, start + close.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Unclosed placeholder at " + start);
+            }
+            texts.add(template.substring(position, start));
+            names.add(template.substring(start + close.length(), end).trim());
+            escaped.add(!raw);
+            position = end + close.length();
+        }
+        texts.add(template.substring(position));
+        length = template.length();
+    }
+
+    public static WkHtmlToXTemplate compile(String template) {
+        return new WkHtmlToXTemplate(template);
+    }
+
+    /**
+     * Returns the names of the placeholders, in the order they appear.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Returns the HTML of the template with the placeholders replaced by the values of the row.
+     */
+    public String merge(Map<String, ?> row) {
+        StringBuilder sb = new StringBuilder(length + length / 4);
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(texts.get(i));
+            Object value = row.get(names.get(i));
+            if (value == null) {
+                continue;
+            }
+            if (escaped.get(i)) {
+                escape(sb, value.toString());
+            } else {
+                sb.append(value);
+            }
+        }
+        return sb.append(texts.get(names.size())).toString();
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
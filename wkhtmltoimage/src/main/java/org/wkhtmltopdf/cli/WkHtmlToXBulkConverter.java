@@ -0,0 +1,361 @@
+package org.wkhtmltopdf.cli;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.worker.WorkerPool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/**
+ * Converts directories of HTML files, or the files and URLs listed in a manifest, for backfills
+ * of many documents. Inputs are streamed rather than collected, so the amount of inputs is not
+ * limited by memory, and at most the configured amount of conversions are in flight at a time,
+ * bounding the memory held by their documents.
+ * <p>
+ * Each document is written to a temporary file next to its output and moved into place once
+ * complete. Inputs whose output already exists are skipped, so an interrupted run resumes where
+ * it stopped when started again, and failed inputs are retried. While converting, the throughput
+ * and the latency percentiles of recent conversions are printed periodically.
+ * <p>
+ * A manifest lists one input per line, a file path or an http or https URL, optionally followed
+ * by a tab and the output path, relative to the output directory. Blank lines and lines starting
+ * with "#" are ignored. Inputs of a directory are its files ending with ".html" or ".htm", and are
+ * written to the same relative paths in the output directory.
+ */
+public class WkHtmlToXBulkConverter {
+    private static final String PART_SUFFIX = ".part";
+    private static final int LATENCY_WINDOW = 4096;
+
+    private final Map<String, String> settings = new HashMap<>();
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private final AtomicLong converted = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private BiFunction<WkHtmlToXJob, WkHtmlToXListener, CompletableFuture<WkHtmlToXResult>> renderer =
+            (job, listener) -> WkHtmlToXTaskExecutor.getInstance().renderAsync(job, listener);
+    private String format = "pdf";
+    private int maxInFlight = 4;
+    private long reportMillis = 1000;
+    private PrintStream report = System.err;
+    private long recorded;
+
+    private WkHtmlToXBulkConverter() {
+    }
+
+    public static WkHtmlToXBulkConverter create() {
+        return new WkHtmlToXBulkConverter();
+    }
+
+    /**
+     * Converts the inputs given as arguments. Run without arguments for usage.
+     */
+    public static void main(String[] args) {
+        WkHtmlToXBulkConverter converter = create();
+        int workers = 0;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--format":
+                        converter.format(value);
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(value);
+                        break;
+                    case "--in-flight":
+                        converter.maxInFlight(Integer.parseInt(value));
+                        break;
+                    case "--set":
+                        int separator = value.indexOf('=');
+                        converter.setting(value.substring(0, separator), value.substring(separator + 1));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length - i != 2) {
+                throw new IllegalArgumentException("Expected an input and an output directory");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: WkHtmlToXBulkConverter [--format pdf|png|jpg] [--workers n] [--in-flight n]"
+                    + " [--set name=value]... <input directory or manifest> <output directory>");
+            System.exit(2);
+            return;
+        }
+        if (workers > 0) {
+            WkHtmlToXTaskExecutor.getInstance().workers(WorkerPool.create(workers).start());
+            if (converter.maxInFlight < workers * 2) {
+                converter.maxInFlight(workers * 2);
+            }
+        }
+        long failed = converter.convert(Paths.get(args[i]), Paths.get(args[i + 1]));
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * The output format: "pdf", the default, or an image format such as "png" or "jpg".
+     */
+    public WkHtmlToXBulkConverter format(String format) {
+        this.format = format.toLowerCase();
+        return this;
+    }
+
+    /**
+     * Sets a global setting of every conversion, e.g. "orientation" or "screenWidth".
+     */
+    public WkHtmlToXBulkConverter setting(String name, String value) {
+        settings.put(name, value);
+        return this;
+    }
+
+    /**
+     * The amount of conversions queued or converting at the same time. Defaults to 4; use about
+     * twice the amount of workers when rendering in worker processes.
+     */
+    public WkHtmlToXBulkConverter maxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("In-flight conversions must be positive.");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * The interval of progress reports, in milliseconds. 0 disables them. Defaults to 1 second.
+     */
+    public WkHtmlToXBulkConverter reportMillis(long reportMillis) {
+        if (reportMillis < 0) {
+            throw new IllegalArgumentException("Report interval must not be negative.");
+        }
+        this.reportMillis = reportMillis;
+        return this;
+    }
+
+    /**
+     * The stream progress reports and failures are printed to. Defaults to standard error.
+     */
+    public WkHtmlToXBulkConverter report(PrintStream report) {
+        this.report = report;
+        return this;
+    }
+
+    /**
+     * Renders conversions with the specified function instead of the executor.
+     */
+    public WkHtmlToXBulkConverter renderer(
+            BiFunction<WkHtmlToXJob, WkHtmlToXListener, CompletableFuture<WkHtmlToXResult>> renderer) {
+        this.renderer = renderer;
+        return this;
+    }
+
+    /**
+     * Converts the HTML files of the input directory, or the inputs listed in the input manifest,
+     * into the output directory, and prints a summary.
+     *
+     * @return the amount of failed conversions
+     */
+    public long convert(Path input, Path outputDirectory) {
+        converted.set(0);
+        skipped.set(0);
+        failed.set(0);
+        long start = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setName("wkhtmltox-bulk-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (reportMillis > 0) {
+            reporter.scheduleAtFixedRate(() -> report.println(status(start)),
+                    reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+        }
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        try (Stream<String[]> entries = entries(input)) {
+            Iterator<String[]> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                String[] entry = iterator.next();
+                Path output = outputDirectory.resolve(entry[1]).normalize();
+                if (Files.exists(output)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                inFlight.acquire();
+                convert(entry[0], output).whenComplete((ignored, error) -> inFlight.release());
+            }
+            inFlight.acquire(maxInFlight);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to read inputs from " + input, e);
+        } catch (UncheckedIOException e) {
+            throw new WkHtmlToXException("Failed to read inputs from " + input, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread is interrupted!");
+        } finally {
+            reporter.shutdownNow();
+        }
+        report.println(status(start));
+        return failed.get();
+    }
+
+    public long getConverted() {
+        return converted.get();
+    }
+
+    /**
+     * Returns the amount of inputs skipped because their output already existed.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the specified percentile (between 0 and 1) of the latencies of the recent
+     * conversions in milliseconds, or 0 if there are none.
+     */
+    public synchronized double getLatencyPercentile(double percentile) {
+        int count = (int) Math.min(recorded, LATENCY_WINDOW);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) (percentile * count))] / 1e6;
+    }
+
+    private CompletableFuture<Void> convert(String input, Path output) {
+        long start = System.nanoTime();
+        Path part = output.resolveSibling(output.getFileName() + PART_SUFFIX);
+        CompletableFuture<WkHtmlToXResult> result;
+        try {
+            Files.createDirectories(output.getParent());
+            result = renderer.apply(job(input, part), WkHtmlToXListener.NONE);
+        } catch (IOException | RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        return result.handle((done, error) -> {
+            try {
+                if (error == null && done.isSuccess()) {
+                    Files.move(part, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    record(System.nanoTime() - start);
+                    converted.incrementAndGet();
+                    return null;
+                }
+                Files.deleteIfExists(part);
+            } catch (IOException e) {
+                error = e;
+            }
+            failed.incrementAndGet();
+            String reason = error != null ? String.valueOf(error.getMessage()) : done.getFailureMessage();
+            report.println("Failed to convert " + input + ": " + reason);
+            return null;
+        });
+    }
+
+    private WkHtmlToXJob job(String input, Path out) {
+        Map<String, String> settings = new HashMap<>(this.settings);
+        settings.put("out", out.toString());
+        if (format.equals("pdf")) {
+            return WkHtmlToXJob.pdf(null, settings,
+                    Collections.singletonList(new WkHtmlToXJob.Input(Collections.singletonMap("page", input), null)));
+        }
+        settings.put("fmt", format);
+        settings.put("in", input);
+        return WkHtmlToXJob.image(null, settings, null);
+    }
+
+    private synchronized void record(long latencyNanos) {
+        latencies[(int) (recorded++ % LATENCY_WINDOW)] = latencyNanos;
+    }
+
+    private String status(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("converted %d, skipped %d, failed %d, %.1f/s, latency p50 %.0f ms, p90 %.0f ms, p99 %.0f ms",
+                converted.get(), skipped.get(), failed.get(), converted.get() / Math.max(seconds, 1e-3),
+                getLatencyPercentile(0.5), getLatencyPercentile(0.9), getLatencyPercentile(0.99));
+    }
+
+    /**
+     * Returns the inputs and their output paths, relative to the output directory.
+     */
+    private Stream<String[]> entries(Path input) throws IOException {
+        String extension = "." + format;
+        if (Files.isDirectory(input)) {
+            return Files.walk(input)
+                    .filter(path -> Files.isRegularFile(path) && isHtml(path.getFileName().toString()))
+                    .map(path -> new String[]{path.toAbsolutePath().toString(),
+                            withExtension(input.relativize(path).toString(), extension)});
+        }
+        BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+        return reader.lines()
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .filter(line -> !line.trim().isEmpty() && !line.startsWith("#"))
+                .map(line -> {
+                    String[] columns = line.split("\t", 2);
+                    String source = columns[0].trim();
+                    if (columns.length > 1 && !columns[1].trim().isEmpty()) {
+                        return new String[]{source, columns[1].trim()};
+                    }
+                    return new String[]{source, withExtension(outputName(source), extension)};
+                });
+    }
+
+    private static boolean isHtml(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".html") || lower.endsWith(".htm");
+    }
+
+    /**
+     * Derives the output path of a manifest input without an explicit output path.
+     */
+    private static String outputName(String source) {
+        if (source.startsWith("http://") || source.startsWith("https://")) {
+            String name = source.replaceFirst("^https?://", "").replaceAll("[^A-Za-z0-9._-]", "_");
+            return name.isEmpty() ? "index" : name;
+        }
+        Path fileName = Paths.get(source).getFileName();
+        return fileName == null ? "index" : fileName.toString();
+    }
+
+    private static String withExtension(String path, String extension) {
+        int dot = path.lastIndexOf('.');
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return (dot > separator ? path.substring(0, dot) : path) + extension;
+    }
+}
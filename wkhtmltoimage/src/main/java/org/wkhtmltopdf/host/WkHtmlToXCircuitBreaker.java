@@ -0,0 +1,214 @@
+package org.wkhtmltopdf.host;
+
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+import org.wkhtmltopdf.WkHtmlToXResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fails conversions loading pages from a host right away once conversions against the host
+ * keep failing, so that a dead origin does not hold the render thread until every load times
+ * out. After a cool-down a single probe conversion is let through: if it succeeds the host is
+ * considered healthy again, otherwise it stays blocked for another cool-down.
+ * <p>
+ * A conversion counts as failed for its hosts if it returned an HTTP error code of 500 or more,
+ * or failed without an HTTP error code, e.g. because the host could not be reached. The failure
+ * of a conversion loading pages from several hosts only counts against the hosts named in its
+ * log, so that a failing host does not block the others loaded with it. Opened
+ * circuits and rejected conversions are recorded in the {@link WkHtmlToXMetrics} as
+ * "circuit.opened" and "circuit.rejected", the amount of blocked hosts as "circuit.open".
+ */
+public class WkHtmlToXCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        /**
+         * The cool-down has passed and a probe conversion is running.
+         */
+        HALF_OPEN
+    }
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final LongAdder opened;
+    private final LongAdder rejected;
+    private volatile int failureThreshold = 5;
+    private volatile long openMillis = 30_000;
+
+    private WkHtmlToXCircuitBreaker() {
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        opened = metrics.counter("circuit.opened");
+        rejected = metrics.counter("circuit.rejected");
+        metrics.gauge("circuit.open", () -> circuits.values().stream().filter(c -> c.state != State.CLOSED).count());
+    }
+
+    /**
+     * Creates a new {@code WkHtmlToXCircuitBreaker} blocking hosts for 30 seconds after 5
+     * consecutive failures.
+     */
+    public static WkHtmlToXCircuitBreaker create() {
+        return new WkHtmlToXCircuitBreaker();
+    }
+
+    /**
+     * The amount of consecutive failed conversions after which a host is blocked.
+     */
+    public WkHtmlToXCircuitBreaker failureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive.");
+        }
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * The time, in milliseconds, a host stays blocked before a probe conversion is let through.
+     */
+    public WkHtmlToXCircuitBreaker openMillis(long openMillis) {
+        this.openMillis = openMillis;
+        return this;
+    }
+
+    /**
+     * Returns whether a conversion loading pages from the hosts may run. If it may, its outcome
+     * must be passed to {@link #record(Collection, WkHtmlToXResult)}, or {@link #release(Collection)}
+     * if it does not run after all.
+     */
+    public boolean tryAcquire(Collection<String> hosts) {
+        long now = System.currentTimeMillis();
+        List<Circuit> probing = new ArrayList<>();
+        for (String host : hosts) {
+            Circuit circuit = circuits.get(host);
+            State state = circuit == null ? State.CLOSED : circuit.tryAcquire(now, openMillis);
+            if (state == State.OPEN) {
+                // Hosts let through as probes stay blocked until another conversion probes them.
+                probing.forEach(Circuit::abandon);
+                rejected.increment();
+                return false;
+            }
+            if (state == State.HALF_OPEN) {
+                probing.add(circuit);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a conversion loading pages from the hosts, or a failure if the
+     * result is {@code null}.
+     */
+    public void record(Collection<String> hosts, WkHtmlToXResult result) {
+        boolean failed = result == null || result.getHttpErrorCode() >= 500
+                || (!result.isSuccess() && result.getHttpErrorCode() == 0);
+        long now = System.currentTimeMillis();
+        for (String host : hosts) {
+            Circuit circuit = circuits.get(host);
+            if (!failed) {
+                if (circuit != null) {
+                    circuit.succeeded();
+                }
+            } else if (hosts.size() == 1 || (result != null && isNamed(host, result.getLog()))) {
+                if (circuits.computeIfAbsent(host, h -> new Circuit()).failed(now, failureThreshold)) {
+                    opened.increment();
+                }
+            } else if (circuit != null) {
+                // The conversion failed because of another host; this one is neither healthy nor failing.
+                circuit.abandon();
+            }
+        }
+    }
+
+    /**
+     * Gives up a conversion let through by {@link #tryAcquire(Collection)} which did not run, e.g.
+     * because it was rejected or cancelled while queued, so that another conversion may probe the
+     * hosts it was probing.
+     */
+    public void release(Collection<String> hosts) {
+        for (String host : hosts) {
+            Circuit circuit = circuits.get(host);
+            if (circuit != null) {
+                circuit.abandon();
+            }
+        }
+    }
+
+    /**
+     * Returns the state of the circuit of the host.
+     */
+    public State getState(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    private static boolean isNamed(String host, List<String> log) {
+        String authority = "://" + host;
+        for (String line : log) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            for (int i = lower.indexOf(authority); i >= 0; i = lower.indexOf(authority, i + 1)) {
+                int end = i + authority.length();
+                if (end == lower.length() || "/:?# )".indexOf(lower.charAt(end)) >= 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Circuit {
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+
+        /**
+         * Returns CLOSED if the conversion may run, HALF_OPEN if it may run as the probe, or OPEN
+         * if it is rejected.
+         */
+        synchronized State tryAcquire(long now, long openMillis) {
+            if (state == State.CLOSED) {
+                return State.CLOSED;
+            }
+            if (state == State.OPEN && now - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                return State.HALF_OPEN;
+            }
+            return State.OPEN;
+        }
+
+        /**
+         * Ends a probe without outcome, letting the next conversion probe the host right away.
+         */
+        synchronized void abandon() {
+            if (state == State.HALF_OPEN) {
+                state = State.OPEN;
+            }
+        }
+
+        /**
+         * Returns whether the failure opened the circuit.
+         */
+        synchronized boolean failed(long now, int threshold) {
+            failures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= threshold)) {
+                state = State.OPEN;
+                openedAt = now;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void succeeded() {
+            state = State.CLOSED;
+            failures = 0;
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package org.wkhtmltopdf.journal;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.worker.WorkerProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal on local disk of the conversions submitted to the
+ * {@link WkHtmlToXTaskExecutor#journal(WkHtmlToXJournal) executor} and of their completion, so
+ * that a process restarted after a crash can resume the conversions which had not finished.
+ * Only conversions writing to an "out" location are journaled, as the results of in-memory
+ * conversions are lost with the process that waited for them.
+ * <p>
+ * A submission returns once its record has been forced to disk. Records are written and forced
+ * by a single thread, which commits all records appended while the previous commit was forced
+ * in one write and one fsync, so concurrent submissions share the cost of syncing. Completions
+ * are committed the same way but not waited for; a completion lost in a crash only causes its
+ * conversion to be resumed once more. Once the journal exceeds the configured size and most of
+ * its records belong to finished conversions, it is rewritten with the unfinished ones only.
+ * <p>
+ * Records are checksummed; a record torn by a crash ends the journal and is truncated when it
+ * is opened again.
+ */
+public class WkHtmlToXJournal implements Closeable {
+    private static final byte SUBMITTED = 1;
+    private static final byte FINISHED = 2;
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    private final Map<Long, WkHtmlToXJob> unfinished = new LinkedHashMap<>();
+    private final Thread committer;
+    private FileChannel channel;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private volatile long groupCommitMillis;
+    private volatile long compactBytes = 64 << 20;
+    private long nextId = 1;
+    private long appendedRecords;
+    private long committedRecords;
+    private long fileRecords;
+    private long fileBytes;
+    private IOException failure;
+    private boolean closed;
+
+    private WkHtmlToXJournal(Path file) throws IOException {
+        this.file = file;
+        recover();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(fileBytes);
+        channel.position(fileBytes);
+        committer = new Thread(this::commitLoop, "wkhtmltox-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Opens the journal at the path, creating it if it does not exist, and recovers the
+     * conversions which had not finished.
+     *
+     * @throws WkHtmlToXException if the journal cannot be read or written
+     */
+    public static WkHtmlToXJournal open(Path file) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            return new WkHtmlToXJournal(file);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to open journal " + file, e);
+        }
+    }
+
+    /**
+     * The time, in milliseconds, the committer waits for further records before forcing a
+     * commit to disk, trading submission latency for fewer syncs. Defaults to 0, committing
+     * whatever was appended while the previous commit was forced.
+     */
+    public WkHtmlToXJournal groupCommitMillis(long groupCommitMillis) {
+        if (groupCommitMillis < 0) {
+            throw new IllegalArgumentException("Group commit delay must not be negative.");
+        }
+        this.groupCommitMillis = groupCommitMillis;
+        return this;
+    }
+
+    /**
+     * The size of the journal above which it is compacted once most of its records belong to
+     * finished conversions. Defaults to 64 MB.
+     */
+    public WkHtmlToXJournal compactBytes(long compactBytes) {
+        if (compactBytes < 1) {
+            throw new IllegalArgumentException("Compaction size must be positive.");
+        }
+        this.compactBytes = compactBytes;
+        return this;
+    }
+
+    /**
+     * Records the submission of the job and waits until the record is on disk.
+     *
+     * @return the id of the conversion, to be passed to {@link #finished(long)}
+     * @throws WkHtmlToXException if the journal cannot be written
+     */
+    public long submitted(WkHtmlToXJob job) {
+        lock.lock();
+        try {
+            checkWritable();
+            long id = nextId++;
+            append(SUBMITTED, id, job);
+            unfinished.put(id, job);
+            long record = appendedRecords;
+            while (committedRecords < record) {
+                checkWritable();
+                committed.awaitUninterruptibly();
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the conversion finished, successfully or not, without waiting for the record
+     * to be on disk.
+     */
+    public void finished(long id) {
+        lock.lock();
+        try {
+            if (unfinished.remove(id) != null && failure == null && !closed) {
+                append(FINISHED, id, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the conversions submitted but not finished, by id, in the order of submission.
+     */
+    public Map<Long, WkHtmlToXJob> getUnfinished() {
+        lock.lock();
+        try {
+            return new LinkedHashMap<>(unfinished);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resumes the unfinished conversions with the executor.
+     *
+     * @see #resume(BiFunction)
+     */
+    public List<CompletableFuture<WkHtmlToXResult>> resume() {
+        return resume((job, listener) -> WkHtmlToXTaskExecutor.getInstance().renderAsync(job, listener));
+    }
+
+    /**
+     * Resumes the unfinished conversions with the renderer. Conversions whose output already
+     * exists are marked finished instead, as are all but the last of conversions writing to the
+     * same output. A resumed conversion is marked finished once it completes. The executor only
+     * moves the output of a journaled conversion into place once it is completely on disk, so an
+     * existing output is never one cut short by a crash.
+     *
+     * @return the results of the resumed conversions
+     */
+    public List<CompletableFuture<WkHtmlToXResult>> resume(
+            BiFunction<WkHtmlToXJob, WkHtmlToXListener, CompletableFuture<WkHtmlToXResult>> renderer) {
+        List<Map.Entry<Long, WkHtmlToXJob>> entries = new ArrayList<>(getUnfinished().entrySet());
+        List<CompletableFuture<WkHtmlToXResult>> results = new ArrayList<>();
+        Set<String> outputs = new HashSet<>();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            long id = entries.get(i).getKey();
+            WkHtmlToXJob job = entries.get(i).getValue();
+            String out = job.getSettings().get("out");
+            if (out == null || !outputs.add(out) || Files.exists(Paths.get(out))) {
+                finished(id);
+                continue;
+            }
+            CompletableFuture<WkHtmlToXResult> result;
+            try {
+                result = renderer.apply(job, WkHtmlToXListener.NONE);
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            result.whenComplete((converted, error) -> finished(id));
+            results.add(result);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Rewrites the journal with the records of the unfinished conversions only.
+     *
+     * @throws WkHtmlToXException if the journal cannot be written
+     */
+    public void compact() {
+        lock.lock();
+        try {
+            // Waits until the committer is idle, so that no records are written while rewriting.
+            while (committedRecords < appendedRecords) {
+                checkWritable();
+                committed.awaitUninterruptibly();
+            }
+            checkWritable();
+            rewrite();
+        } catch (IOException e) {
+            failure = e;
+            throw new WkHtmlToXException("Failed to compact journal " + file, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the journal on disk.
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return fileBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits the appended records and closes the journal.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private void append(byte type, long id, WkHtmlToXJob job) {
+        try {
+            writeRecord(new DataOutputStream(pending), type, id, job);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        appendedRecords++;
+        appended.signal();
+    }
+
+    private void checkWritable() {
+        if (failure != null) {
+            throw new WkHtmlToXException("Failed to write journal " + file, failure);
+        }
+        if (closed) {
+            throw new WkHtmlToXException("Journal " + file + " is closed");
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            byte[] records;
+            long record;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    appended.awaitUninterruptibly();
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            long delay = groupCommitMillis;
+            if (delay > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    // commit right away
+                }
+            }
+            lock.lock();
+            try {
+                records = pending.toByteArray();
+                record = appendedRecords;
+                pending = new ByteArrayOutputStream();
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    committed.signalAll();
+                    return;
+                }
+                fileBytes += records.length;
+                fileRecords += record - committedRecords;
+                committedRecords = record;
+                if (fileBytes > compactBytes && unfinished.size() * 2 < fileRecords && pending.size() == 0) {
+                    rewrite();
+                }
+                committed.signalAll();
+            } catch (IOException e) {
+                failure = e;
+                committed.signalAll();
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the unfinished conversions to a new journal and moves it in place of the current
+     * one. Called with the lock held and no pending records.
+     */
+    private void rewrite() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + COMPACT_SUFFIX);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        for (Map.Entry<Long, WkHtmlToXJob> entry : unfinished.entrySet()) {
+            writeRecord(out, SUBMITTED, entry.getKey(), entry.getValue());
+        }
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            target.force(false);
+        }
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        fileBytes = records.size();
+        fileRecords = unfinished.size();
+    }
+
+    /**
+     * Reads the journal, keeping the unfinished conversions, up to the first incomplete or
+     * corrupt record.
+     */
+    private void recover() throws IOException {
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + COMPACT_SUFFIX));
+        if (!Files.exists(file)) {
+            return;
+        }
+        byte[] journal = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(journal);
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt(buffer.position());
+            long checksum = buffer.getInt(buffer.position() + 4) & 0xffffffffL;
+            if (length < 9 || length > buffer.remaining() - 8) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(journal, buffer.position() + 8, length);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal, buffer.position() + 8, length));
+            byte type = in.readByte();
+            long id = in.readLong();
+            if (type == SUBMITTED) {
+                unfinished.put(id, WorkerProtocol.readJob(in));
+            } else if (type == FINISHED) {
+                unfinished.remove(id);
+            } else {
+                break;
+            }
+            nextId = Math.max(nextId, id + 1);
+            fileRecords++;
+            buffer.position(buffer.position() + 8 + length);
+        }
+        fileBytes = buffer.position();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, long id, WkHtmlToXJob job) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(type);
+        record.writeLong(id);
+        if (job != null) {
+            WorkerProtocol.writeJob(record, job);
+        }
+        record.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo(out);
+        out.flush();
+    }
+}
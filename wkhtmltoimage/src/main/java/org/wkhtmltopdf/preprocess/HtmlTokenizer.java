@@ -0,0 +1,168 @@
+package org.wkhtmltopdf.preprocess;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Splits an HTML document into tokens while reading it, without building a tree. Only as much
+ * of the document as the current token is held in memory.
+ */
+class HtmlTokenizer {
+    /**
+     * Elements whose content is not parsed as HTML.
+     */
+    private static final List<String> RAW_TEXT_ELEMENTS = Arrays.asList("script", "style", "textarea", "title", "xmp");
+
+    private final Reader in;
+    private int peeked = -2;
+
+    HtmlTokenizer(Reader in) {
+        this.in = in;
+    }
+
+    void run(Consumer<WkHtmlToXHtmlToken> out) throws IOException {
+        StringBuilder text = new StringBuilder();
+        int c;
+        while ((c = read()) >= 0) {
+            int next = c == '<' ? peek() : -1;
+            if (c != '<' || !(next == '!' || next == '?' || next == '/' || Character.isLetter(next))) {
+                text.append((char) c);
+                continue;
+            }
+            if (text.length() > 0) {
+                out.accept(WkHtmlToXHtmlToken.text(text.toString()));
+                text.setLength(0);
+            }
+            WkHtmlToXHtmlToken token = markup();
+            out.accept(token);
+            if (token.getType() == WkHtmlToXHtmlToken.Type.START_TAG && !token.isSelfClosing()
+                    && RAW_TEXT_ELEMENTS.contains(token.getName())) {
+                rawText(token.getName(), out);
+            }
+        }
+        if (text.length() > 0) {
+            out.accept(WkHtmlToXHtmlToken.text(text.toString()));
+        }
+    }
+
+    /**
+     * Reads the markup after a '&lt;'.
+     */
+    private WkHtmlToXHtmlToken markup() throws IOException {
+        StringBuilder markup = new StringBuilder("<");
+        int c = read();
+        markup.append((char) c);
+        if (c == '!' && peek() == '-') {
+            markup.append((char) read());
+            if (peek() == '-') {
+                markup.append((char) read());
+                readUntil(markup, "-->");
+                return WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.COMMENT, markup.toString());
+            }
+        }
+        if (c == '!' || c == '?') {
+            readUntil(markup, ">");
+            return WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.DECLARATION, markup.toString());
+        }
+        if (c == '/') {
+            readUntil(markup, ">");
+            return WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.END_TAG, markup.toString());
+        }
+        char quote = 0;
+        while ((c = read()) >= 0) {
+            markup.append((char) c);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if ((c == '"' || c == '\'') && isAttributeValueStart(markup)) {
+                quote = (char) c;
+            } else if (c == '>') {
+                break;
+            }
+        }
+        return WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.START_TAG, markup.toString());
+    }
+
+    private void rawText(String name, Consumer<WkHtmlToXHtmlToken> out) throws IOException {
+        StringBuilder raw = new StringBuilder();
+        String end = "</" + name;
+        int c;
+        while ((c = read()) >= 0) {
+            raw.append((char) c);
+            int length = raw.length();
+            if (Character.toLowerCase(c) == end.charAt(end.length() - 1) && endsWith(raw, end, true)) {
+                int next = peek();
+                if (next < 0 || Character.isWhitespace(next) || next == '>' || next == '/') {
+                    StringBuilder tag = new StringBuilder(raw.substring(length - end.length()));
+                    raw.setLength(length - end.length());
+                    if (raw.length() > 0) {
+                        out.accept(WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.RAW_TEXT, raw.toString()));
+                    }
+                    readUntil(tag, ">");
+                    out.accept(WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.END_TAG, tag.toString()));
+                    return;
+                }
+            }
+        }
+        if (raw.length() > 0) {
+            out.accept(WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.RAW_TEXT, raw.toString()));
+        }
+    }
+
+    private void readUntil(StringBuilder sb, String terminator) throws IOException {
+        int c;
+        while ((c = read()) >= 0) {
+            sb.append((char) c);
+            if (c == terminator.charAt(terminator.length() - 1) && endsWith(sb, terminator, false)) {
+                return;
+            }
+        }
+    }
+
+    private static boolean endsWith(StringBuilder sb, String suffix, boolean ignoreCase) {
+        int offset = sb.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            char c = sb.charAt(offset + i);
+            if (c != suffix.charAt(i) && !(ignoreCase && Character.toLowerCase(c) == suffix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a quote just read opens an attribute value, i.e. follows an '='.
+     */
+    private static boolean isAttributeValueStart(StringBuilder markup) {
+        for (int i = markup.length() - 2; i > 0; i--) {
+            char c = markup.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '=';
+            }
+        }
+        return false;
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return in.read();
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = in.read();
+        }
+        return peeked;
+    }
+}
@@ -0,0 +1,329 @@
+package org.wkhtmltopdf.preprocess;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+import org.wkhtmltopdf.asset.WkHtmlToXAssets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Transforms the HTML of a conversion before it reaches the native library, to save fetches and
+ * shorten the load phase of the render. The document is split into tokens while it is read and
+ * passed through the stages in order, so it is never parsed into a tree.
+ * <p>
+ * Script elements are stripped first whenever the settings disable JavaScript. Processed
+ * documents, inlined and dropped resources are recorded in the {@link WkHtmlToXMetrics} as
+ * "preprocess.documents", "preprocess.inlined" and "preprocess.dropped".
+ */
+public class WkHtmlToXHtmlPipeline {
+    /**
+     * The attribute of each element referencing the resource the element loads.
+     */
+    private static final Map<String, String> RESOURCE_ATTRIBUTES = new HashMap<>();
+    private static final Pattern WHITESPACE = Pattern.compile("[ \\t\\n\\r\\f]+");
+    private static final int HEAD_TIMEOUT_MILLIS = 2000;
+    private static final Map<String, Long> contentLengths = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > 1024;
+                }
+            });
+
+    static {
+        RESOURCE_ATTRIBUTES.put("img", "src");
+        RESOURCE_ATTRIBUTES.put("script", "src");
+        RESOURCE_ATTRIBUTES.put("link", "href");
+        RESOURCE_ATTRIBUTES.put("input", "src");
+        RESOURCE_ATTRIBUTES.put("iframe", "src");
+        RESOURCE_ATTRIBUTES.put("embed", "src");
+        RESOURCE_ATTRIBUTES.put("source", "src");
+        RESOURCE_ATTRIBUTES.put("audio", "src");
+        RESOURCE_ATTRIBUTES.put("video", "poster");
+        RESOURCE_ATTRIBUTES.put("object", "data");
+    }
+
+    private final List<WkHtmlToXHtmlStage> stages = new ArrayList<>();
+    private final WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+
+    public static WkHtmlToXHtmlPipeline create() {
+        return new WkHtmlToXHtmlPipeline();
+    }
+
+    /**
+     * Appends a custom stage.
+     */
+    public WkHtmlToXHtmlPipeline stage(WkHtmlToXHtmlStage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Removes script elements, even if JavaScript is enabled.
+     */
+    public WkHtmlToXHtmlPipeline stripScripts() {
+        return stage(WkHtmlToXHtmlPipeline::scriptStripper);
+    }
+
+    /**
+     * Removes comments.
+     */
+    public WkHtmlToXHtmlPipeline stripComments() {
+        return stage((settings, next) -> token -> {
+            if (token.getType() != WkHtmlToXHtmlToken.Type.COMMENT) {
+                next.accept(token);
+            }
+        });
+    }
+
+    /**
+     * Collapses runs of whitespace in text to a single space, except within {@code pre} and
+     * {@code textarea} elements. Text styled with {@code white-space: pre} elsewhere is collapsed too.
+     */
+    public WkHtmlToXHtmlPipeline collapseWhitespace() {
+        return stage((settings, next) -> new Consumer<WkHtmlToXHtmlToken>() {
+            private int preformatted;
+            private boolean afterSpace;
+
+            @Override
+            public void accept(WkHtmlToXHtmlToken token) {
+                if (token.isStartTag("pre") || token.isStartTag("listing")) {
+                    preformatted++;
+                } else if ((token.isEndTag("pre") || token.isEndTag("listing")) && preformatted > 0) {
+                    preformatted--;
+                } else if (token.getType() == WkHtmlToXHtmlToken.Type.TEXT && preformatted == 0) {
+                    String text = WHITESPACE.matcher(token.getText()).replaceAll(" ");
+                    // Adjacent text, e.g. around a stripped comment, is collapsed as a whole.
+                    if (afterSpace && text.startsWith(" ")) {
+                        text = text.substring(1);
+                    }
+                    if (text.isEmpty()) {
+                        return;
+                    }
+                    afterSpace = text.endsWith(" ");
+                    next.accept(WkHtmlToXHtmlToken.text(text));
+                    return;
+                }
+                afterSpace = false;
+                next.accept(token);
+            }
+        });
+    }
+
+    /**
+     * Inlines images and scripts as data URIs, and stylesheets as style elements, if the resolver
+     * returns their content and it is at most the specified size. As inlined stylesheets are
+     * resolved against the page, URLs within them should be absolute.
+     *
+     * @param resolver Returns the content of the resource at a URL, as written in the document,
+     *                 or {@code null} to leave the reference alone.
+     */
+    public WkHtmlToXHtmlPipeline inline(Function<String, byte[]> resolver, int maxBytes) {
+        return stage((settings, next) -> token -> {
+            String url = inlinableUrl(token);
+            byte[] content = url == null ? null : resolver.apply(unescape(url));
+            if (content == null || content.length > maxBytes) {
+                next.accept(token);
+                return;
+            }
+            String contentType = WkHtmlToXAssets.guessContentType(url);
+            if (token.isStartTag("link")) {
+                String css = new String(content, StandardCharsets.UTF_8);
+                if (css.toLowerCase(Locale.ROOT).contains("</style")) {
+                    next.accept(token);
+                    return;
+                }
+                String media = token.getAttribute("media");
+                next.accept(WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.START_TAG, "<style>")
+                        .withAttribute("media", media));
+                next.accept(WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.RAW_TEXT, css));
+                next.accept(WkHtmlToXHtmlToken.of(WkHtmlToXHtmlToken.Type.END_TAG, "</style>"));
+            } else {
+                String attribute = RESOURCE_ATTRIBUTES.get(token.getName());
+                next.accept(token.withAttribute(attribute, "data:" + contentType.replace(" ", "")
+                        + ";base64," + Base64.getEncoder().encodeToString(content)));
+            }
+            metrics.counter("preprocess.inlined").increment();
+        });
+    }
+
+    /**
+     * Inlines the {@code wkasset://} resources of the asset store of at most the specified size.
+     *
+     * @see #inline(Function, int)
+     */
+    public WkHtmlToXHtmlPipeline inline(WkHtmlToXAssets assets, int maxBytes) {
+        return inline(url -> url.startsWith(WkHtmlToXAssets.SCHEME) ? assets.get(url) : null, maxBytes);
+    }
+
+    /**
+     * Removes references to remote resources larger than the specified size, looking up their
+     * size with HEAD requests. Sizes are remembered for the most recently referenced URLs.
+     */
+    public WkHtmlToXHtmlPipeline dropResourcesLargerThan(long maxBytes) {
+        return dropResourcesLargerThan(maxBytes, WkHtmlToXHtmlPipeline::contentLength);
+    }
+
+    /**
+     * Removes references to remote resources larger than the specified size. Stylesheet links
+     * are removed, other elements lose the attribute referencing the resource.
+     *
+     * @param sizes Returns the size of the resource at an http or https URL, or -1 if unknown.
+     */
+    public WkHtmlToXHtmlPipeline dropResourcesLargerThan(long maxBytes, ToLongFunction<String> sizes) {
+        return stage((settings, next) -> token -> {
+            String attribute = token.getType() == WkHtmlToXHtmlToken.Type.START_TAG
+                    ? RESOURCE_ATTRIBUTES.get(token.getName()) : null;
+            String url = attribute == null ? null : token.getAttribute(attribute);
+            if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))
+                    || sizes.applyAsLong(unescape(url)) <= maxBytes) {
+                next.accept(token);
+                return;
+            }
+            metrics.counter("preprocess.dropped").increment();
+            if (!token.isStartTag("link")) {
+                next.accept(token.withAttribute(attribute, null));
+            }
+        });
+    }
+
+    /**
+     * Processes an HTML document.
+     *
+     * @param settings The settings of the conversion or object the document is converted with.
+     */
+    public String process(String html, Map<String, String> settings) {
+        StringWriter out = new StringWriter(html.length());
+        try {
+            process(new StringReader(html), out, settings);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Processes an HTML document encoded as UTF-8 while it is read.
+     */
+    public void process(InputStream in, OutputStream out, Map<String, String> settings) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        process(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), writer, settings);
+        writer.flush();
+    }
+
+    /**
+     * Processes an HTML document while it is read.
+     */
+    public void process(Reader in, Writer out, Map<String, String> settings) throws IOException {
+        IOException[] failure = new IOException[1];
+        Consumer<WkHtmlToXHtmlToken> chain = token -> {
+            if (failure[0] == null) {
+                try {
+                    out.write(token.getText());
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            chain = stages.get(i).open(settings, chain);
+        }
+        if ("false".equals(settings.get("web.enableJavascript"))) {
+            chain = scriptStripper(settings, chain);
+        }
+        try {
+            new HtmlTokenizer(in).run(chain);
+        } catch (RuntimeException e) {
+            throw new WkHtmlToXException("Failed to pre-process HTML", e);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        metrics.counter("preprocess.documents").increment();
+    }
+
+    private static Consumer<WkHtmlToXHtmlToken> scriptStripper(Map<String, String> settings,
+                                                               Consumer<WkHtmlToXHtmlToken> next) {
+        return new Consumer<WkHtmlToXHtmlToken>() {
+            private boolean inScript;
+
+            @Override
+            public void accept(WkHtmlToXHtmlToken token) {
+                if (token.isStartTag("script")) {
+                    inScript = !token.isSelfClosing();
+                } else if (inScript) {
+                    inScript = !token.isEndTag("script");
+                } else {
+                    next.accept(token);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the URL of a resource which can be inlined, or {@code null}.
+     */
+    private static String inlinableUrl(WkHtmlToXHtmlToken token) {
+        if (token.isStartTag("img") || token.isStartTag("script") || token.isStartTag("input")) {
+            return token.getAttribute("src");
+        }
+        if (token.isStartTag("link")) {
+            String rel = String.valueOf(token.getAttribute("rel")).toLowerCase(Locale.ROOT);
+            if (rel.equals("stylesheet")) {
+                return token.getAttribute("href");
+            }
+        }
+        return null;
+    }
+
+    private static String unescape(String url) {
+        return url.replace("&amp;", "&");
+    }
+
+    private static long contentLength(String url) {
+        Long length = contentLengths.get(url);
+        if (length == null) {
+            length = -1L;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setRequestMethod("HEAD");
+                connection.setConnectTimeout(HEAD_TIMEOUT_MILLIS);
+                connection.setReadTimeout(HEAD_TIMEOUT_MILLIS);
+                if (connection.getResponseCode() / 100 == 2) {
+                    length = connection.getContentLengthLong();
+                }
+                connection.disconnect();
+            } catch (IOException | ClassCastException e) {
+                // Unknown sizes are kept.
+            }
+            contentLengths.put(url, length);
+        }
+        return length;
+    }
+}
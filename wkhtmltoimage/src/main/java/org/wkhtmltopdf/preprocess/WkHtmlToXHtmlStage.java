@@ -0,0 +1,21 @@
+package org.wkhtmltopdf.preprocess;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A stage of a {@link WkHtmlToXHtmlPipeline}, e.g. stripping comments.
+ */
+@FunctionalInterface
+public interface WkHtmlToXHtmlStage {
+
+    /**
+     * Starts processing a document, returning the consumer of its tokens. The consumer passes
+     * the tokens to keep, possibly replaced, on to the next stage and may keep state for the
+     * duration of the document.
+     *
+     * @param settings The settings of the conversion or object the document is converted with.
+     * @param next     The next stage.
+     */
+    Consumer<WkHtmlToXHtmlToken> open(Map<String, String> settings, Consumer<WkHtmlToXHtmlToken> next);
+}
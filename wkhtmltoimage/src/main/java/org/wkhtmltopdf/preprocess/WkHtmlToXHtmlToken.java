@@ -0,0 +1,189 @@
+package org.wkhtmltopdf.preprocess;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A piece of an HTML document as seen by the stages of a {@link WkHtmlToXHtmlPipeline}. Tokens
+ * keep their original text, so documents pass through unchanged unless a stage replaces a token.
+ * Attribute values are kept as written, including character references.
+ */
+public final class WkHtmlToXHtmlToken {
+
+    public enum Type {
+        TEXT,
+        /**
+         * The content of an element whose content is not parsed as HTML, e.g. a script or style.
+         */
+        RAW_TEXT,
+        COMMENT,
+        /**
+         * A doctype or processing instruction.
+         */
+        DECLARATION,
+        START_TAG,
+        END_TAG
+    }
+
+    private final Type type;
+    private final String text;
+    private final String name;
+    private Map<String, String> attributes;
+
+    private WkHtmlToXHtmlToken(Type type, String text, String name, Map<String, String> attributes) {
+        this.type = type;
+        this.text = text;
+        this.name = name;
+        this.attributes = attributes;
+    }
+
+    public static WkHtmlToXHtmlToken of(Type type, String text) {
+        String name = null;
+        if (type == Type.START_TAG || type == Type.END_TAG) {
+            int start = type == Type.START_TAG ? 1 : 2;
+            int end = start;
+            while (end < text.length() && !isNameEnd(text.charAt(end))) {
+                end++;
+            }
+            name = text.substring(start, end).toLowerCase(Locale.ROOT);
+        }
+        return new WkHtmlToXHtmlToken(type, text, name, null);
+    }
+
+    public static WkHtmlToXHtmlToken text(String text) {
+        return new WkHtmlToXHtmlToken(Type.TEXT, text, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the token as it appears in the document.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the lower case name of a tag, or {@code null} for other tokens.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isStartTag(String name) {
+        return type == Type.START_TAG && this.name.equals(name);
+    }
+
+    public boolean isEndTag(String name) {
+        return type == Type.END_TAG && this.name.equals(name);
+    }
+
+    /**
+     * Returns whether a start tag is written as self-closing, e.g. {@code <br/>}.
+     */
+    public boolean isSelfClosing() {
+        return type == Type.START_TAG && text.endsWith("/>");
+    }
+
+    /**
+     * Returns the attributes of a start tag by lower case name.
+     */
+    public Map<String, String> getAttributes() {
+        if (attributes == null) {
+            attributes = type == Type.START_TAG
+                    ? Collections.unmodifiableMap(parseAttributes(text, name.length() + 1))
+                    : Collections.emptyMap();
+        }
+        return attributes;
+    }
+
+    /**
+     * Returns the value of an attribute of a start tag, or {@code null} if it is missing.
+     */
+    public String getAttribute(String name) {
+        return getAttributes().get(name);
+    }
+
+    /**
+     * Returns a copy of a start tag with the attribute set, or removed if the value is {@code null}.
+     */
+    public WkHtmlToXHtmlToken withAttribute(String name, String value) {
+        Map<String, String> attributes = new LinkedHashMap<>(getAttributes());
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+        StringBuilder tag = new StringBuilder("<").append(this.name);
+        attributes.forEach((n, v) -> {
+            tag.append(' ').append(n);
+            if (!v.isEmpty()) {
+                tag.append("=\"").append(v.replace("\"", "&quot;")).append('"');
+            }
+        });
+        tag.append(isSelfClosing() ? "/>" : ">");
+        return new WkHtmlToXHtmlToken(Type.START_TAG, tag.toString(), this.name,
+                Collections.unmodifiableMap(attributes));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static boolean isNameEnd(char c) {
+        return Character.isWhitespace(c) || c == '>' || c == '/';
+    }
+
+    private static Map<String, String> parseAttributes(String tag, int offset) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        int i = offset;
+        int end = tag.length() - 1;
+        while (i < end) {
+            char c = tag.charAt(i);
+            if (Character.isWhitespace(c) || c == '/') {
+                i++;
+                continue;
+            }
+            int nameStart = i;
+            while (i < end && !Character.isWhitespace(tag.charAt(i)) && tag.charAt(i) != '='
+                    && tag.charAt(i) != '/') {
+                i++;
+            }
+            String name = tag.substring(nameStart, i).toLowerCase(Locale.ROOT);
+            while (i < end && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            String value = "";
+            if (i < end && tag.charAt(i) == '=') {
+                i++;
+                while (i < end && Character.isWhitespace(tag.charAt(i))) {
+                    i++;
+                }
+                if (i < end && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+                    char quote = tag.charAt(i++);
+                    int valueStart = i;
+                    while (i < end && tag.charAt(i) != quote) {
+                        i++;
+                    }
+                    value = tag.substring(valueStart, i);
+                    i++;
+                } else {
+                    int valueStart = i;
+                    while (i < end && !Character.isWhitespace(tag.charAt(i))) {
+                        i++;
+                    }
+                    value = tag.substring(valueStart, i);
+                }
+            }
+            if (!name.isEmpty()) {
+                attributes.putIfAbsent(name, value);
+            }
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,295 @@
+package org.wkhtmltopdf.proxy;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A byte-bounded cache of GET responses following the caching rules of HTTP for shared caches:
+ * responses are stored according to their Cache-Control and Expires headers, stale responses
+ * with a validator are revalidated instead of refetched. When full, stale responses which cannot
+ * be revalidated are evicted first, then the least recently used ones.
+ */
+class HttpCache {
+    private static final List<Integer> CACHEABLE_STATUSES = Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501);
+    private static final long MAX_HEURISTIC_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    HttpCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the stored response for the URL if it was stored for a request with the same
+     * values of the headers it varies on, fresh or not.
+     */
+    synchronized Entry get(String url, Map<String, String> requestHeaders) {
+        Entry entry = entries.get(url);
+        if (entry == null || !entry.matches(requestHeaders)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the response if it may be cached, returning whether it was stored. Any response
+     * previously stored for the URL is dropped either way.
+     */
+    synchronized boolean put(String url, Map<String, String> requestHeaders, Response response, long now) {
+        remove(url);
+        Entry entry = entry(requestHeaders, response, now);
+        if (entry == null || entry.size() > maxBytes) {
+            return false;
+        }
+        entries.put(url, entry);
+        bytes += entry.size();
+        evict(now);
+        return true;
+    }
+
+    /**
+     * Renews the freshness of a stored response after the origin confirmed it is unchanged,
+     * taking over the headers of the 304 response.
+     */
+    synchronized Entry revalidated(String url, Entry entry, Map<String, List<String>> notModifiedHeaders, long now) {
+        Map<String, List<String>> headers = new LinkedHashMap<>(entry.response.headers);
+        notModifiedHeaders.forEach((name, values) -> {
+            if (!name.equalsIgnoreCase("Content-Length")) {
+                headers.keySet().removeIf(name::equalsIgnoreCase);
+                headers.put(name, values);
+            }
+        });
+        Response response = new Response(entry.response.status, entry.response.reason, headers, entry.response.body);
+        Entry renewed = entry(entry.varyValues, response, now);
+        if (entries.get(url) == entry) {
+            remove(url);
+            if (renewed != null) {
+                entries.put(url, renewed);
+                bytes += renewed.size();
+            }
+        }
+        return renewed == null ? new Entry(response, Collections.emptyMap(), now) : renewed;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized int getEntries() {
+        return entries.size();
+    }
+
+    private void remove(String url) {
+        Entry previous = entries.remove(url);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+    }
+
+    private void evict(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.isFresh(now) && !entry.hasValidator()) {
+                it.remove();
+                bytes -= entry.size();
+            }
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            bytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the entry storing the response, or {@code null} if the response may not be stored
+     * or would be of no use.
+     */
+    private static Entry entry(Map<String, String> requestHeaders, Response response, long now) {
+        // Cookies are never shared between the pages of different conversions.
+        if (!CACHEABLE_STATUSES.contains(response.status) || response.header("Set-Cookie") != null) {
+            return null;
+        }
+        Map<String, String> cacheControl = cacheControl(response.header("Cache-Control"));
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")
+                || cacheControl(requestHeaders.get("cache-control")).containsKey("no-store")) {
+            return null;
+        }
+        if (requestHeaders.containsKey("authorization")
+                && !cacheControl.containsKey("public") && !cacheControl.containsKey("s-maxage")) {
+            return null;
+        }
+        Map<String, String> varyValues = new HashMap<>();
+        String vary = response.header("Vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                name = name.trim().toLowerCase(Locale.ROOT);
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (!name.isEmpty()) {
+                    varyValues.put(name, requestHeaders.getOrDefault(name, ""));
+                }
+            }
+        }
+        Entry entry = new Entry(response, varyValues, now);
+        entry.expires = now + freshnessLifetime(response, cacheControl) - age(response);
+        if (!entry.isFresh(now) && !entry.hasValidator()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private static long freshnessLifetime(Response response, Map<String, String> cacheControl) {
+        if (cacheControl.containsKey("no-cache")) {
+            return 0;
+        }
+        Long seconds = seconds(cacheControl.get("s-maxage"));
+        if (seconds == null) {
+            seconds = seconds(cacheControl.get("max-age"));
+        }
+        if (seconds != null) {
+            return TimeUnit.SECONDS.toMillis(seconds);
+        }
+        long date = date(response.header("Date"), System.currentTimeMillis());
+        String expires = response.header("Expires");
+        if (expires != null) {
+            // Invalid dates, e.g. "0", mean already expired.
+            return Math.max(0, date(expires, date) - date);
+        }
+        long lastModified = date(response.header("Last-Modified"), -1);
+        if (lastModified >= 0 && lastModified < date) {
+            // The usual heuristic: a tenth of the time since the last modification.
+            return Math.min(MAX_HEURISTIC_MILLIS, (date - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    private static long age(Response response) {
+        Long age = seconds(response.header("Age"));
+        return age == null ? 0 : TimeUnit.SECONDS.toMillis(age);
+    }
+
+    static Map<String, String> cacheControl(String header) {
+        if (header == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> directives = new HashMap<>();
+        for (String directive : header.split(",")) {
+            int eq = directive.indexOf('=');
+            String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            String value = eq < 0 ? "" : directive.substring(eq + 1).trim().replace("\"", "");
+            if (!name.isEmpty()) {
+                directives.put(name, value);
+            }
+        }
+        return directives;
+    }
+
+    private static Long seconds(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long date(String value, long invalid) {
+        if (value == null) {
+            return invalid;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return invalid;
+        }
+    }
+
+    /**
+     * A response received from an origin server, with its body read completely.
+     */
+    static class Response {
+        final int status;
+        final String reason;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+
+        Response(int status, String reason, Map<String, List<String>> headers, byte[] body) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Returns the values of the header joined by commas, or {@code null} if it is missing.
+         */
+        String header(String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return String.join(", ", header.getValue());
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A stored response together with the time it stays fresh and the request header values it
+     * was selected by.
+     */
+    static class Entry {
+        final Response response;
+        final Map<String, String> varyValues;
+        final long stored;
+        long expires;
+
+        Entry(Response response, Map<String, String> varyValues, long stored) {
+            this.response = response;
+            this.varyValues = varyValues;
+            this.stored = stored;
+            this.expires = stored;
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        boolean hasValidator() {
+            return response.header("ETag") != null || response.header("Last-Modified") != null;
+        }
+
+        boolean matches(Map<String, String> requestHeaders) {
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                if (!vary.getValue().equals(requestHeaders.getOrDefault(vary.getKey(), ""))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long size() {
+            long size = response.body.length + 64;
+            for (Map.Entry<String, List<String>> header : response.headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    size += header.getKey().length() + value.length() + 4;
+                }
+            }
+            return size;
+        }
+    }
+}
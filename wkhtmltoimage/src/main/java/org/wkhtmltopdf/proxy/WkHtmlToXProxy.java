@@ -0,0 +1,596 @@
+package org.wkhtmltopdf.proxy;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An HTTP proxy on the loopback interface through which converted pages load their
+ * sub-resources. GET responses are cached in memory following the caching rules of HTTP, and
+ * requests to denied hosts, e.g. trackers and analytics, are answered with 403 right away
+ * instead of slowing down the conversion. HTTPS requests are tunnelled, and filtered, but not cached.
+ * <p>
+ * Once started, the proxy is used by every conversion which does not set "load.proxy" itself
+ * when passed to {@link org.wkhtmltopdf.WkHtmlToXTaskExecutor#proxy(WkHtmlToXProxy)}. Its hits,
+ * misses, revalidations and denied requests are recorded in the {@link WkHtmlToXMetrics} as
+ * "proxy.hits", "proxy.misses", "proxy.revalidated" and "proxy.denied", along with the gauges
+ * "proxy.hitRatio", "proxy.cache.bytes" and "proxy.cache.entries".
+ */
+public class WkHtmlToXProxy implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int TIMEOUT_MILLIS = 30_000;
+    private static final List<String> HOP_BY_HOP_HEADERS = Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "proxy-authorization", "proxy-authenticate", "te", "trailer",
+            "transfer-encoding", "upgrade", "content-length");
+
+    private final List<String> allowed = new CopyOnWriteArrayList<>();
+    private final List<String> denied = new CopyOnWriteArrayList<>();
+    private final Set<String> exempted = ConcurrentHashMap.newKeySet();
+    private long maxCacheBytes = 64L * 1024 * 1024;
+    private HttpCache cache;
+    private volatile ServerSocket serverSocket;
+    private ExecutorService connections;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder revalidated;
+    private final LongAdder deniedRequests;
+
+    private WkHtmlToXProxy() {
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        hits = metrics.counter("proxy.hits");
+        misses = metrics.counter("proxy.misses");
+        revalidated = metrics.counter("proxy.revalidated");
+        deniedRequests = metrics.counter("proxy.denied");
+    }
+
+    public static WkHtmlToXProxy create() {
+        return new WkHtmlToXProxy();
+    }
+
+    /**
+     * The maximum size of the cached responses, in bytes. Defaults to 64 MiB, 0 disables caching.
+     */
+    public WkHtmlToXProxy maxCacheBytes(long maxCacheBytes) {
+        this.maxCacheBytes = maxCacheBytes;
+        return this;
+    }
+
+    /**
+     * Only lets requests to the specified hosts, and their subdomains, through. By default all
+     * hosts which are not denied are allowed.
+     */
+    public WkHtmlToXProxy allow(String... hosts) {
+        allowed.addAll(normalize(hosts));
+        return this;
+    }
+
+    /**
+     * Answers requests to the specified hosts, and their subdomains, with 403, e.g.
+     * {@code deny("google-analytics.com", "doubleclick.net")}.
+     */
+    public WkHtmlToXProxy deny(String... hosts) {
+        denied.addAll(normalize(hosts));
+        return this;
+    }
+
+    /**
+     * Lets requests to the specified origins, e.g. "http://127.0.0.1:8081", through regardless of
+     * the allowed and denied hosts. The executor exempts the server of its asset store this way.
+     */
+    public WkHtmlToXProxy exempt(String... origins) {
+        for (String origin : origins) {
+            URL url;
+            try {
+                url = new URL(origin);
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Invalid origin: " + origin, e);
+            }
+            exempted.add(authority(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort()));
+        }
+        return this;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     */
+    public synchronized WkHtmlToXProxy start() {
+        if (serverSocket != null) {
+            return this;
+        }
+        try {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Could not start proxy: " + e.getMessage());
+        }
+        cache = new HttpCache(maxCacheBytes);
+        connections = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "wkhtmltox-proxy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        metrics.gauge("proxy.hitRatio", this::getHitRatio);
+        metrics.gauge("proxy.cache.bytes", cache::getBytes);
+        metrics.gauge("proxy.cache.entries", cache::getEntries);
+        ServerSocket server = serverSocket;
+        connections.execute(() -> acceptLoop(server));
+        return this;
+    }
+
+    /**
+     * Returns the address of the proxy as used by the "load.proxy" setting.
+     */
+    public String getAddress() {
+        ServerSocket server = serverSocket;
+        if (server == null) {
+            throw new IllegalStateException("Proxy is not started.");
+        }
+        return "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+    }
+
+    /**
+     * Returns the share of cacheable requests answered from the cache, including revalidated ones.
+     */
+    public double getHitRatio() {
+        long hits = this.hits.sum() + revalidated.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns a copy of the job loading its pages through the proxy, unless it sets a proxy of
+     * its own or the proxy is not running.
+     */
+    public WkHtmlToXJob apply(WkHtmlToXJob job) {
+        ServerSocket server = serverSocket;
+        if (server == null) {
+            return job;
+        }
+        String address = "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+        if (job.getType() == WkHtmlToXJob.Type.IMAGE) {
+            return job.getSettings().containsKey("load.proxy") ? job : job.withSetting("load.proxy", address);
+        }
+        List<WkHtmlToXJob.Input> inputs = new ArrayList<>();
+        for (WkHtmlToXJob.Input input : job.getInputs()) {
+            if (input.getSettings().containsKey("load.proxy")) {
+                inputs.add(input);
+            } else {
+                Map<String, String> settings = new TreeMap<>(input.getSettings());
+                settings.put("load.proxy", address);
+                inputs.add(new WkHtmlToXJob.Input(settings, input.getHtmlData()));
+            }
+        }
+        return job.withInputs(inputs);
+    }
+
+    /**
+     * Stops listening. Conversions already configured to use the proxy fail to load their
+     * resources afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        connections.shutdownNow();
+        serverSocket = null;
+    }
+
+    private void acceptLoop(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            client.setSoTimeout(TIMEOUT_MILLIS);
+            InputStream in = new BufferedInputStream(client.getInputStream(), BUFFER_SIZE);
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+            Request request;
+            while ((request = Request.read(in)) != null) {
+                if (request.method.equals("CONNECT")) {
+                    tunnel(request, client, in, out);
+                    return;
+                }
+                if (!handle(request, in, out)) {
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+            // The page gave up on the request or the connection timed out.
+        }
+    }
+
+    /**
+     * Answers a proxied HTTP request, returning whether the connection may be reused.
+     */
+    private boolean handle(Request request, InputStream in, OutputStream out) throws IOException {
+        byte[] body = request.readBody(in);
+        URL url;
+        try {
+            url = new URL(request.target);
+        } catch (MalformedURLException e) {
+            writeError(out, 400, "Bad Request");
+            return false;
+        }
+        if (!url.getProtocol().equals("http")) {
+            writeError(out, 400, "Bad Request");
+            return false;
+        }
+        if (!isAllowed(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort())) {
+            deniedRequests.increment();
+            writeError(out, 403, "Forbidden");
+            return request.keepAlive;
+        }
+        HttpCache.Response response;
+        if ((request.method.equals("GET") || request.method.equals("HEAD")) && body.length == 0 && maxCacheBytes > 0) {
+            response = cached(request);
+        } else {
+            response = forward(request, body, null);
+        }
+        if (response == null) {
+            writeError(out, 502, "Bad Gateway");
+            return request.keepAlive;
+        }
+        write(out, response, !request.method.equals("HEAD"));
+        return request.keepAlive;
+    }
+
+    private HttpCache.Response cached(Request request) {
+        long now = System.currentTimeMillis();
+        String url = request.target;
+        HttpCache.Entry entry = cache.get(url, request.cacheHeaders);
+        boolean reload = HttpCache.cacheControl(request.cacheHeaders.get("cache-control")).containsKey("no-cache")
+                || "no-cache".equalsIgnoreCase(request.cacheHeaders.get("pragma"));
+        if (entry != null && !reload && entry.isFresh(now)) {
+            hits.increment();
+            return entry.response;
+        }
+        // Conditions of the page are dropped: it gets a full response, which also lets it be stored.
+        request.headers.keySet().removeIf(name -> name.toLowerCase(Locale.ROOT).startsWith("if-"));
+        Map<String, String> conditions = new LinkedHashMap<>();
+        if (entry != null && entry.hasValidator()) {
+            String etag = entry.response.header("ETag");
+            String lastModified = entry.response.header("Last-Modified");
+            if (etag != null) {
+                conditions.put("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                conditions.put("If-Modified-Since", lastModified);
+            }
+        }
+        HttpCache.Response response = forward(request, new byte[0], conditions);
+        if (response == null) {
+            return null;
+        }
+        now = System.currentTimeMillis();
+        if (response.status == 304 && !conditions.isEmpty()) {
+            revalidated.increment();
+            return cache.revalidated(url, entry, response.headers, now).response;
+        }
+        misses.increment();
+        if (request.method.equals("GET")) {
+            cache.put(url, request.cacheHeaders, response, now);
+        }
+        return response;
+    }
+
+    /**
+     * Sends the request to the origin server, returning {@code null} if it cannot be reached.
+     */
+    private HttpCache.Response forward(Request request, byte[] body, Map<String, String> conditions) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(request.target).openConnection(Proxy.NO_PROXY);
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod(request.method);
+            request.headers.forEach((name, values) -> {
+                if (!HOP_BY_HOP_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    for (String value : values) {
+                        connection.addRequestProperty(name, value);
+                    }
+                }
+            });
+            if (conditions != null) {
+                conditions.forEach(connection::setRequestProperty);
+            }
+            if (body.length > 0) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            int status = connection.getResponseCode();
+            String reason = connection.getResponseMessage();
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            connection.getHeaderFields().forEach((name, values) -> {
+                if (name != null && !HOP_BY_HOP_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    headers.put(name, values);
+                }
+            });
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] responseBody = new byte[0];
+            if (in != null) {
+                try (InputStream stream = in) {
+                    responseBody = readFully(stream);
+                }
+            }
+            return new HttpCache.Response(status, reason == null ? "" : reason, headers, responseBody);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void tunnel(Request request, Socket client, InputStream in, OutputStream out) throws IOException {
+        String target = request.target;
+        int colon = target.lastIndexOf(':');
+        String host = colon < 0 ? target : target.substring(0, colon);
+        int port;
+        try {
+            port = colon < 0 ? 443 : Integer.parseInt(target.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            writeError(out, 400, "Bad Request");
+            return;
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (!isAllowed(host, port)) {
+            deniedRequests.increment();
+            writeError(out, 403, "Forbidden");
+            return;
+        }
+        try (Socket origin = new Socket()) {
+            try {
+                origin.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                writeError(out, 502, "Bad Gateway");
+                return;
+            }
+            out.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            client.setSoTimeout(0);
+            Thread upstream = new Thread(() -> pipe(in, origin), "wkhtmltox-proxy-tunnel");
+            upstream.setDaemon(true);
+            upstream.start();
+            pipe(origin.getInputStream(), client);
+        }
+    }
+
+    private static void pipe(InputStream in, Socket to) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+            to.shutdownOutput();
+        } catch (SocketException ignored) {
+            // The other side closed the tunnel.
+        } catch (IOException ignored) {
+        }
+    }
+
+    private boolean isAllowed(String host, int port) {
+        host = host.toLowerCase(Locale.ROOT);
+        if (exempted.contains(authority(host, port))) {
+            return true;
+        }
+        if (matches(denied, host)) {
+            return false;
+        }
+        return allowed.isEmpty() || matches(allowed, host);
+    }
+
+    private static String authority(String host, int port) {
+        return host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    private static boolean matches(List<String> domains, String host) {
+        for (String domain : domains) {
+            if (host.equals(domain) || host.endsWith("." + domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> normalize(String... hosts) {
+        List<String> normalized = new ArrayList<>();
+        for (String host : hosts) {
+            String domain = host.trim().toLowerCase(Locale.ROOT);
+            if (domain.startsWith("*.")) {
+                domain = domain.substring(2);
+            }
+            if (!domain.isEmpty()) {
+                normalized.add(domain);
+            }
+        }
+        return normalized;
+    }
+
+    private static void write(OutputStream out, HttpCache.Response response, boolean withBody) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(response.status).append(' ')
+                .append(response.reason).append("\r\n");
+        response.headers.forEach((name, values) -> {
+            for (String value : values) {
+                head.append(name).append(": ").append(value).append("\r\n");
+            }
+        });
+        boolean hasBody = response.status >= 200 && response.status != 204 && response.status != 304;
+        if (hasBody) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (hasBody && withBody) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    private static void writeError(OutputStream out, int status, String reason) throws IOException {
+        out.write(("HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: 0\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The request line and headers of a request received from a page.
+     */
+    private static class Request {
+        final String method;
+        final String target;
+        final boolean keepAlive;
+        final Map<String, List<String>> headers;
+        /** The headers relevant for caching, by lower case name. */
+        final Map<String, String> cacheHeaders = new TreeMap<>();
+
+        private Request(String method, String target, boolean keepAlive, Map<String, List<String>> headers) {
+            this.method = method;
+            this.target = target;
+            this.keepAlive = keepAlive;
+            this.headers = headers;
+            headers.forEach((name, values) -> cacheHeaders.put(name.toLowerCase(Locale.ROOT), String.join(", ", values)));
+        }
+
+        /**
+         * Reads the next request, or returns {@code null} at the end of the connection.
+         */
+        static Request read(InputStream in) throws IOException {
+            String line = readLine(in);
+            while (line != null && line.isEmpty()) {
+                line = readLine(in);
+            }
+            if (line == null) {
+                return null;
+            }
+            String[] parts = line.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Malformed request line: " + line);
+            }
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.computeIfAbsent(line.substring(0, colon).trim(), n -> new ArrayList<>())
+                            .add(line.substring(colon + 1).trim());
+                }
+            }
+            String connection = null;
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                String name = header.getKey().toLowerCase(Locale.ROOT);
+                if (name.equals("connection") || name.equals("proxy-connection")) {
+                    connection = String.join(",", header.getValue()).toLowerCase(Locale.ROOT);
+                }
+            }
+            boolean keepAlive = parts[2].equals("HTTP/1.1")
+                    ? connection == null || !connection.contains("close")
+                    : connection != null && connection.contains("keep-alive");
+            return new Request(parts[0], parts[1], keepAlive, headers);
+        }
+
+        byte[] readBody(InputStream in) throws IOException {
+            String length = cacheHeaders.get("content-length");
+            if (length == null) {
+                if (cacheHeaders.containsKey("transfer-encoding")) {
+                    throw new IOException("Chunked request bodies are not supported.");
+                }
+                return new byte[0];
+            }
+            int size;
+            try {
+                size = Integer.parseInt(length.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + length);
+            }
+            if (size < 0) {
+                throw new IOException("Malformed Content-Length: " + length);
+            }
+            byte[] body = new byte[size];
+            int offset = 0;
+            while (offset < body.length) {
+                int read = in.read(body, offset, body.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of request body.");
+                }
+                offset += read;
+            }
+            return body;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+    }
+}
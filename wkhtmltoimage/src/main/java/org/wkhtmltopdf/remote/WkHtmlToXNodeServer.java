@@ -0,0 +1,295 @@
+package org.wkhtmltopdf.remote;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.worker.WorkerProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+
+/**
+ * Renders conversions received from {@link WkHtmlToXRemoteNodes} clients, speaking the
+ * {@link WorkerProtocol} over TCP. Each connection renders one conversion at a time; clients
+ * open several connections to render concurrently.
+ * <p>
+ * Conversions are rendered with {@link WkHtmlToXTaskExecutor#render(WkHtmlToXJob, WkHtmlToXListener)}
+ * of this process by default, so the proxy, asset store and worker pool configured on the node
+ * apply to them. The server has no authentication and binds to the loopback interface unless
+ * another address is specified. As any peer may send conversions, it only loads inline HTML and
+ * http or https URLs, blocks local file access of the pages, and rejects settings writing files
+ * on the node, e.g. "out"; the client writes the returned document instead.
+ */
+public class WkHtmlToXNodeServer {
+    /**
+     * Settings naming files a conversion writes.
+     */
+    private static final List<String> FILE_SETTINGS = Arrays.asList("out", "dumpOutline", "load.cookieJar");
+    /**
+     * Settings naming locations a conversion loads.
+     */
+    private static final List<String> URL_SETTINGS = Arrays.asList("in", "page", "header.htmlUrl",
+            "footer.htmlUrl", "web.userStyleSheet");
+
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setName("wkhtmltox-node-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    private volatile int maxMessageBytes = 64 << 20;
+    private volatile BiFunction<WkHtmlToXJob, WkHtmlToXListener, WkHtmlToXResult> renderer =
+            (job, listener) -> WkHtmlToXTaskExecutor.getInstance().render(job, listener);
+    private ServerSocket serverSocket;
+
+    private WkHtmlToXNodeServer() {
+    }
+
+    public static WkHtmlToXNodeServer create() {
+        return new WkHtmlToXNodeServer();
+    }
+
+    /**
+     * The address and port to listen on, e.g. "0.0.0.0" to accept connections from other hosts.
+     * Port 0 picks a free port.
+     */
+    public WkHtmlToXNodeServer bind(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+        return this;
+    }
+
+    /**
+     * Renders received conversions with the specified function instead of the executor.
+     */
+    public WkHtmlToXNodeServer renderer(BiFunction<WkHtmlToXJob, WkHtmlToXListener, WkHtmlToXResult> renderer) {
+        this.renderer = renderer;
+        return this;
+    }
+
+    /**
+     * The largest conversion, with its inline HTML, accepted from a client. A client sending a
+     * larger one is disconnected. Defaults to 64 MB.
+     */
+    public WkHtmlToXNodeServer maxMessageBytes(int maxMessageBytes) {
+        if (maxMessageBytes < 1) {
+            throw new IllegalArgumentException("Maximum message size must be positive.");
+        }
+        this.maxMessageBytes = maxMessageBytes;
+        return this;
+    }
+
+    /**
+     * Starts accepting connections. Has no effect if the server has already been started.
+     */
+    public synchronized WkHtmlToXNodeServer start() {
+        if (serverSocket != null) {
+            return this;
+        }
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(address, 50);
+        } catch (IOException e) {
+            serverSocket = null;
+            throw new WkHtmlToXException("Failed to open render node socket", e);
+        }
+        ServerSocket socket = serverSocket;
+        threads.execute(() -> acceptLoop(socket));
+        return this;
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public synchronized int getPort() {
+        if (serverSocket == null) {
+            throw new IllegalStateException("Render node server is not started");
+        }
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones, failing the conversions rendered
+     * for them on the clients.
+     */
+    public synchronized void close() {
+        if (serverSocket != null) {
+            closeQuietly(serverSocket);
+            serverSocket = null;
+        }
+        connections.forEach(WkHtmlToXNodeServer::closeQuietly);
+        threads.shutdownNow();
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                try {
+                    threads.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    // Accepted while closing.
+                    connections.remove(socket);
+                    closeQuietly(socket);
+                    return;
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                switch (type) {
+                    case WorkerProtocol.PING:
+                        out.writeByte(WorkerProtocol.READY);
+                        out.flush();
+                        break;
+                    case WorkerProtocol.JOB:
+                        long id = in.readLong();
+                        WkHtmlToXJob job = WorkerProtocol.readJob(in, maxMessageBytes);
+                        WkHtmlToXResult result;
+                        try {
+                            result = renderer.apply(confine(job), forwarding(out, id));
+                        } catch (RuntimeException e) {
+                            result = new WkHtmlToXResult(false, null,
+                                    Collections.singletonList("Error: " + e.getMessage()));
+                        }
+                        synchronized (out) {
+                            WorkerProtocol.writeResult(out, id, result);
+                            out.flush();
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unexpected message type " + type);
+                }
+            }
+        } catch (IOException e) {
+            // The client is gone or sent garbage; drop the connection.
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Returns the job with local file access blocked.
+     *
+     * @throws WkHtmlToXException if the job writes files or loads anything but http and https URLs
+     */
+    private static WkHtmlToXJob confine(WkHtmlToXJob job) {
+        check(job.getSettings());
+        List<WkHtmlToXJob.Input> inputs = new ArrayList<>();
+        for (WkHtmlToXJob.Input input : job.getInputs()) {
+            check(input.getSettings());
+            Map<String, String> settings = new HashMap<>(input.getSettings());
+            if (job.getType() == WkHtmlToXJob.Type.PDF) {
+                settings.put("load.blockLocalFileAccess", "true");
+            }
+            inputs.add(new WkHtmlToXJob.Input(settings, input.getHtmlData()));
+        }
+        WkHtmlToXJob confined = job.withInputs(inputs);
+        if (job.getType() == WkHtmlToXJob.Type.IMAGE) {
+            confined = confined.withSetting("load.blockLocalFileAccess", "true");
+        }
+        return confined;
+    }
+
+    private static void check(Map<String, String> settings) {
+        for (String name : FILE_SETTINGS) {
+            if (settings.containsKey(name)) {
+                throw new WkHtmlToXException("Setting not allowed on render nodes: " + name);
+            }
+        }
+        for (String name : URL_SETTINGS) {
+            String url = settings.get(name);
+            if (url != null) {
+                String lower = url.trim().toLowerCase(Locale.ROOT);
+                if (!lower.startsWith("http://") && !lower.startsWith("https://")) {
+                    throw new WkHtmlToXException("Only http and https URLs can be loaded on render nodes: " + name);
+                }
+            }
+        }
+    }
+
+    private static WkHtmlToXListener forwarding(DataOutputStream out, long id) {
+        return new WkHtmlToXListener() {
+            @Override
+            public void warning(String message) {
+                send(out, () -> WorkerProtocol.writeMessage(out, WorkerProtocol.WARNING, id, message));
+            }
+
+            @Override
+            public void error(String message) {
+                send(out, () -> WorkerProtocol.writeMessage(out, WorkerProtocol.ERROR, id, message));
+            }
+
+            @Override
+            public void progress(WkHtmlToXProgress progress) {
+                send(out, () -> WorkerProtocol.writeProgress(out, id, progress));
+            }
+        };
+    }
+
+    private static void send(DataOutputStream out, IOAction action) {
+        // Callbacks arrive on the render thread of the node, not on the connection thread.
+        synchronized (out) {
+            try {
+                action.run();
+                out.flush();
+            } catch (IOException e) {
+                // The client is gone; writing the result will fail and end the connection.
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+}
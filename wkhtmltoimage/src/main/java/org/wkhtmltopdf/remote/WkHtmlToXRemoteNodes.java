@@ -0,0 +1,407 @@
+package org.wkhtmltopdf.remote;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.worker.WorkerProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders conversions on remote {@link WkHtmlToXNodeServer render nodes}. Conversions are routed
+ * by consistent hashing of their fingerprint, so that repeated conversions land on the node
+ * whose proxy cache and asset store are already warm, and adding or removing a node only moves
+ * the conversions of its share of the ring. Each node is placed on the ring as many virtual
+ * nodes to spread the load evenly.
+ * <p>
+ * Nodes are health checked periodically. Conversions skip unhealthy nodes, and a conversion
+ * whose node drops the connection, or sends nothing for the render timeout, is retried on the
+ * next node of the ring. Nodes are not trusted with local files: they must send documents
+ * through the connection. Routed and failed
+ * over conversions are recorded in the {@link WkHtmlToXMetrics} as "remote.requests" and
+ * "remote.failovers", the amount of healthy nodes as "remote.nodes.healthy".
+ */
+public class WkHtmlToXRemoteNodes {
+    private final List<Node> nodes = new CopyOnWriteArrayList<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setName("wkhtmltox-remote");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService healthChecks = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setName("wkhtmltox-remote-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder requests;
+    private final LongAdder failovers;
+    private volatile NavigableMap<Long, Node> ring = new TreeMap<>();
+    private volatile int virtualNodes = 100;
+    private volatile int connectionsPerNode = 4;
+    private volatile long healthCheckMillis = 5000;
+    private volatile int timeoutMillis = 5000;
+    private volatile int renderTimeoutMillis = 60_000;
+    private volatile int maxMessageBytes = 256 << 20;
+    private boolean started;
+
+    private WkHtmlToXRemoteNodes() {
+        WkHtmlToXMetrics metrics = WkHtmlToXMetrics.getInstance();
+        requests = metrics.counter("remote.requests");
+        failovers = metrics.counter("remote.failovers");
+        metrics.gauge("remote.nodes.healthy", () -> nodes.stream().filter(node -> node.healthy).count());
+    }
+
+    public static WkHtmlToXRemoteNodes create() {
+        return new WkHtmlToXRemoteNodes();
+    }
+
+    /**
+     * Adds a render node.
+     */
+    public WkHtmlToXRemoteNodes node(String host, int port) {
+        nodes.add(new Node(new InetSocketAddress(host, port)));
+        buildRing();
+        return this;
+    }
+
+    /**
+     * The amount of points each node is placed on the hash ring with. Defaults to 100.
+     */
+    public WkHtmlToXRemoteNodes virtualNodes(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes must be positive.");
+        }
+        this.virtualNodes = virtualNodes;
+        buildRing();
+        return this;
+    }
+
+    /**
+     * The amount of conversions rendered on each node at the same time. Defaults to 4.
+     */
+    public WkHtmlToXRemoteNodes connectionsPerNode(int connectionsPerNode) {
+        if (connectionsPerNode < 1) {
+            throw new IllegalArgumentException("Connections per node must be positive.");
+        }
+        this.connectionsPerNode = connectionsPerNode;
+        return this;
+    }
+
+    /**
+     * The interval of health checks, in milliseconds. Defaults to 5 seconds.
+     */
+    public WkHtmlToXRemoteNodes healthCheckMillis(long healthCheckMillis) {
+        if (healthCheckMillis < 1) {
+            throw new IllegalArgumentException("Health check interval must be positive.");
+        }
+        this.healthCheckMillis = healthCheckMillis;
+        return this;
+    }
+
+    /**
+     * The timeout of connecting to a node and of health checks, in milliseconds. Defaults to 5 seconds.
+     */
+    public WkHtmlToXRemoteNodes timeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * The time, in milliseconds, a node may send nothing while rendering a conversion before it
+     * is considered failed and the conversion is retried on the next node. Nodes report progress
+     * while rendering. Defaults to 60 seconds.
+     */
+    public WkHtmlToXRemoteNodes renderTimeoutMillis(int renderTimeoutMillis) {
+        if (renderTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Render timeout must be positive.");
+        }
+        this.renderTimeoutMillis = renderTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * The largest message, e.g. a result with its document, accepted from a node. A node sending
+     * a larger one is considered failed and the conversion is retried on the next node.
+     * Defaults to 256 MB.
+     */
+    public WkHtmlToXRemoteNodes maxMessageBytes(int maxMessageBytes) {
+        if (maxMessageBytes < 1) {
+            throw new IllegalArgumentException("Maximum message size must be positive.");
+        }
+        this.maxMessageBytes = maxMessageBytes;
+        return this;
+    }
+
+    /**
+     * Starts the health checks. Has no effect if they have already been started.
+     */
+    public synchronized WkHtmlToXRemoteNodes start() {
+        if (!started) {
+            started = true;
+            healthChecks.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckMillis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the amount of conversions rendered at the same time across all nodes.
+     */
+    public int getCapacity() {
+        return Math.max(1, nodes.size() * connectionsPerNode);
+    }
+
+    /**
+     * Returns the nodes a job is routed to, in order of preference, as "host:port".
+     */
+    public List<String> route(WkHtmlToXJob job) {
+        List<String> route = new ArrayList<>();
+        for (Node node : candidates(job)) {
+            route.add(node.toString());
+        }
+        return route;
+    }
+
+    /**
+     * Renders the job on the first healthy node of its route, failing over to the next node if
+     * the connection to a node fails. Warnings, errors and progress reported by the node are
+     * passed to the listener.
+     */
+    public CompletableFuture<WkHtmlToXResult> render(WkHtmlToXJob job, WkHtmlToXListener listener) {
+        CompletableFuture<WkHtmlToXResult> future = new CompletableFuture<>();
+        connections.execute(() -> {
+            requests.increment();
+            IOException failure = null;
+            for (Node node : candidates(job)) {
+                if (!node.healthy) {
+                    continue;
+                }
+                if (failure != null) {
+                    failovers.increment();
+                }
+                try {
+                    future.complete(node.render(job, listener));
+                    return;
+                } catch (IOException e) {
+                    node.healthy = false;
+                    failure = e;
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+            }
+            future.completeExceptionally(new WkHtmlToXException("No render node is available", failure));
+        });
+        return future;
+    }
+
+    /**
+     * Stops the health checks and closes all connections.
+     */
+    public void close() {
+        healthChecks.shutdownNow();
+        connections.shutdownNow();
+        nodes.forEach(Node::close);
+    }
+
+    private List<Node> candidates(WkHtmlToXJob job) {
+        NavigableMap<Long, Node> ring = this.ring;
+        List<Node> candidates = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return candidates;
+        }
+        long hash = hash(job.getFingerprint());
+        for (Node node : ring.tailMap(hash, true).values()) {
+            if (!candidates.contains(node)) {
+                candidates.add(node);
+            }
+        }
+        for (Node node : ring.headMap(hash, false).values()) {
+            if (!candidates.contains(node)) {
+                candidates.add(node);
+            }
+        }
+        return candidates;
+    }
+
+    private synchronized void buildRing() {
+        NavigableMap<Long, Node> ring = new TreeMap<>();
+        for (Node node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+        this.ring = ring;
+    }
+
+    private void checkHealth() {
+        for (Node node : nodes) {
+            node.healthy = node.ping(timeoutMillis);
+        }
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = hash << 8 | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class Node {
+        private final InetSocketAddress address;
+        private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+        private volatile boolean healthy = true;
+
+        Node(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        WkHtmlToXResult render(WkHtmlToXJob job, WkHtmlToXListener listener) throws IOException {
+            Connection connection = idle.pollFirst();
+            if (connection == null) {
+                connection = new Connection(address, timeoutMillis);
+            }
+            try {
+                WkHtmlToXResult result = connection.render(ids.incrementAndGet(), job, listener, renderTimeoutMillis,
+                        maxMessageBytes);
+                if (idle.size() < connectionsPerNode) {
+                    idle.addFirst(connection);
+                } else {
+                    connection.close();
+                }
+                return result;
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        boolean ping(int timeoutMillis) {
+            try (Connection connection = new Connection(address, timeoutMillis)) {
+                return connection.ping(timeoutMillis);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            for (Connection connection; (connection = idle.pollFirst()) != null; ) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    private static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(InetSocketAddress address, int timeoutMillis) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, timeoutMillis);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        WkHtmlToXResult render(long id, WkHtmlToXJob job, WkHtmlToXListener listener, int timeoutMillis,
+                               int maxMessageBytes) throws IOException {
+            // A SocketTimeoutException fails the node like a dropped connection.
+            socket.setSoTimeout(timeoutMillis);
+            WorkerProtocol.writeJob(out, id, job);
+            out.flush();
+            while (true) {
+                byte type = in.readByte();
+                if (in.readLong() != id) {
+                    throw new IOException("Unexpected job id");
+                }
+                switch (type) {
+                    case WorkerProtocol.WARNING:
+                        String warning = WorkerProtocol.readString(in, maxMessageBytes);
+                        notify(() -> listener.warning(warning));
+                        break;
+                    case WorkerProtocol.ERROR:
+                        String error = WorkerProtocol.readString(in, maxMessageBytes);
+                        notify(() -> listener.error(error));
+                        break;
+                    case WorkerProtocol.PROGRESS:
+                        WkHtmlToXProgress progress = WorkerProtocol.readProgress(in, maxMessageBytes);
+                        notify(() -> listener.progress(progress));
+                        break;
+                    case WorkerProtocol.RESULT:
+                        return WorkerProtocol.readInlineResult(in, maxMessageBytes);
+                    default:
+                        throw new IOException("Unexpected message type " + type);
+                }
+            }
+        }
+
+        boolean ping(int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+            out.writeByte(WorkerProtocol.PING);
+            out.flush();
+            return in.readByte() == WorkerProtocol.READY;
+        }
+
+        private static void notify(Runnable event) {
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                // Listener failures must not break the connection, as with native callbacks.
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
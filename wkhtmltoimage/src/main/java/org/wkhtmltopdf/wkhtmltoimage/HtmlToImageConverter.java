@@ -0,0 +1,590 @@
+package org.wkhtmltopdf.wkhtmltoimage;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXImageEncoder;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXReadiness;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXScripts;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.preprocess.WkHtmlToXHtmlPipeline;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class HtmlToImageConverter {
+
+    private static final String BOUNDING_BOXES = "wkhtmltox-bounding-boxes";
+    private static final String PAGE_HEIGHT = "wkhtmltox-page-height";
+    private final WkHtmlToXTaskExecutor taskExecutor;
+    private final String htmlData;
+    private final Map<String, String> settings;
+    private final List<Consumer<String>> warningCallbacks = new ArrayList<>();
+    private final List<Consumer<String>> errorCallbacks = new ArrayList<>();
+    private final List<Consumer<WkHtmlToXProgress>> progressChangedCallbacks = new ArrayList<>();
+    private final List<Consumer<Boolean>> finishedCallbacks = new ArrayList<>();
+    private String tenant;
+    private boolean javaEncoding;
+    private int tileHeight;
+    private int tileWindow = 4;
+    private WkHtmlToXHtmlPipeline pipeline;
+
+    private HtmlToImageConverter(WkHtmlToXTaskExecutor taskExecutor, String htmlData, Map<String, String> settings) {
+        this.taskExecutor = taskExecutor;
+        this.htmlData = htmlData;
+        this.settings = settings;
+    }
+
+    public static HtmlToImageConverter fromHtml(String htmlData) {
+        return fromHtml(htmlData, new HashMap<>());
+    }
+
+    public static HtmlToImageConverter fromHtml(String htmlData, Map<String, String> settings) {
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance();
+        return new HtmlToImageConverter(executor, htmlData, settings);
+    }
+
+    /**
+     * left/x coordinate of the window to capture in pixels. E.g. "200"
+     */
+    public HtmlToImageConverter cropLeft(int cropLeft) {
+        return setting("crop.left", cropLeft);
+    }
+
+    /**
+     * top/y coordinate of the window to capture in pixels. E.g. "200"
+     */
+    public HtmlToImageConverter cropTop(int cropTop) {
+        return setting("crop.top", cropTop);
+    }
+
+    /**
+     * Width of the window to capture in pixels. E.g. "200"
+     */
+    public HtmlToImageConverter cropWidth(int cropWidth) {
+        return setting("crop.width", cropWidth);
+    }
+
+    /**
+     * Height of the window to capture in pixels. E.g. "200"
+     */
+    public HtmlToImageConverter cropHeight(int cropHeight) {
+        return setting("crop.height", cropHeight);
+    }
+
+    /**
+     * The cookie jar to use when loading and storing cookies.
+     */
+    public HtmlToImageConverter cookieJar(String cookieJar) {
+        return setting("load.cookieJar", cookieJar);
+    }
+
+    /**
+     * When outputting a PNG or SVG, make the white background transparent. Must be either "true" or "false"
+     */
+    public HtmlToImageConverter transparent(boolean transparent) {
+        return setting("transparent", transparent);
+    }
+
+    /**
+     * Whether or not to enable javascript.
+     */
+    public HtmlToImageConverter enableJavascript(boolean enable) {
+        return setting("web.enableJavascript", enable);
+    }
+
+    /**
+     * The URL or path of the input file, if "-" stdin is used. E.g. "http://google.com"
+     */
+    public HtmlToImageConverter in(String in) {
+        return setting("in", in);
+    }
+
+
+    /**
+     * The output format to use, must be either "", "jpg", "png", "bmp" or "svg".
+     */
+    public HtmlToImageConverter fmt(String fmt) {
+        return setting("fmt", fmt);
+    }
+
+    /**
+     * The with of the screen used to render is pixels, e.g "800".
+     */
+    public HtmlToImageConverter screenWidth(int screenWidth) {
+        return setting("screenWidth", screenWidth);
+    }
+
+    /**
+     * Should we expand the screenWidth if the content does not fit? must be either "true" or "false".
+     */
+    public HtmlToImageConverter smartWidth(String smartWidth) {
+        return setting("smartWidth", smartWidth);
+    }
+
+    /**
+     * The compression factor to use when outputting a JPEG image. E.g. "94".
+     */
+    public HtmlToImageConverter quality(int quality) {
+        return setting("quality", quality);
+    }
+
+    /**
+     * Whether the native library should only render a bitmap, leaving the encoding to the requested
+     * format to the {@link WkHtmlToXImageEncoder} pool. This frees the render thread for the next
+     * conversion sooner and lets encoding use all cores. Transparent images, and formats without an
+     * ImageIO writer, are still encoded natively.
+     */
+    public HtmlToImageConverter javaEncoding(boolean javaEncoding) {
+        this.javaEncoding = javaEncoding;
+        return this;
+    }
+
+    /**
+     * Converts the page as soon as it sets {@code window.status} to the specified value, instead of
+     * after a fixed JavaScript delay, or after the maximum wait if it never does.
+     *
+     * @see WkHtmlToXReadiness
+     */
+    public HtmlToImageConverter waitForReady(String windowStatus, long maxWaitMillis) {
+        WkHtmlToXReadiness.configure(settings, windowStatus, maxWaitMillis);
+        return this;
+    }
+
+    /**
+     * Renders the page in horizontal tiles of the specified height in pixels instead of at once.
+     * Tiles are rendered concurrently when the {@link WkHtmlToXTaskExecutor} uses worker processes
+     * and are stitched into the output in order, so the whole image is never held in memory.
+     * Tiled conversions always produce a PNG and require JavaScript to measure the page.
+     */
+    public HtmlToImageConverter tileHeight(int tileHeight) {
+        this.tileHeight = tileHeight;
+        return this;
+    }
+
+    /**
+     * The amount of tiles rendering or waiting to be stitched at the same time, bounding the
+     * memory of tiled conversions. Only the tile being stitched is decoded. Defaults to 4.
+     */
+    public HtmlToImageConverter tileWindow(int tileWindow) {
+        if (tileWindow < 1) {
+            throw new IllegalArgumentException("Tile window must be positive.");
+        }
+        this.tileWindow = tileWindow;
+        return this;
+    }
+
+    /**
+     * Passes the HTML through the specified pipeline before converting it, e.g. to inline small
+     * assets. Has no effect on pages loaded from a URL.
+     */
+    public HtmlToImageConverter preprocess(WkHtmlToXHtmlPipeline pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
+    /**
+     * The tenant key the conversion is scheduled under. Conversions of different tenants share
+     * the render thread according to the tenant policies of the {@link org.wkhtmltopdf.WkHtmlToXScheduler}.
+     */
+    public HtmlToImageConverter tenant(String tenant) {
+        this.tenant = tenant;
+        return this;
+    }
+
+    private HtmlToImageConverter setting(String name, Object value) {
+        return setting(name, value.toString());
+    }
+
+    private HtmlToImageConverter setting(String name, String value) {
+        settings.put(name, value);
+        return this;
+    }
+
+    public HtmlToImageConverter warning(Consumer<String> warningConsumer) {
+        warningCallbacks.add(warningConsumer);
+        return this;
+    }
+
+    public HtmlToImageConverter error(Consumer<String> errorConsumer) {
+        errorCallbacks.add(errorConsumer);
+        return this;
+    }
+
+    public HtmlToImageConverter progress(Consumer<WkHtmlToXProgress> progressChangeConsumer) {
+        progressChangedCallbacks.add(progressChangeConsumer);
+        return this;
+    }
+
+    public HtmlToImageConverter finished(Consumer<Boolean> finishConsumer) {
+        finishedCallbacks.add(finishConsumer);
+        return this;
+    }
+
+    public HtmlToImageConverter success(Runnable successRunnable) {
+        return finished(success -> {
+            if (success) {
+                successRunnable.run();
+            }
+        });
+    }
+
+    public HtmlToImageConverter failure(Runnable failureRunnable) {
+        return finished(success -> {
+            if (!success) {
+                failureRunnable.run();
+            }
+        });
+    }
+
+    public InputStream toInputStream() {
+        return convertInMemory().toInputStream();
+    }
+
+    /**
+     * Performs the conversion, returning a read-only buffer with the bytes of the resulting image.
+     * Documents rendered by worker processes are mapped into memory rather than copied.
+     *
+     * @throws WkHtmlToXException if conversion failed
+     */
+    public ByteBuffer toByteBuffer() {
+        return convertInMemory().getOutputBuffer();
+    }
+
+    /**
+     * Performs the conversion without blocking the calling thread, completing the returned
+     * future with a read-only buffer with the bytes of the resulting image, or exceptionally with a
+     * {@link WkHtmlToXException} if conversion failed. Callbacks are called on other threads.
+     */
+    public CompletableFuture<ByteBuffer> toByteBufferAsync() {
+        return taskExecutor.supplyAsync(this::toByteBuffer);
+    }
+
+    private WkHtmlToXResult convertInMemory() {
+        Map<String, String> settings = new HashMap<>(this.settings);
+        settings.remove("out");
+        WkHtmlToXResult result = convert(settings);
+        if (!result.isSuccess()) {
+            throw new WkHtmlToXException(result.getFailureMessage());
+        }
+        return result;
+    }
+
+    public boolean saveAsImage(String path) {
+        Map<String, String> settings = new HashMap<>(this.settings);
+        settings.put("out", path);
+        return convert(settings).isSuccess();
+    }
+
+    /**
+     * Performs the conversion once, deriving every variant from the rendered bitmap. Variants are
+     * scaled and encoded in parallel on the {@link WkHtmlToXImageEncoder} pool.
+     *
+     * @return The encoded variants by name, in the order they were specified.
+     * @throws WkHtmlToXException if conversion failed
+     */
+    public Map<String, byte[]> toImages(WkHtmlToImageVariant... variants) {
+        checkUniqueNames(Arrays.stream(variants).map(WkHtmlToImageVariant::getName));
+        WkHtmlToXResult bitmap = renderBitmap(bitmapSettings());
+        WkHtmlToXImageEncoder encoder = WkHtmlToXImageEncoder.getInstance();
+        BufferedImage image = WkHtmlToXImageEncoder.await(encoder.decode(bitmap.getOutput()));
+        Map<String, CompletableFuture<byte[]>> encoding = new LinkedHashMap<>();
+        for (WkHtmlToImageVariant variant : variants) {
+            encoding.put(variant.getName(), encoder.encode(image, variant.getWidth(), variant.getHeight(),
+                    variant.getFormat(), variant.getQuality()));
+        }
+        return awaitAll(encoding);
+    }
+
+    /**
+     * Performs the conversion of the full page once, cutting every crop from the rendered bitmap.
+     * Crop settings of the converter are ignored. Crops given by CSS selector are resolved by a
+     * script run once the page has loaded. Crops are cut and encoded in parallel on the
+     * {@link WkHtmlToXImageEncoder} pool.
+     *
+     * @return The encoded crops by name, in the order they were specified.
+     * @throws WkHtmlToXException if conversion failed or a selector matched no element
+     */
+    public Map<String, byte[]> toCrops(WkHtmlToImageCrop... crops) {
+        checkUniqueNames(Arrays.stream(crops).map(WkHtmlToImageCrop::getName));
+        List<String> selectors = Arrays.stream(crops)
+                .map(WkHtmlToImageCrop::getSelector)
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toList());
+        Map<String, String> settings = bitmapSettings();
+        settings.keySet().removeIf(name -> name.startsWith("crop."));
+        if (!selectors.isEmpty()) {
+            settings.put("load.debugJavascript", "true");
+            WkHtmlToXReadiness.append(settings, boundingBoxScript(selectors));
+        }
+        WkHtmlToXResult bitmap = renderBitmap(settings);
+        String[] boxes = selectors.isEmpty() ? new String[0]
+                : String.valueOf(WkHtmlToXScripts.find(bitmap.getLog(), BOUNDING_BOXES)).split(";", -1);
+        WkHtmlToXImageEncoder encoder = WkHtmlToXImageEncoder.getInstance();
+        BufferedImage image = WkHtmlToXImageEncoder.await(encoder.decode(bitmap.getOutput()));
+        Map<String, CompletableFuture<byte[]>> encoding = new LinkedHashMap<>();
+        for (WkHtmlToImageCrop crop : crops) {
+            int[] box = {crop.getLeft(), crop.getTop(), crop.getWidth(), crop.getHeight()};
+            if (crop.getSelector() != null) {
+                box = parseBox(boxes, selectors.indexOf(crop.getSelector()), crop.getSelector());
+            }
+            encoding.put(crop.getName(), encoder.encodeRegion(image, box[0], box[1], box[2], box[3],
+                    crop.getFormat(), crop.getQuality()));
+        }
+        return awaitAll(encoding);
+    }
+
+    private Map<String, String> bitmapSettings() {
+        Map<String, String> settings = new HashMap<>(this.settings);
+        settings.remove("out");
+        settings.remove("quality");
+        settings.put("fmt", "bmp");
+        return settings;
+    }
+
+    private WkHtmlToXResult renderBitmap(Map<String, String> settings) {
+        WkHtmlToXResult bitmap = render(settings);
+        if (!bitmap.isSuccess()) {
+            throw new WkHtmlToXException("Conversion returned with failure. Log:\n"
+                    + String.join("\n", bitmap.getLog()));
+        }
+        return bitmap;
+    }
+
+    private static void checkUniqueNames(Stream<String> names) {
+        Set<String> seen = new HashSet<>();
+        names.forEach(name -> {
+            if (!seen.add(name)) {
+                throw new IllegalArgumentException("Duplicate output name '" + name + "'.");
+            }
+        });
+    }
+
+    private static Map<String, byte[]> awaitAll(Map<String, CompletableFuture<byte[]>> encoding) {
+        Map<String, byte[]> images = new LinkedHashMap<>();
+        encoding.forEach((name, future) -> images.put(name, WkHtmlToXImageEncoder.await(future)));
+        return images;
+    }
+
+    private static String boundingBoxScript(List<String> selectors) {
+        String array = selectors.stream().map(WkHtmlToXScripts::string).collect(Collectors.joining(","));
+        return "(function(){var s=[" + array + "],r=[];"
+                + "for(var i=0;i<s.length;i++){var e=document.querySelector(s[i]);"
+                + "if(!e){r.push('-');continue;}var b=e.getBoundingClientRect();"
+                + "r.push([Math.round(b.left+window.pageXOffset),Math.round(b.top+window.pageYOffset),"
+                + "Math.round(b.width),Math.round(b.height)].join(','));}"
+                + WkHtmlToXScripts.log(BOUNDING_BOXES, "r.join(';')") + "})();";
+    }
+
+    private static int[] parseBox(String[] boxes, int index, String selector) {
+        String[] box = index < boxes.length ? boxes[index].split(",") : new String[0];
+        if (box.length != 4) {
+            throw new WkHtmlToXException("No element matches selector '" + selector + "'");
+        }
+        int[] parsed = new int[4];
+        for (int i = 0; i < 4; i++) {
+            parsed[i] = Integer.parseInt(box[i].trim());
+        }
+        if (parsed[2] <= 0 || parsed[3] <= 0) {
+            throw new WkHtmlToXException("Element matching selector '" + selector + "' is not visible");
+        }
+        return parsed;
+    }
+
+    private WkHtmlToXResult convert(Map<String, String> settings) {
+        if (tileHeight > 0) {
+            return convertTiled(settings);
+        }
+        String format = javaEncodedFormat(settings);
+        if (format == null) {
+            return render(settings);
+        }
+        String out = settings.remove("out");
+        String quality = settings.remove("quality");
+        settings.put("fmt", "bmp");
+        WkHtmlToXResult bitmap = render(settings);
+        if (!bitmap.isSuccess()) {
+            return bitmap;
+        }
+        byte[] image = WkHtmlToXImageEncoder.getInstance().transcode(bitmap.getOutput(), format,
+                quality == null ? -1 : Integer.parseInt(quality));
+        if (out == null) {
+            return new WkHtmlToXResult(true, image, bitmap.getLog(), bitmap.getHttpErrorCode());
+        }
+        try {
+            Files.write(Paths.get(out), image);
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to write " + out, e);
+        }
+        return new WkHtmlToXResult(true, null, bitmap.getLog(), bitmap.getHttpErrorCode());
+    }
+
+    private String javaEncodedFormat(Map<String, String> settings) {
+        if (!javaEncoding || "true".equals(settings.get("transparent"))) {
+            return null;
+        }
+        String format = settings.get("fmt");
+        String out = settings.get("out");
+        if ((format == null || format.isEmpty()) && out != null && out.lastIndexOf('.') >= 0) {
+            format = out.substring(out.lastIndexOf('.') + 1);
+        }
+        if (format == null || format.isEmpty()) {
+            format = "jpg";
+        }
+        format = format.toLowerCase(Locale.ROOT);
+        if (format.equals("bmp") || format.equals("svg") || !WkHtmlToXImageEncoder.canEncode(format)) {
+            return null;
+        }
+        return format;
+    }
+
+    private WkHtmlToXResult convertTiled(Map<String, String> settings) {
+        String out = settings.remove("out");
+        settings.remove("quality");
+        settings.keySet().removeIf(name -> name.startsWith("crop."));
+        settings.put("fmt", "bmp");
+        int pageHeight = measurePageHeight(settings);
+
+        String html = html();
+        WkHtmlToXListener listener = listener(false);
+        WkHtmlToXImageEncoder encoder = WkHtmlToXImageEncoder.getInstance();
+        Deque<CompletableFuture<WkHtmlToXResult>> pending = new ArrayDeque<>();
+        List<String> log = new ArrayList<>();
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        boolean success = false;
+        int httpErrorCode = 0;
+        try (OutputStream stream = out == null ? memory : new BufferedOutputStream(new FileOutputStream(out))) {
+            WkHtmlToImagePngWriter writer = null;
+            int next = 0;
+            int stitched = 0;
+            while (stitched < pageHeight) {
+                while (pending.size() < tileWindow && next < pageHeight) {
+                    Map<String, String> tileSettings = new HashMap<>(settings);
+                    tileSettings.put("crop.top", String.valueOf(next));
+                    tileSettings.put("crop.height", String.valueOf(Math.min(tileHeight, pageHeight - next)));
+                    pending.add(taskExecutor.renderAsync(WkHtmlToXJob.image(tenant, tileSettings, html), listener));
+                    next += tileHeight;
+                }
+                WkHtmlToXResult result = WkHtmlToXImageEncoder.await(pending.poll());
+                log.addAll(result.getLog());
+                httpErrorCode = Math.max(httpErrorCode, result.getHttpErrorCode());
+                if (!result.isSuccess()) {
+                    break;
+                }
+                BufferedImage tile = WkHtmlToXImageEncoder.await(encoder.decode(result.getOutput()));
+                if (writer == null) {
+                    writer = new WkHtmlToImagePngWriter(stream, tile.getWidth(), pageHeight);
+                }
+                writer.write(tile);
+                stitched += tileHeight;
+            }
+            if (writer != null && stitched >= pageHeight) {
+                writer.close();
+                success = true;
+            }
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to write stitched image", e);
+        } finally {
+            for (CompletableFuture<WkHtmlToXResult> abandoned : pending) {
+                abandoned.cancel(false);
+            }
+            if (!success && out != null) {
+                new File(out).delete();
+            }
+            boolean completed = success;
+            finishedCallbacks.forEach(fc -> fc.accept(completed));
+        }
+        return new WkHtmlToXResult(success, success && out == null ? memory.toByteArray() : null, log,
+                httpErrorCode);
+    }
+
+    private int measurePageHeight(Map<String, String> settings) {
+        Map<String, String> probe = new HashMap<>(settings);
+        probe.put("crop.height", "1");
+        probe.put("load.debugJavascript", "true");
+        WkHtmlToXReadiness.append(probe, WkHtmlToXScripts.log(PAGE_HEIGHT,
+                "Math.max(document.documentElement.scrollHeight,document.body?document.body.scrollHeight:0)"));
+        WkHtmlToXResult result = taskExecutor.render(WkHtmlToXJob.image(tenant, probe, html()), WkHtmlToXListener.NONE);
+        String height = WkHtmlToXScripts.find(result.getLog(), PAGE_HEIGHT);
+        if (!result.isSuccess() || height == null || !height.matches("\\d+") || height.equals("0")) {
+            throw new WkHtmlToXException("Could not measure the page height, tiled rendering requires "
+                    + "JavaScript. Log:\n" + String.join("\n", result.getLog()));
+        }
+        return Integer.parseInt(height);
+    }
+
+    private WkHtmlToXResult render(Map<String, String> settings) {
+        WkHtmlToXJob job = WkHtmlToXJob.image(tenant, settings, html());
+        return taskExecutor.render(job, listener(true));
+    }
+
+    /**
+     * Returns the HTML to convert, passed through the pre-processing pipeline if any.
+     */
+    private String html() {
+        return pipeline == null || htmlData == null ? htmlData : pipeline.process(htmlData, settings);
+    }
+
+    /**
+     * Returns a listener passing events to the callbacks. Progress and completion are only passed
+     * for conversions rendered at once.
+     */
+    private WkHtmlToXListener listener(boolean whole) {
+        return new WkHtmlToXListener() {
+            @Override
+            public void warning(String message) {
+                if (!WkHtmlToXScripts.isMarker(message)) {
+                    warningCallbacks.forEach(wc -> wc.accept(message));
+                }
+            }
+
+            @Override
+            public void error(String message) {
+                errorCallbacks.forEach(ec -> ec.accept(message));
+            }
+
+            @Override
+            public void progress(WkHtmlToXProgress progress) {
+                if (whole) {
+                    progressChangedCallbacks.forEach(pc -> pc.accept(progress));
+                }
+            }
+
+            @Override
+            public void finished(boolean success) {
+                if (whole) {
+                    finishedCallbacks.forEach(fc -> fc.accept(success));
+                }
+            }
+        };
+    }
+
+}
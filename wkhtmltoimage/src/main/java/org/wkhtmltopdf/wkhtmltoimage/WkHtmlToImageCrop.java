@@ -0,0 +1,104 @@
+package org.wkhtmltopdf.wkhtmltoimage;
+
+/**
+ * A region cut from a single full page render by
+ * {@link HtmlToImageConverter#toCrops(WkHtmlToImageCrop...)}, given either as a rectangle in page
+ * coordinates or as the CSS selector of the element to cut out.
+ */
+public class WkHtmlToImageCrop {
+    private final String name;
+    private final String selector;
+    private final int left;
+    private final int top;
+    private final int width;
+    private final int height;
+    private String format = "png";
+    private int quality = -1;
+
+    private WkHtmlToImageCrop(String name, String selector, int left, int top, int width, int height) {
+        if (name == null) {
+            throw new IllegalArgumentException("No name specified for crop.");
+        }
+        this.name = name;
+        this.selector = selector;
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a new crop of the specified rectangle of the page, in pixels.
+     *
+     * @param name The name identifying the crop in the result.
+     */
+    public static WkHtmlToImageCrop rect(String name, int left, int top, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Crop size must be positive.");
+        }
+        return new WkHtmlToImageCrop(name, null, left, top, width, height);
+    }
+
+    /**
+     * Creates a new crop of the bounding box of the first element matching the CSS selector.
+     *
+     * @param name The name identifying the crop in the result.
+     */
+    public static WkHtmlToImageCrop selector(String name, String selector) {
+        if (selector == null || selector.isEmpty()) {
+            throw new IllegalArgumentException("No selector specified for crop.");
+        }
+        return new WkHtmlToImageCrop(name, selector, 0, 0, 0, 0);
+    }
+
+    /**
+     * The format of the crop, e.g. "png" or "jpg". Must have an ImageIO writer.
+     */
+    public WkHtmlToImageCrop format(String format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * The compression quality (1-100) for lossy formats.
+     */
+    public WkHtmlToImageCrop quality(int quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the CSS selector of the element to cut out, or {@code null} for a rectangle.
+     */
+    public String getSelector() {
+        return selector;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+}
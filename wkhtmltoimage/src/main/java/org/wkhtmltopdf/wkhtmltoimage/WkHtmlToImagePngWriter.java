@@ -0,0 +1,153 @@
+package org.wkhtmltopdf.wkhtmltoimage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an RGB PNG of known size row by row, so that an image stitched from tiles never has to
+ * be held in memory at once. Rows beyond the declared height are dropped, missing rows are
+ * filled with white when the writer is closed.
+ */
+public class WkHtmlToImagePngWriter implements AutoCloseable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte FILTER_SUB = 1;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final IdatStream idat = new IdatStream();
+    private final DeflaterOutputStream deflater;
+    private final Deflater compressor = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final byte[] row;
+    private int rows;
+
+    public WkHtmlToImagePngWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image size must be positive.");
+        }
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.row = new byte[1 + width * 3];
+        this.deflater = new DeflaterOutputStream(idat, compressor, CHUNK_SIZE);
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8); // bit depth
+        ihdr.writeByte(2); // color type RGB
+        ihdr.writeByte(0); // deflate
+        ihdr.writeByte(0); // adaptive filtering
+        ihdr.writeByte(0); // no interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+    }
+
+    /**
+     * Appends the rows of the image. Columns beyond the width of the PNG are dropped, missing
+     * columns are filled with white.
+     */
+    public void write(BufferedImage image) throws IOException {
+        int[] pixels = new int[Math.min(width, image.getWidth())];
+        for (int y = 0; y < image.getHeight() && rows < height; y++) {
+            image.getRGB(0, y, pixels.length, 1, pixels, 0, pixels.length);
+            writeRow(pixels);
+        }
+    }
+
+    /**
+     * Returns the amount of rows written so far.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Fills the missing rows with white and writes the end of the PNG. Does not close the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        int[] white = new int[0];
+        while (rows < height) {
+            writeRow(white);
+        }
+        deflater.finish();
+        idat.flushChunk();
+        compressor.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private void writeRow(int[] pixels) throws IOException {
+        row[0] = FILTER_SUB;
+        int previous = 0xffffff;
+        for (int x = 0; x < width; x++) {
+            int rgb = x < pixels.length ? pixels[x] : 0xffffff;
+            int offset = 1 + x * 3;
+            // The Sub filter stores each byte as the difference to the byte of the pixel to its left.
+            row[offset] = (byte) ((rgb >> 16) - (x == 0 ? 0 : previous >> 16));
+            row[offset + 1] = (byte) ((rgb >> 8) - (x == 0 ? 0 : previous >> 8));
+            row[offset + 2] = (byte) (rgb - (x == 0 ? 0 : previous));
+            previous = rgb;
+        }
+        deflater.write(row);
+        rows++;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Collects compressed data, emitting an IDAT chunk whenever the buffer is full.
+     */
+    private class IdatStream extends OutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                flushChunk();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (size == buffer.length) {
+                    flushChunk();
+                }
+                int count = Math.min(length, buffer.length - size);
+                System.arraycopy(bytes, offset, buffer, size, count);
+                size += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (size > 0) {
+                writeChunk("IDAT", buffer, size);
+                size = 0;
+            }
+        }
+    }
+}
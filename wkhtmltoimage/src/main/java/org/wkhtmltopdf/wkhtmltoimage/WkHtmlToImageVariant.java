@@ -0,0 +1,81 @@
+package org.wkhtmltopdf.wkhtmltoimage;
+
+/**
+ * An image derived from a single render, e.g. a thumbnail. Variants are scaled from the rendered
+ * bitmap and encoded in parallel by {@link HtmlToImageConverter#toImages(WkHtmlToImageVariant...)}.
+ */
+public class WkHtmlToImageVariant {
+    private final String name;
+    private int width;
+    private int height;
+    private String format = "png";
+    private int quality = -1;
+
+    private WkHtmlToImageVariant(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates a new full size PNG variant.
+     *
+     * @param name The name identifying the variant in the result.
+     */
+    public static WkHtmlToImageVariant create(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("No name specified for variant.");
+        }
+        return new WkHtmlToImageVariant(name);
+    }
+
+    /**
+     * The width of the variant in pixels. If no height is given, the height is scaled proportionally.
+     */
+    public WkHtmlToImageVariant width(int width) {
+        this.width = width;
+        return this;
+    }
+
+    /**
+     * The height of the variant in pixels. If no width is given, the width is scaled proportionally.
+     */
+    public WkHtmlToImageVariant height(int height) {
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * The format of the variant, e.g. "png" or "jpg". Must have an ImageIO writer.
+     */
+    public WkHtmlToImageVariant format(String format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * The compression quality (1-100) for lossy formats.
+     */
+    public WkHtmlToImageVariant quality(int quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+}
@@ -0,0 +1,453 @@
+package org.wkhtmltopdf.wkhtmltopdf;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXScripts;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+public class HtmlToPdfConverter {
+
+    private final WkHtmlToXTaskExecutor taskExecutor;
+    private final Map<String, String> settings;
+    private final List<WkHtmlToPdfObject> objects;
+    private final List<Consumer<String>> warningCallbacks = new ArrayList<>();
+    private final List<Consumer<String>> errorCallbacks = new ArrayList<>();
+    private final List<Consumer<WkHtmlToXProgress>> progressChangedCallbacks = new ArrayList<>();
+    private final List<Consumer<Boolean>> finishedCallbacks = new ArrayList<>();
+    private String tenant;
+    private int shards;
+
+    private HtmlToPdfConverter(WkHtmlToXTaskExecutor taskExecutor, Map<String, String> settings) {
+        this.taskExecutor = taskExecutor;
+        this.objects = new ArrayList<>();
+        this.settings = settings;
+    }
+
+    /**
+     * Creates a new {@code HtmlToPdf} instance.
+     */
+    public static HtmlToPdfConverter create() {
+        return create(new HashMap<>());
+    }
+
+    /**
+     * Creates a new {@code HtmlToPdf} instance.
+     *
+     * @param settings The settings to use at the new instance.
+     * @return The created {@code HtmlToPdf} instance.
+     */
+    public static HtmlToPdfConverter create(Map<String, String> settings) {
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance();
+        return new HtmlToPdfConverter(executor, settings);
+    }
+
+    /**
+     * Disable the intelligent shrinking strategy used by WebKit that makes the pixel/dpi ratio none constant
+     */
+    public HtmlToPdfConverter disableSmartShrinking(boolean disableSmartShrinking) {
+        return setting("disable-smart-shrinking", disableSmartShrinking);
+    }
+
+    /**
+     * The paper size of the output document.
+     */
+    public HtmlToPdfConverter pageSize(PdfPageSize pageSize) {
+        return setting("size.pageSize", pageSize);
+    }
+
+    /**
+     * The orientation of the output document.
+     */
+    public HtmlToPdfConverter orientation(PdfOrientation orientation) {
+        return setting("orientation", orientation);
+    }
+
+    /**
+     * The color mode of the output document.
+     */
+    public HtmlToPdfConverter colorMode(PdfColorMode colorMode) {
+        return setting("colorMode", colorMode);
+    }
+
+    /**
+     * The DPI of the output document.
+     */
+    public HtmlToPdfConverter dpi(int dpi) {
+        return setting("dpi", dpi);
+    }
+
+    /**
+     * Whether or not to collate copies.
+     */
+    public HtmlToPdfConverter collate(boolean collate) {
+        return setting("collate", collate);
+    }
+
+    /**
+     * Whether or not a table of contents should be generated. This is the table of contents
+     * in the sidebar.
+     */
+    public HtmlToPdfConverter outline(boolean outline) {
+        return setting("outline", outline);
+    }
+
+    /**
+     * The maximum depth of the outline.
+     */
+    public HtmlToPdfConverter outlineDepth(int outlineDepth) {
+        return setting("outlineDepth", outlineDepth);
+    }
+
+    /**
+     * The title of the PDF document.
+     */
+    public HtmlToPdfConverter documentTitle(String title) {
+        return setting("documentTitle", title);
+    }
+
+    /**
+     * Whether or not loss-less compression should be used.
+     */
+    public HtmlToPdfConverter compression(boolean compression) {
+        return setting("useCompression", compression);
+    }
+
+    /**
+     * The size of the top margin (CSS value, e.g. "5in", "15px" etc.)
+     */
+    public HtmlToPdfConverter marginTop(String marginTop) {
+        return setting("margin.top", marginTop);
+    }
+
+    /**
+     * The size of the bottom margin (CSS value, e.g. "5in", "15px" etc.)
+     */
+    public HtmlToPdfConverter marginBottom(String marginBottom) {
+        return setting("margin.bottom", marginBottom);
+    }
+
+    /**
+     * The size of the left margin (CSS value, e.g. "5in", "15px" etc.)
+     */
+    public HtmlToPdfConverter marginLeft(String marginLeft) {
+        return setting("margin.left", marginLeft);
+    }
+
+    /**
+     * The size of the right margin (CSS value, e.g. "5in", "15px" etc.)
+     */
+    public HtmlToPdfConverter marginRight(String marginRight) {
+        return setting("margin.right", marginRight);
+    }
+
+    /**
+     * The maximum DPI to use for images.
+     */
+    public HtmlToPdfConverter imageDpi(int imageDpi) {
+        return setting("imageDPI", imageDpi);
+    }
+
+    /**
+     * JPEG compression factor (1-100)
+     */
+    public HtmlToPdfConverter imageQuality(int quality) {
+        return setting("imageQuality", quality);
+    }
+
+    /**
+     * The cookie jar to use when loading and storing cookies.
+     */
+    public HtmlToPdfConverter cookieJar(String cookieJar) {
+        return setting("load.cookieJar", cookieJar);
+    }
+
+    /**
+     * Adds an object to be converted.
+     */
+    public HtmlToPdfConverter object(WkHtmlToPdfObject object) {
+        objects.add(object);
+        return this;
+    }
+
+    /**
+     * Splits the objects into the specified amount of shards of consecutive objects. Shards are
+     * rendered concurrently when the {@link WkHtmlToXTaskExecutor} uses worker processes, and are
+     * merged in object order by {@link WkHtmlToPdfMerger}. If headers or footers show "[page]",
+     * the shards are rendered a second time with their page offset so that page numbers continue
+     * across shards; "[topage]" and tables of contents only cover their own shard.
+     */
+    public HtmlToPdfConverter shards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * The tenant key the conversion is scheduled under. Conversions of different tenants share
+     * the render thread according to the tenant policies of the {@link org.wkhtmltopdf.WkHtmlToXScheduler}.
+     */
+    public HtmlToPdfConverter tenant(String tenant) {
+        this.tenant = tenant;
+        return this;
+    }
+
+    private HtmlToPdfConverter setting(String name, Object value) {
+        return setting(name, value.toString());
+    }
+
+    private HtmlToPdfConverter setting(String name, String value) {
+        settings.put(name, value);
+        return this;
+    }
+
+    public HtmlToPdfConverter warning(Consumer<String> warningConsumer) {
+        warningCallbacks.add(warningConsumer);
+        return this;
+    }
+
+    public HtmlToPdfConverter error(Consumer<String> errorConsumer) {
+        errorCallbacks.add(errorConsumer);
+        return this;
+    }
+
+    public HtmlToPdfConverter progress(Consumer<WkHtmlToXProgress> progressChangeConsumer) {
+        progressChangedCallbacks.add(progressChangeConsumer);
+        return this;
+    }
+
+    public HtmlToPdfConverter finished(Consumer<Boolean> finishConsumer) {
+        finishedCallbacks.add(finishConsumer);
+        return this;
+    }
+
+    public HtmlToPdfConverter success(Runnable successRunnable) {
+        return finished(success -> {
+            if (success) {
+                successRunnable.run();
+            }
+        });
+    }
+
+    public HtmlToPdfConverter failure(Runnable failureRunnable) {
+        return finished(success -> {
+            if (!success) {
+                failureRunnable.run();
+            }
+        });
+    }
+
+    /**
+     * Performs the conversion, saving the result PDF to the specified path.
+     *
+     * @return {@code true} if the conversion process completed successfully,
+     * or {@code false} otherwise.
+     */
+    public boolean saveAsPdf(String path) {
+        if (objects.isEmpty()) {
+            return false;
+        }
+        Map<String, String> settings = new HashMap<>(this.settings);
+        settings.put("out", path);
+        return convert(settings).isSuccess();
+    }
+
+    /**
+     * Performs the conversion, returning an {@code InputStream} with the
+     * bytes of the resulting PDF.
+     *
+     * @throws WkHtmlToXException if conversion failed
+     */
+    public InputStream toInputStream() {
+        return convertInMemory().toInputStream();
+    }
+
+    /**
+     * Performs the conversion, returning a read-only buffer with the bytes of the resulting PDF.
+     * Documents rendered by worker processes are mapped into memory rather than copied.
+     *
+     * @throws WkHtmlToXException if conversion failed
+     */
+    public ByteBuffer toByteBuffer() {
+        return convertInMemory().getOutputBuffer();
+    }
+
+    /**
+     * Performs the conversion without blocking the calling thread, completing the returned
+     * future with a read-only buffer with the bytes of the resulting PDF, or exceptionally with a
+     * {@link WkHtmlToXException} if conversion failed. Callbacks are called on other threads.
+     */
+    public CompletableFuture<ByteBuffer> toByteBufferAsync() {
+        return taskExecutor.supplyAsync(this::toByteBuffer);
+    }
+
+    private WkHtmlToXResult convertInMemory() {
+        Map<String, String> settings = new HashMap<>(this.settings);
+        settings.remove("out");
+        WkHtmlToXResult result = convert(settings);
+        if (!result.isSuccess()) {
+            throw new WkHtmlToXException(result.getFailureMessage());
+        }
+        return result;
+    }
+
+    private WkHtmlToXResult convert(Map<String, String> settings) {
+        if (shards > 1 && objects.size() > 1) {
+            return convertSharded(settings);
+        }
+        return taskExecutor.render(job(settings, objects), listener(true));
+    }
+
+    private WkHtmlToXResult convertSharded(Map<String, String> settings) {
+        String out = settings.remove("out");
+        int count = Math.min(shards, objects.size());
+        List<List<WkHtmlToPdfObject>> parts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            parts.add(objects.subList(i * objects.size() / count, (i + 1) * objects.size() / count));
+        }
+        boolean success = false;
+        byte[] output = null;
+        List<String> log = new ArrayList<>();
+        int httpErrorCode = 0;
+        try {
+            WkHtmlToXResult[] results = renderShards(settings, parts, null, null);
+            if (isSuccess(results) && usesPageNumbers()) {
+                // Render again, now that the amount of pages before every shard is known.
+                int[] offsets = new int[count];
+                for (int i = 1; i < count; i++) {
+                    offsets[i] = offsets[i - 1] + WkHtmlToPdfMerger.getPageCount(results[i - 1].getOutput());
+                }
+                results = renderShards(settings, parts, offsets, results);
+            }
+            for (WkHtmlToXResult result : results) {
+                log.addAll(result.getLog());
+                httpErrorCode = Math.max(httpErrorCode, result.getHttpErrorCode());
+            }
+            if (isSuccess(results)) {
+                List<byte[]> pdfs = Arrays.stream(results).map(WkHtmlToXResult::getOutput).collect(Collectors.toList());
+                if (out == null) {
+                    ByteArrayOutputStream memory = new ByteArrayOutputStream();
+                    WkHtmlToPdfMerger.merge(pdfs, memory);
+                    output = memory.toByteArray();
+                } else {
+                    try (OutputStream file = new BufferedOutputStream(new FileOutputStream(out))) {
+                        WkHtmlToPdfMerger.merge(pdfs, file);
+                    }
+                }
+                success = true;
+            }
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to write merged PDF", e);
+        } finally {
+            boolean finished = success;
+            finishedCallbacks.forEach(fc -> fc.accept(finished));
+        }
+        return new WkHtmlToXResult(success, output, log, httpErrorCode);
+    }
+
+    /**
+     * Renders the shards concurrently, returning their results in order. Given page offsets, only
+     * the shards not starting on the first page are rendered again; the others keep their
+     * previous result.
+     */
+    private WkHtmlToXResult[] renderShards(Map<String, String> settings, List<List<WkHtmlToPdfObject>> parts,
+                                           int[] pageOffsets, WkHtmlToXResult[] previous) {
+        WkHtmlToXListener listener = listener(false);
+        List<CompletableFuture<WkHtmlToXResult>> futures = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            if (pageOffsets != null && pageOffsets[i] == 0) {
+                futures.add(CompletableFuture.completedFuture(previous[i]));
+                continue;
+            }
+            Map<String, String> shardSettings = new HashMap<>(settings);
+            if (pageOffsets != null) {
+                shardSettings.put("pageOffset", String.valueOf(pageOffsets[i]));
+            }
+            futures.add(taskExecutor.renderAsync(job(shardSettings, parts.get(i)), listener));
+        }
+        WkHtmlToXResult[] results = new WkHtmlToXResult[futures.size()];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new WkHtmlToXException("Shard conversion failed", cause);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Thread is interrupted!", e);
+            }
+        }
+        return results;
+    }
+
+    private static boolean isSuccess(WkHtmlToXResult[] results) {
+        return Arrays.stream(results).allMatch(WkHtmlToXResult::isSuccess);
+    }
+
+    private boolean usesPageNumbers() {
+        return objects.stream().anyMatch(object -> object.getSettings().entrySet().stream().anyMatch(setting ->
+                (setting.getKey().startsWith("header.") || setting.getKey().startsWith("footer."))
+                        && setting.getValue().contains("[page]")));
+    }
+
+    private WkHtmlToXJob job(Map<String, String> settings, List<WkHtmlToPdfObject> objects) {
+        return WkHtmlToXJob.pdf(tenant, settings, objects.stream()
+                .map(object -> new WkHtmlToXJob.Input(object.getSettings(), object.getHtmlData()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Returns a listener passing events to the callbacks. Progress and completion are only passed
+     * for conversions rendered at once.
+     */
+    private WkHtmlToXListener listener(boolean whole) {
+        return new WkHtmlToXListener() {
+            @Override
+            public void warning(String message) {
+                if (!WkHtmlToXScripts.isMarker(message)) {
+                    warningCallbacks.forEach(wc -> wc.accept(message));
+                }
+            }
+
+            @Override
+            public void error(String message) {
+                errorCallbacks.forEach(ec -> ec.accept(message));
+            }
+
+            @Override
+            public void progress(WkHtmlToXProgress progress) {
+                if (whole) {
+                    progressChangedCallbacks.forEach(pc -> pc.accept(progress));
+                }
+            }
+
+            @Override
+            public void finished(boolean success) {
+                if (whole) {
+                    finishedCallbacks.forEach(fc -> fc.accept(success));
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,729 @@
+package org.wkhtmltopdf.wkhtmltopdf;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Merges PDF documents, such as the shards of a sharded {@link HtmlToPdfConverter} conversion, into
+ * one document. Pages are concatenated in order under a single flat page tree, the outlines are
+ * chained and the named destinations of internal links are kept apart per document.
+ * <p>
+ * Objects are copied one at a time, so only the structure of the documents is held in memory
+ * besides the input. Supports documents with classic cross-reference tables, as written by
+ * wkhtmltopdf; documents with cross-reference or object streams are rejected.
+ */
+public final class WkHtmlToPdfMerger {
+    private static final String[] INHERITED = {"/Resources", "/MediaBox", "/CropBox", "/Rotate"};
+    private static final int CATALOG = 1;
+    private static final int PAGES = 2;
+    private static final int OUTLINES = 3;
+    private static final int DESTS = 4;
+
+    private WkHtmlToPdfMerger() {
+    }
+
+    /**
+     * Returns the amount of pages of the document.
+     *
+     * @throws WkHtmlToXException if the document cannot be read
+     */
+    public static int getPageCount(byte[] pdf) {
+        Document document = new Document(pdf, 0, 0);
+        document.collectPages();
+        return document.pages.size();
+    }
+
+    /**
+     * Writes the merged documents to the output stream.
+     *
+     * @throws WkHtmlToXException if one of the documents cannot be read
+     */
+    public static void merge(List<byte[]> pdfs, OutputStream out) throws IOException {
+        if (pdfs.isEmpty()) {
+            throw new IllegalArgumentException("No documents to merge.");
+        }
+        List<Document> documents = new ArrayList<>();
+        int base = DESTS;
+        for (int i = 0; i < pdfs.size(); i++) {
+            Document document = new Document(pdfs.get(i), base, i);
+            document.collectDests();
+            document.collectPages();
+            document.collectOutlines();
+            documents.add(document);
+            base += document.size;
+        }
+        linkOutlines(documents);
+
+        CountingOutputStream counting = new CountingOutputStream(out);
+        Map<Integer, Long> offsets = new TreeMap<>();
+        write(counting, documents.get(0).header() + "\n%\u00e2\u00e3\u00cf\u00d3\n");
+        List<Object> kids = new ArrayList<>();
+        Map<String, Object> outlines = null;
+        int outlineCount = 0;
+        Map<String, Object> dests = new LinkedHashMap<>();
+        for (Document document : documents) {
+            for (Map.Entry<Integer, Integer> entry : document.offsets.entrySet()) {
+                int number = entry.getKey();
+                if (document.dropped.contains(number)) {
+                    continue;
+                }
+                Parsed parsed = document.parse(number);
+                Object value = document.renumber(parsed.value);
+                Map<String, Object> overrides = document.overrides.get(number);
+                if (overrides != null && value instanceof Map) {
+                    asDict(value).putAll(overrides);
+                }
+                offsets.put(document.base + number, counting.count);
+                writeObject(counting, document.base + number, value, parsed.stream);
+            }
+            for (int page : document.pages) {
+                kids.add(new Ref(document.base + page, 0));
+            }
+            if (!document.topOutlines.isEmpty()) {
+                if (outlines == null) {
+                    outlines = new LinkedHashMap<>();
+                    outlines.put("/Type", new Name("/Outlines"));
+                    outlines.put("/First", new Ref(document.base + document.topOutlines.get(0), 0));
+                }
+                int last = document.topOutlines.get(document.topOutlines.size() - 1);
+                outlines.put("/Last", new Ref(document.base + last, 0));
+                outlineCount += document.outlineCount;
+            }
+            document.dests.forEach((name, destination) -> dests.put(name, document.renumber(destination)));
+        }
+
+        Map<String, Object> catalog = new LinkedHashMap<>();
+        catalog.put("/Type", new Name("/Catalog"));
+        catalog.put("/Pages", new Ref(PAGES, 0));
+        Object pageMode = documents.get(0).catalog.get("/PageMode");
+        if (pageMode != null) {
+            catalog.put("/PageMode", pageMode);
+        }
+        Map<String, Object> pages = new LinkedHashMap<>();
+        pages.put("/Type", new Name("/Pages"));
+        pages.put("/Kids", kids);
+        pages.put("/Count", String.valueOf(kids.size()));
+        offsets.put(PAGES, counting.count);
+        writeObject(counting, PAGES, pages, null);
+        if (outlines != null) {
+            outlines.put("/Count", String.valueOf(outlineCount));
+            catalog.put("/Outlines", new Ref(OUTLINES, 0));
+            offsets.put(OUTLINES, counting.count);
+            writeObject(counting, OUTLINES, outlines, null);
+        }
+        if (!dests.isEmpty()) {
+            catalog.put("/Dests", new Ref(DESTS, 0));
+            offsets.put(DESTS, counting.count);
+            writeObject(counting, DESTS, dests, null);
+        }
+        offsets.put(CATALOG, counting.count);
+        writeObject(counting, CATALOG, catalog, null);
+
+        long xref = counting.count;
+        int size = base;
+        StringBuilder table = new StringBuilder("xref\n0 ").append(size).append('\n');
+        int nextFree = 0;
+        String[] entries = new String[size];
+        for (int number = size - 1; number > 0; number--) {
+            Long offset = offsets.get(number);
+            if (offset == null) {
+                entries[number] = String.format("%010d 00001 f\r\n", nextFree);
+                nextFree = number;
+            } else {
+                entries[number] = String.format("%010d 00000 n\r\n", offset);
+            }
+        }
+        entries[0] = String.format("%010d 65535 f\r\n", nextFree);
+        for (String entry : entries) {
+            table.append(entry);
+        }
+        Map<String, Object> trailer = new LinkedHashMap<>();
+        trailer.put("/Size", String.valueOf(size));
+        trailer.put("/Root", new Ref(CATALOG, 0));
+        Object info = documents.get(0).trailer.get("/Info");
+        if (info instanceof Ref) {
+            trailer.put("/Info", documents.get(0).renumber(info));
+        }
+        table.append("trailer\n");
+        serialize(trailer, table);
+        table.append("\nstartxref\n").append(xref).append("\n%%EOF\n");
+        write(counting, table.toString());
+        counting.flush();
+    }
+
+    /**
+     * Chains the top level outline items of consecutive documents under the merged outline root.
+     */
+    private static void linkOutlines(List<Document> documents) {
+        Document previous = null;
+        for (Document document : documents) {
+            List<Integer> items = document.topOutlines;
+            if (items.isEmpty()) {
+                continue;
+            }
+            for (int item : items) {
+                document.override(item, "/Parent", new Ref(OUTLINES, 0));
+            }
+            if (previous != null) {
+                int last = previous.topOutlines.get(previous.topOutlines.size() - 1);
+                previous.override(last, "/Next", new Ref(document.base + items.get(0), 0));
+                document.override(items.get(0), "/Prev", new Ref(previous.base + last, 0));
+            }
+            previous = document;
+        }
+    }
+
+    private static void writeObject(OutputStream out, int number, Object value, byte[] stream) throws IOException {
+        StringBuilder text = new StringBuilder().append(number).append(" 0 obj\n");
+        if (stream != null) {
+            asDict(value).put("/Length", String.valueOf(stream.length));
+        }
+        serialize(value, text);
+        if (stream != null) {
+            write(out, text.append("\nstream\n").toString());
+            out.write(stream);
+            write(out, "\nendstream\nendobj\n");
+        } else {
+            write(out, text.append("\nendobj\n").toString());
+        }
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asDict(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void serialize(Object value, StringBuilder out) {
+        if (value instanceof Map) {
+            out.append("<<");
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                out.append(entry.getKey()).append(' ');
+                serialize(entry.getValue(), out);
+                out.append(' ');
+            }
+            out.append(">>");
+        } else if (value instanceof List) {
+            out.append('[');
+            for (Object item : (List<Object>) value) {
+                serialize(item, out);
+                out.append(' ');
+            }
+            out.append(']');
+        } else {
+            out.append(value);
+        }
+    }
+
+    /**
+     * A document being merged. Object numbers are shifted by {@code base} in the merged document.
+     */
+    private static class Document {
+        private final byte[] data;
+        private final int base;
+        private final int index;
+        private final Map<Integer, Integer> offsets = new TreeMap<>();
+        private final Map<String, Object> trailer;
+        private final Map<String, Object> catalog;
+        private final int size;
+        private final List<Integer> pages = new ArrayList<>();
+        private final List<Integer> topOutlines = new ArrayList<>();
+        private final Map<String, Object> dests = new LinkedHashMap<>();
+        private final Map<String, String> destNames = new HashMap<>();
+        private final Set<Integer> dropped = new HashSet<>();
+        private final Map<Integer, Map<String, Object>> overrides = new HashMap<>();
+        private int outlineCount;
+
+        Document(byte[] data, int base, int index) {
+            this.data = data;
+            this.base = base;
+            this.index = index;
+            int startxref = lastIndexOf("startxref");
+            if (startxref < 0) {
+                throw new WkHtmlToXException("Not a PDF document: no startxref");
+            }
+            Parser parser = new Parser(data, startxref + "startxref".length());
+            Map<String, Object> trailer = null;
+            int xref = parser.readInt();
+            while (xref >= 0) {
+                Map<String, Object> section = readXref(xref);
+                if (trailer == null) {
+                    trailer = section;
+                }
+                Object previous = section.get("/Prev");
+                xref = previous == null ? -1 : Integer.parseInt(previous.toString());
+            }
+            this.trailer = trailer;
+            this.size = Integer.parseInt(String.valueOf(trailer.get("/Size")));
+            this.catalog = dict(trailer.get("/Root"));
+            drop(trailer.get("/Root"));
+        }
+
+        String header() {
+            int end = 0;
+            while (end < data.length && data[end] != '\n' && data[end] != '\r') {
+                end++;
+            }
+            String header = new String(data, 0, end, StandardCharsets.ISO_8859_1);
+            return header.startsWith("%PDF-") ? header : "%PDF-1.4";
+        }
+
+        private Map<String, Object> readXref(int offset) {
+            Parser parser = new Parser(data, offset);
+            if (!"xref".equals(parser.readKeyword())) {
+                throw new WkHtmlToXException("Merging PDFs with cross-reference streams is not supported");
+            }
+            while (true) {
+                parser.skipWhitespace();
+                if (parser.peek() == 't') {
+                    parser.readKeyword();
+                    return asDict(parser.readValue());
+                }
+                int first = parser.readInt();
+                int count = parser.readInt();
+                for (int i = 0; i < count; i++) {
+                    int entryOffset = parser.readInt();
+                    parser.readInt();
+                    String type = parser.readKeyword();
+                    // Entries of newer sections, which are read first, take precedence.
+                    if (type.equals("n") && first + i > 0) {
+                        offsets.putIfAbsent(first + i, entryOffset);
+                    }
+                }
+            }
+        }
+
+        void collectPages() {
+            collectPages(catalog.get("/Pages"), new HashMap<>());
+        }
+
+        private void collectPages(Object reference, Map<String, Object> inherited) {
+            Map<String, Object> node = dict(reference);
+            if ("/Pages".equals(String.valueOf(node.get("/Type"))) || node.containsKey("/Kids")) {
+                drop(reference);
+                Map<String, Object> inheritedByKids = new HashMap<>(inherited);
+                for (String key : INHERITED) {
+                    if (node.containsKey(key)) {
+                        inheritedByKids.put(key, node.get(key));
+                    }
+                }
+                for (Object kid : list(node.get("/Kids"))) {
+                    collectPages(kid, inheritedByKids);
+                }
+                return;
+            }
+            if (!(reference instanceof Ref)) {
+                throw new WkHtmlToXException("Page is not an indirect object");
+            }
+            int page = ((Ref) reference).number;
+            pages.add(page);
+            override(page, "/Parent", new Ref(PAGES, 0));
+            inherited.forEach((key, value) -> {
+                if (!node.containsKey(key)) {
+                    override(page, key, renumber(value));
+                }
+            });
+        }
+
+        void collectOutlines() {
+            Object root = catalog.get("/Outlines");
+            if (root == null) {
+                return;
+            }
+            Map<String, Object> outlines = dict(root);
+            drop(root);
+            Object item = outlines.get("/First");
+            while (item instanceof Ref && !topOutlines.contains(((Ref) item).number)) {
+                topOutlines.add(((Ref) item).number);
+                item = dict(item).get("/Next");
+            }
+            Object count = outlines.get("/Count");
+            outlineCount = count == null ? topOutlines.size() : Math.abs(Integer.parseInt(count.toString()));
+        }
+
+        void collectDests() {
+            Object root = catalog.get("/Dests");
+            if (root == null) {
+                return;
+            }
+            drop(root);
+            dict(root).forEach((name, destination) -> {
+                // Documents rendered separately may use the same anchor names.
+                String unique = index == 0 ? name : name + "_" + index;
+                destNames.put(name, unique);
+                dests.put(unique, destination);
+            });
+        }
+
+        void override(int number, String key, Object value) {
+            overrides.computeIfAbsent(number, n -> new LinkedHashMap<>()).put(key, value);
+        }
+
+        private void drop(Object reference) {
+            if (reference instanceof Ref) {
+                dropped.add(((Ref) reference).number);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Object renumber(Object value) {
+            if (value instanceof Ref) {
+                return new Ref(base + ((Ref) value).number, 0);
+            }
+            if (value instanceof List) {
+                List<Object> renumbered = new ArrayList<>();
+                for (Object item : (List<Object>) value) {
+                    renumbered.add(renumber(item));
+                }
+                return renumbered;
+            }
+            if (value instanceof Map) {
+                Map<String, Object> renumbered = new LinkedHashMap<>();
+                ((Map<String, Object>) value).forEach((key, item) -> {
+                    if ((key.equals("/Dest") || key.equals("/D")) && item instanceof Name
+                            && destNames.containsKey(item.toString())) {
+                        renumbered.put(key, new Name(destNames.get(item.toString())));
+                    } else {
+                        renumbered.put(key, renumber(item));
+                    }
+                });
+                return renumbered;
+            }
+            return value;
+        }
+
+        Parsed parse(int number) {
+            Integer offset = offsets.get(number);
+            if (offset == null) {
+                return new Parsed("null", null);
+            }
+            Parser parser = new Parser(data, offset);
+            parser.readInt();
+            parser.readInt();
+            if (!"obj".equals(parser.readKeyword())) {
+                throw new WkHtmlToXException("Object " + number + " not found at offset " + offset);
+            }
+            Object value = parser.readValue();
+            parser.skipWhitespace();
+            if (!parser.startsWith("stream")) {
+                return new Parsed(value, null);
+            }
+            int start = parser.position + "stream".length();
+            if (start < data.length && data[start] == '\r') {
+                start++;
+            }
+            if (start < data.length && data[start] == '\n') {
+                start++;
+            }
+            Object length = value instanceof Map ? asDict(value).get("/Length") : null;
+            if (length instanceof Ref) {
+                length = parse(((Ref) length).number).value;
+            }
+            int end = length == null ? -1 : start + Integer.parseInt(length.toString());
+            if (end < start || end > data.length || !new Parser(data, end).skipWhitespace().startsWith("endstream")) {
+                end = indexOf("endstream", start);
+                if (end < 0) {
+                    throw new WkHtmlToXException("Unterminated stream in object " + number);
+                }
+                while (end > start && (data[end - 1] == '\n' || data[end - 1] == '\r')) {
+                    end--;
+                }
+            }
+            byte[] stream = new byte[end - start];
+            System.arraycopy(data, start, stream, 0, stream.length);
+            return new Parsed(value, stream);
+        }
+
+        private Map<String, Object> dict(Object value) {
+            Object resolved = value instanceof Ref ? parse(((Ref) value).number).value : value;
+            if (!(resolved instanceof Map)) {
+                throw new WkHtmlToXException("Expected a dictionary but found " + resolved);
+            }
+            return asDict(resolved);
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<Object> list(Object value) {
+            Object resolved = value instanceof Ref ? parse(((Ref) value).number).value : value;
+            if (!(resolved instanceof List)) {
+                throw new WkHtmlToXException("Expected an array but found " + resolved);
+            }
+            return (List<Object>) resolved;
+        }
+
+        private int lastIndexOf(String keyword) {
+            byte[] bytes = keyword.getBytes(StandardCharsets.ISO_8859_1);
+            for (int i = data.length - bytes.length; i >= 0; i--) {
+                if (matches(bytes, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int indexOf(String keyword, int from) {
+            byte[] bytes = keyword.getBytes(StandardCharsets.ISO_8859_1);
+            for (int i = from; i <= data.length - bytes.length; i++) {
+                if (matches(bytes, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(byte[] bytes, int at) {
+            for (int j = 0; j < bytes.length; j++) {
+                if (data[at + j] != bytes[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads PDF objects. Strings, numbers and keywords are kept as their source text, names as
+     * {@link Name}, references as {@link Ref}, arrays as lists and dictionaries as maps.
+     */
+    private static class Parser {
+        private final byte[] data;
+        private int position;
+
+        Parser(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        int peek() {
+            return position < data.length ? data[position] & 0xff : -1;
+        }
+
+        boolean startsWith(String keyword) {
+            if (position + keyword.length() > data.length) {
+                return false;
+            }
+            for (int i = 0; i < keyword.length(); i++) {
+                if (data[position + i] != keyword.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Parser skipWhitespace() {
+            while (position < data.length) {
+                int c = data[position] & 0xff;
+                if (c == '%') {
+                    while (position < data.length && data[position] != '\n' && data[position] != '\r') {
+                        position++;
+                    }
+                } else if (isWhitespace(c)) {
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            return this;
+        }
+
+        int readInt() {
+            String token = readKeyword();
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new WkHtmlToXException("Expected a number but found '" + token + "'");
+            }
+        }
+
+        String readKeyword() {
+            skipWhitespace();
+            int start = position;
+            while (position < data.length && !isDelimiter(data[position] & 0xff)) {
+                position++;
+            }
+            return text(start, position);
+        }
+
+        Object readValue() {
+            skipWhitespace();
+            int c = peek();
+            if (c == -1) {
+                throw new WkHtmlToXException("Unexpected end of PDF");
+            }
+            if (c == '/') {
+                int start = position++;
+                while (position < data.length && !isDelimiter(data[position] & 0xff)) {
+                    position++;
+                }
+                return new Name(text(start, position));
+            }
+            if (c == '<' && position + 1 < data.length && data[position + 1] == '<') {
+                position += 2;
+                Map<String, Object> dict = new LinkedHashMap<>();
+                while (true) {
+                    skipWhitespace();
+                    if (startsWith(">>")) {
+                        position += 2;
+                        return dict;
+                    }
+                    Object key = readValue();
+                    if (!(key instanceof Name)) {
+                        throw new WkHtmlToXException("Expected a name as dictionary key but found " + key);
+                    }
+                    dict.put(key.toString(), readValue());
+                }
+            }
+            if (c == '<') {
+                int start = position;
+                while (position < data.length && data[position] != '>') {
+                    position++;
+                }
+                return text(start, ++position);
+            }
+            if (c == '(') {
+                int start = position++;
+                int depth = 1;
+                while (depth > 0 && position < data.length) {
+                    int d = data[position++];
+                    if (d == '\\') {
+                        position++;
+                    } else if (d == '(') {
+                        depth++;
+                    } else if (d == ')') {
+                        depth--;
+                    }
+                }
+                return text(start, position);
+            }
+            if (c == '[') {
+                position++;
+                List<Object> array = new ArrayList<>();
+                while (true) {
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        position++;
+                        return array;
+                    }
+                    array.add(readValue());
+                }
+            }
+            String token = readKeyword();
+            if (token.isEmpty()) {
+                throw new WkHtmlToXException("Unexpected character '" + (char) c + "' in PDF");
+            }
+            if (isUnsignedInteger(token)) {
+                int mark = position;
+                String generation = readKeyword();
+                if (isUnsignedInteger(generation) && "R".equals(readKeyword())) {
+                    return new Ref(Integer.parseInt(token), Integer.parseInt(generation));
+                }
+                position = mark;
+            }
+            return token;
+        }
+
+        private String text(int start, int end) {
+            return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        private static boolean isUnsignedInteger(String token) {
+            if (token.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < token.length(); i++) {
+                if (!Character.isDigit(token.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isWhitespace(int c) {
+            return c == 0 || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == ' ';
+        }
+
+        private static boolean isDelimiter(int c) {
+            return isWhitespace(c) || c == '(' || c == ')' || c == '<' || c == '>'
+                    || c == '[' || c == ']' || c == '{' || c == '}' || c == '/' || c == '%';
+        }
+    }
+
+    private static class Parsed {
+        private final Object value;
+        private final byte[] stream;
+
+        Parsed(Object value, byte[] stream) {
+            this.value = value;
+            this.stream = stream;
+        }
+    }
+
+    private static class Name {
+        private final String name;
+
+        Name(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Ref {
+        private final int number;
+        private final int generation;
+
+        Ref(int number, int generation) {
+            this.number = number;
+            this.generation = generation;
+        }
+
+        @Override
+        public String toString() {
+            return number + " " + generation + " R";
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.wkhtmltopdf.wkhtmltopdf;
 
+import org.wkhtmltopdf.WkHtmlToXReadiness;
 import org.wkhtmltopdf.WkValue;
+import org.wkhtmltopdf.preprocess.WkHtmlToXHtmlPipeline;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -59,6 +61,7 @@ public class WkHtmlToPdfObject {
 
     private final Map<String, String> settings;
     private final String htmlData;
+    private WkHtmlToXHtmlPipeline pipeline;
 
     private WkHtmlToPdfObject(String htmlData, Map<String, String> settings) {
         this.settings = settings;
@@ -86,6 +89,15 @@ public class WkHtmlToPdfObject {
         return setting("web.enableJavascript", enable);
     }
 
+    /**
+     * Passes the HTML through the specified pipeline before converting it, e.g. to inline small
+     * assets. Has no effect on objects loaded from a URL.
+     */
+    public WkHtmlToPdfObject preprocess(WkHtmlToXHtmlPipeline pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
     /**
      * Whether or not to enable Intelligent Shrinking. Intelligent Shrinking will
      * attempt to fit more content into pages if enabled.
@@ -147,6 +159,17 @@ public class WkHtmlToPdfObject {
         return setting("load.jsdelay", delayMs);
     }
 
+    /**
+     * Converts the object as soon as the page sets {@code window.status} to the specified value,
+     * instead of after a fixed JavaScript delay, or after the maximum wait if it never does.
+     *
+     * @see WkHtmlToXReadiness
+     */
+    public WkHtmlToPdfObject waitForReady(String windowStatus, long maxWaitMillis) {
+        WkHtmlToXReadiness.configure(settings, windowStatus, maxWaitMillis);
+        return this;
+    }
+
     /**
      * Amount of zoom to use when converting.
      */
@@ -340,6 +363,6 @@ public class WkHtmlToPdfObject {
     }
 
     String getHtmlData() {
-        return htmlData;
+        return pipeline == null || htmlData == null ? htmlData : pipeline.process(htmlData, settings);
     }
 }
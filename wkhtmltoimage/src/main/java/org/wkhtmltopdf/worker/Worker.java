@@ -0,0 +1,214 @@
+package org.wkhtmltopdf.worker;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXResult;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The parent side of a render worker process. A worker renders one job at a time.
+ */
+public class Worker {
+    private final Process process;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Consumer<Worker> onExit;
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger completed = new AtomicInteger();
+    private volatile Pending pending;
+    private volatile boolean closed;
+    private volatile long rssBytes = -1;
+    private volatile long lastUsed = System.nanoTime();
+    boolean retiring;
+    boolean replaced;
+
+    Worker(Process process, Socket socket, DataInputStream in, DataOutputStream out, Consumer<Worker> onExit) {
+        this.process = process;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.onExit = onExit;
+        Thread reader = Executors.defaultThreadFactory().newThread(this::readLoop);
+        reader.setName("wkhtmltox-worker-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a job to the worker. Warnings, errors and progress reported by the worker are passed
+     * to the listener until the returned future completes.
+     *
+     * @throws IllegalStateException if the worker is still rendering another job
+     */
+    public CompletableFuture<WkHtmlToXResult> submit(WkHtmlToXJob job, WkHtmlToXListener listener) {
+        Pending submitted = new Pending(ids.incrementAndGet(), listener);
+        synchronized (out) {
+            if (pending != null) {
+                throw new IllegalStateException("Worker is busy");
+            }
+            if (closed) {
+                submitted.future.completeExceptionally(new WkHtmlToXException("Render worker was stopped"));
+                return submitted.future;
+            }
+            pending = submitted;
+            try {
+                WorkerProtocol.writeJob(out, submitted.id, job);
+                out.flush();
+            } catch (IOException e) {
+                fail(new WkHtmlToXException("Failed to send job to render worker", e));
+            }
+        }
+        return submitted.future;
+    }
+
+    /**
+     * Returns the amount of jobs the worker has rendered.
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the resident memory of the worker process after its last job, or -1 if unknown.
+     */
+    public long getRssBytes() {
+        return rssBytes;
+    }
+
+    /**
+     * Returns the time, in milliseconds, since the worker finished its last job or was started.
+     */
+    public long getIdleMillis() {
+        return pending == null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsed) : 0;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Kills the worker process, failing the job it is rendering.
+     */
+    public void destroy() {
+        closed = true;
+        closeQuietly();
+        process.destroyForcibly();
+        fail(new WkHtmlToXException("Render worker was stopped"));
+    }
+
+    /**
+     * Asks an idle worker to exit once it has read the request.
+     */
+    public void shutdown() {
+        closed = true;
+        synchronized (out) {
+            try {
+                out.writeByte(WorkerProtocol.SHUTDOWN);
+                out.flush();
+            } catch (IOException e) {
+                process.destroyForcibly();
+            }
+        }
+        closeQuietly();
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                Pending current = pending;
+                if (current != null && current.id != id) {
+                    current = null;
+                }
+                switch (type) {
+                    case WorkerProtocol.WARNING:
+                        String warning = WorkerProtocol.readString(in);
+                        notify(current, l -> l.warning(warning));
+                        break;
+                    case WorkerProtocol.ERROR:
+                        String error = WorkerProtocol.readString(in);
+                        notify(current, l -> l.error(error));
+                        break;
+                    case WorkerProtocol.PROGRESS:
+                        WkHtmlToXProgress progress = WorkerProtocol.readProgress(in);
+                        notify(current, l -> l.progress(progress));
+                        break;
+                    case WorkerProtocol.STATS:
+                        rssBytes = in.readLong();
+                        break;
+                    case WorkerProtocol.RESULT:
+                        WkHtmlToXResult result = WorkerProtocol.readResult(in);
+                        if (current != null) {
+                            completed.incrementAndGet();
+                            lastUsed = System.nanoTime();
+                            pending = null;
+                            current.future.complete(result);
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unexpected message type " + type);
+                }
+            }
+        } catch (IOException e) {
+            boolean expected = closed;
+            closed = true;
+            closeQuietly();
+            fail(new WkHtmlToXException("Render worker exited", e));
+            if (!expected) {
+                onExit.accept(this);
+            }
+        }
+    }
+
+    private static void notify(Pending pending, Consumer<WkHtmlToXListener> event) {
+        if (pending == null) {
+            return;
+        }
+        try {
+            event.accept(pending.listener);
+        } catch (RuntimeException e) {
+            // Listener failures must not break the connection, as with native callbacks.
+        }
+    }
+
+    private void fail(WkHtmlToXException error) {
+        Pending failed = pending;
+        pending = null;
+        if (failed != null) {
+            failed.future.completeExceptionally(error);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private static class Pending {
+        private final long id;
+        private final WkHtmlToXListener listener;
+        private final CompletableFuture<WkHtmlToXResult> future = new CompletableFuture<>();
+
+        Pending(long id, WkHtmlToXListener listener) {
+            this.id = id;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.wkhtmltopdf.worker;
+
+import org.wkhtmltopdf.WkHtmlToX;
+import org.wkhtmltopdf.WkHtmlToXAdmissionControl;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXLibraryLoader;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXRenderer;
+import org.wkhtmltopdf.WkHtmlToXResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Entry point of a render worker process. The worker connects back to the parent process on the
+ * loopback interface, loads the native library and renders the jobs it receives on its main
+ * thread until it is told to shut down or the connection is closed.
+ * <p>
+ * Arguments: the port to connect to, the token identifying the worker to the parent, and
+ * optionally the directory and minimum size of documents passed through memory mapped files.
+ */
+public final class WorkerMain {
+
+    private WorkerMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        String token = args[1];
+        Path directory = args.length > 3 ? Paths.get(args[2]) : null;
+        int mappedOutputBytes = args.length > 3 ? Integer.parseInt(args[3]) : Integer.MAX_VALUE;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(WorkerProtocol.HELLO);
+            WorkerProtocol.writeString(out, token);
+            out.flush();
+
+            WkHtmlToX wkHtmlToX = WkHtmlToXLibraryLoader.getInstance();
+            out.writeByte(WorkerProtocol.READY);
+            out.flush();
+            serve(wkHtmlToX, in, out, directory, mappedOutputBytes);
+        }
+    }
+
+    private static void serve(WkHtmlToX wkHtmlToX, DataInputStream in, DataOutputStream out,
+                              Path directory, int mappedOutputBytes) throws IOException {
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            switch (type) {
+                case WorkerProtocol.JOB:
+                    long id = in.readLong();
+                    WkHtmlToXJob job = WorkerProtocol.readJob(in);
+                    WkHtmlToXResult result = WkHtmlToXRenderer.render(wkHtmlToX, job, forwarding(out, id));
+                    WorkerProtocol.writeStats(out, id, WkHtmlToXAdmissionControl.getResidentBytes());
+                    WorkerProtocol.writeResult(out, id, result, directory, mappedOutputBytes);
+                    out.flush();
+                    break;
+                case WorkerProtocol.SHUTDOWN:
+                    return;
+                default:
+                    throw new IOException("Unexpected message type " + type);
+            }
+        }
+    }
+
+    private static WkHtmlToXListener forwarding(DataOutputStream out, long id) {
+        return new WkHtmlToXListener() {
+            @Override
+            public void warning(String message) {
+                send(out, () -> WorkerProtocol.writeMessage(out, WorkerProtocol.WARNING, id, message));
+            }
+
+            @Override
+            public void error(String message) {
+                send(out, () -> WorkerProtocol.writeMessage(out, WorkerProtocol.ERROR, id, message));
+            }
+
+            @Override
+            public void progress(WkHtmlToXProgress progress) {
+                send(out, () -> WorkerProtocol.writeProgress(out, id, progress));
+            }
+        };
+    }
+
+    private static void send(DataOutputStream out, IOAction action) {
+        try {
+            action.run();
+            out.flush();
+        } catch (IOException e) {
+            // The parent is gone; writing the result will fail and end the worker.
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,560 @@
+package org.wkhtmltopdf.worker;
+
+import org.wkhtmltopdf.WkHtmlToXException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed amount of render worker processes, each hosting its own copy of the native library.
+ * Workers run {@link WorkerMain} with the classpath of the current process and connect back over
+ * the loopback interface. A worker that exits or is recycled is replaced in the background.
+ * <p>
+ * As the native library leaks memory over long runs, workers can be retired after a number of
+ * conversions, once their resident memory passes a limit, or after sitting idle. A retiring worker
+ * keeps serving until its replacement has started, and then exits as soon as it is idle, so that
+ * retiring workers costs no throughput.
+ */
+public class WorkerPool {
+    private static final long START_TIMEOUT_MILLIS = 60_000;
+    private static final long MAX_RESPAWN_DELAY_MILLIS = 30_000;
+
+    private final int size;
+    private volatile List<String> jvmOptions = Collections.emptyList();
+    private volatile String classpath = System.getProperty("java.class.path");
+    private volatile int maxConversions;
+    private volatile long maxRssBytes;
+    private volatile long maxIdleMillis;
+    private volatile int mappedOutputBytes = 1 << 20;
+    private volatile String mappedOutputDirectory = defaultMappedOutputDirectory();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Worker> idle = new ArrayDeque<>();
+    private final Set<Worker> busy = new HashSet<>();
+    private final Map<String, CompletableFuture<Socket>> connecting = new ConcurrentHashMap<>();
+    private final ExecutorService spawner = Executors.newCachedThreadPool(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder retired = new LongAdder();
+    private int replacements;
+    private ServerSocket serverSocket;
+    private int starting;
+    private int failures;
+    private Throwable lastFailure;
+    private boolean started;
+    private volatile boolean shutdown;
+
+    private WorkerPool(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Creates a new {@code WorkerPool} of the specified amount of worker processes. The processes
+     * are started by {@link #start()}.
+     */
+    public static WorkerPool create(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive.");
+        }
+        return new WorkerPool(size);
+    }
+
+    /**
+     * Options passed to the JVM of every worker, e.g. "-Xmx256m".
+     */
+    public WorkerPool jvmOptions(String... options) {
+        this.jvmOptions = Collections.unmodifiableList(Arrays.asList(options));
+        return this;
+    }
+
+    /**
+     * The classpath of the worker processes. Defaults to the classpath of the current process.
+     */
+    public WorkerPool classpath(String classpath) {
+        this.classpath = classpath;
+        return this;
+    }
+
+    /**
+     * Retires workers after they rendered the specified amount of jobs. 0, the default, keeps
+     * workers regardless of the amount of jobs.
+     */
+    public WorkerPool maxConversions(int maxConversions) {
+        if (maxConversions < 0) {
+            throw new IllegalArgumentException("Conversion limit must not be negative.");
+        }
+        this.maxConversions = maxConversions;
+        return this;
+    }
+
+    /**
+     * Retires workers whose resident memory, including the native heap, exceeds the specified
+     * amount after a job. Only supported on Linux. 0, the default, disables the limit.
+     */
+    public WorkerPool maxRssBytes(long maxRssBytes) {
+        if (maxRssBytes < 0) {
+            throw new IllegalArgumentException("Memory limit must not be negative.");
+        }
+        this.maxRssBytes = maxRssBytes;
+        return this;
+    }
+
+    /**
+     * Retires workers that have been idle for longer than the specified time, in milliseconds.
+     * 0, the default, keeps idle workers.
+     */
+    public WorkerPool maxIdleMillis(long maxIdleMillis) {
+        if (maxIdleMillis < 0) {
+            throw new IllegalArgumentException("Idle time must not be negative.");
+        }
+        this.maxIdleMillis = maxIdleMillis;
+        return this;
+    }
+
+    /**
+     * Passes documents of at least the specified size from the workers through memory mapped
+     * files instead of the connection. Defaults to 1 MB; {@code Integer.MAX_VALUE} disables it.
+     */
+    public WorkerPool mappedOutputBytes(int mappedOutputBytes) {
+        if (mappedOutputBytes < 0) {
+            throw new IllegalArgumentException("Size must not be negative.");
+        }
+        this.mappedOutputBytes = mappedOutputBytes;
+        return this;
+    }
+
+    /**
+     * The directory of the memory mapped files documents are passed through. Defaults to
+     * /dev/shm if available, so the files are never written to disk, and the temporary
+     * directory otherwise.
+     */
+    public WorkerPool mappedOutputDirectory(String directory) {
+        this.mappedOutputDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Starts the worker processes. Has no effect if the pool has already been started.
+     */
+    public WorkerPool start() {
+        lock.lock();
+        try {
+            if (started) {
+                return this;
+            }
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            started = true;
+        } catch (IOException e) {
+            throw new WkHtmlToXException("Failed to open worker socket", e);
+        } finally {
+            lock.unlock();
+        }
+        spawner.execute(this::acceptLoop);
+        spawner.execute(this::idleLoop);
+        for (int i = 0; i < size; i++) {
+            spawn(0);
+        }
+        return this;
+    }
+
+    /**
+     * Waits for an idle worker and marks it busy.
+     *
+     * @throws WkHtmlToXException if no worker is running and the last attempt to start one failed
+     */
+    public Worker acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (idle.isEmpty()) {
+                if (shutdown) {
+                    throw new WkHtmlToXException("Worker pool has been shut down");
+                }
+                if (busy.isEmpty() && lastFailure != null) {
+                    throw new WkHtmlToXException("No render worker could be started", lastFailure);
+                }
+                changed.await();
+            }
+            Worker worker = idle.pollFirst();
+            busy.add(worker);
+            return worker;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks an idle worker busy, if there is one.
+     *
+     * @return the worker, or {@code null} if all workers are busy
+     */
+    public Worker tryAcquire() {
+        lock.lock();
+        try {
+            Worker worker = idle.pollFirst();
+            if (worker != null) {
+                busy.add(worker);
+            }
+            return worker;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a worker obtained from {@link #acquire()} to the idle workers.
+     */
+    public void release(Worker worker) {
+        lock.lock();
+        try {
+            if (busy.remove(worker)) {
+                if (worker.isClosed()) {
+                    replace(worker);
+                } else if (worker.replaced) {
+                    retire(worker);
+                } else {
+                    if (!worker.retiring && isExhausted(worker)) {
+                        startReplacement(worker);
+                    }
+                    // Retiring workers are only used while all others are busy.
+                    if (worker.retiring) {
+                        idle.addLast(worker);
+                    } else {
+                        idle.addFirst(worker);
+                    }
+                }
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Kills a worker, e.g. one rendering a job nobody waits for anymore, and starts a replacement.
+     */
+    public void recycle(Worker worker) {
+        lock.lock();
+        try {
+            if (busy.remove(worker) || idle.remove(worker)) {
+                replace(worker);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops all workers.
+     */
+    public void shutdown() {
+        List<Worker> workers;
+        lock.lock();
+        try {
+            shutdown = true;
+            workers = new ArrayList<>(idle);
+            workers.addAll(busy);
+            idle.clear();
+            busy.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.forEach(Worker::destroy);
+        spawner.shutdownNow();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBusy() {
+        lock.lock();
+        try {
+            return busy.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of workers that have been replaced after exiting or being recycled.
+     */
+    public long getRestarts() {
+        return restarts.sum();
+    }
+
+    /**
+     * Returns the amount of workers that have been retired by the conversion, memory or idle limits.
+     */
+    public long getRetired() {
+        return retired.sum();
+    }
+
+    private void onExit(Worker worker) {
+        recycle(worker);
+    }
+
+    private void replace(Worker worker) {
+        worker.destroy();
+        restarts.increment();
+        if (worker.replaced) {
+            return;
+        }
+        if (worker.retiring) {
+            // The replacement being started for the retiring worker takes its place.
+            replacements--;
+        } else if (!shutdown) {
+            spawn(0);
+        }
+    }
+
+    private boolean isExhausted(Worker worker) {
+        int maxConversions = this.maxConversions;
+        long maxRssBytes = this.maxRssBytes;
+        return (maxConversions > 0 && worker.getCompleted() >= maxConversions)
+                || (maxRssBytes > 0 && worker.getRssBytes() > maxRssBytes);
+    }
+
+    /**
+     * Starts the replacement of a worker, which keeps serving until the replacement is ready.
+     */
+    private void startReplacement(Worker worker) {
+        worker.retiring = true;
+        replacements++;
+        spawn(0);
+    }
+
+    /**
+     * Retires a worker whose replacement is ready, right away if it is idle or once it is released.
+     */
+    private void replaceRetiring() {
+        for (Worker worker : idle) {
+            if (worker.retiring && !worker.replaced) {
+                idle.remove(worker);
+                retire(worker);
+                return;
+            }
+        }
+        for (Worker worker : busy) {
+            if (worker.retiring && !worker.replaced) {
+                worker.replaced = true;
+                return;
+            }
+        }
+    }
+
+    private void retire(Worker worker) {
+        worker.replaced = true;
+        worker.shutdown();
+        retired.increment();
+    }
+
+    private void idleLoop() {
+        while (!shutdown) {
+            long maxIdleMillis = this.maxIdleMillis;
+            try {
+                Thread.sleep(maxIdleMillis == 0 ? 1000 : Math.max(10, Math.min(1000, maxIdleMillis / 4)));
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (maxIdleMillis == 0) {
+                continue;
+            }
+            lock.lock();
+            try {
+                for (Worker worker : idle) {
+                    if (!worker.retiring && worker.getIdleMillis() > maxIdleMillis) {
+                        startReplacement(worker);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void spawn(long delayMillis) {
+        lock.lock();
+        try {
+            starting++;
+        } finally {
+            lock.unlock();
+        }
+        spawner.execute(() -> {
+            try {
+                Thread.sleep(delayMillis);
+                Worker worker = launch();
+                lock.lock();
+                try {
+                    starting--;
+                    failures = 0;
+                    lastFailure = null;
+                    if (shutdown) {
+                        worker.shutdown();
+                    } else {
+                        idle.addFirst(worker);
+                        if (replacements > 0) {
+                            replacements--;
+                            replaceRetiring();
+                        }
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (Exception e) {
+                long retryDelay;
+                lock.lock();
+                try {
+                    starting--;
+                    failures++;
+                    lastFailure = e;
+                    retryDelay = Math.min(MAX_RESPAWN_DELAY_MILLIS, 500L << Math.min(failures, 10));
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (!shutdown && !(e instanceof InterruptedException)) {
+                    spawn(retryDelay);
+                }
+            }
+        });
+    }
+
+    private Worker launch() throws IOException, InterruptedException {
+        String token = UUID.randomUUID().toString();
+        CompletableFuture<Socket> connection = new CompletableFuture<>();
+        connecting.put(token, connection);
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(WorkerMain.class.getName());
+        command.add(String.valueOf(serverSocket.getLocalPort()));
+        command.add(token);
+        command.add(mappedOutputDirectory);
+        command.add(String.valueOf(mappedOutputBytes));
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            Socket socket = awaitConnection(process, connection);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socket.setSoTimeout((int) START_TIMEOUT_MILLIS);
+            if (in.readByte() != WorkerProtocol.READY) {
+                throw new IOException("Render worker did not report readiness");
+            }
+            socket.setSoTimeout(0);
+            return new Worker(process, socket, in, out, this::onExit);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            process.destroyForcibly();
+            throw e;
+        } finally {
+            connecting.remove(token);
+        }
+    }
+
+    private static String defaultMappedOutputDirectory() {
+        File shm = new File("/dev/shm");
+        return shm.isDirectory() && shm.canWrite() ? shm.getPath() : System.getProperty("java.io.tmpdir");
+    }
+
+    private static Socket awaitConnection(Process process, CompletableFuture<Socket> connection)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                return connection.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!process.isAlive()) {
+                    throw new IOException("Render worker exited with code " + process.exitValue());
+                }
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        throw new IOException("Render worker did not connect in time");
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                socket.setSoTimeout(10_000);
+                // Read unbuffered, so that nothing beyond the greeting is consumed. Any local
+                // process may connect, so the token is read with a small limit.
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String token = in.readByte() == WorkerProtocol.HELLO ? WorkerProtocol.readString(in, 256) : null;
+                CompletableFuture<Socket> connection = token == null ? null : connecting.get(token);
+                if (connection == null) {
+                    socket.close();
+                } else {
+                    socket.setSoTimeout(0);
+                    connection.complete(socket);
+                }
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // already closed
+                }
+            }
+        }
+    }
+}
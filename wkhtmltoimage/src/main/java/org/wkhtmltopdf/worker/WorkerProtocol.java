@@ -0,0 +1,340 @@
+package org.wkhtmltopdf.worker;
+
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXProgress;
+import org.wkhtmltopdf.WkHtmlToXResult;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages exchanged between the parent process and a render worker. Every message starts
+ * with a one byte type; messages concerning a job carry the job id next.
+ * <p>
+ * Large documents are not copied through the connection: the worker writes them to a file
+ * mapped into memory, preferably on a shared memory file system, and only sends its path. The
+ * parent maps the same file and deletes it, so the document is read from the page cache.
+ * <p>
+ * Messages read from untrusted peers, e.g. over TCP, are read with a maximum size, so that a
+ * peer cannot make the reader allocate more memory than that by announcing large lengths.
+ */
+public final class WorkerProtocol {
+    public static final byte HELLO = 1;
+    public static final byte READY = 2;
+    public static final byte JOB = 3;
+    public static final byte WARNING = 4;
+    public static final byte ERROR = 5;
+    public static final byte PROGRESS = 6;
+    public static final byte RESULT = 7;
+    public static final byte SHUTDOWN = 8;
+    /**
+     * The resident memory of the worker, sent before each result.
+     */
+    public static final byte STATS = 9;
+    /**
+     * A health check of a remote render node, answered with {@link #READY}.
+     */
+    public static final byte PING = 10;
+
+    private static final byte INLINE_OUTPUT = 0;
+    private static final byte MAPPED_OUTPUT = 1;
+
+    private WorkerProtocol() {
+    }
+
+    public static void writeJob(DataOutputStream out, long id, WkHtmlToXJob job) throws IOException {
+        out.writeByte(JOB);
+        out.writeLong(id);
+        writeJob(out, job);
+    }
+
+    public static void writeJob(DataOutputStream out, WkHtmlToXJob job) throws IOException {
+        out.writeByte(job.getType().ordinal());
+        writeString(out, job.getTenant());
+        writeMap(out, job.getSettings());
+        out.writeInt(job.getInputs().size());
+        for (WkHtmlToXJob.Input input : job.getInputs()) {
+            writeMap(out, input.getSettings());
+            writeString(out, input.getHtmlData());
+        }
+    }
+
+    public static WkHtmlToXJob readJob(DataInputStream in) throws IOException {
+        return readJob(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a job taking at most the specified amount of bytes.
+     *
+     * @throws IOException if the job is larger or malformed
+     */
+    public static WkHtmlToXJob readJob(DataInputStream in, int maxBytes) throws IOException {
+        Limit limit = new Limit(maxBytes);
+        byte ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= WkHtmlToXJob.Type.values().length) {
+            throw new IOException("Unexpected job type " + ordinal);
+        }
+        WkHtmlToXJob.Type type = WkHtmlToXJob.Type.values()[ordinal];
+        String tenant = readString(in, limit);
+        Map<String, String> settings = readMap(in, limit);
+        int count = readCount(in, limit);
+        List<WkHtmlToXJob.Input> inputs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> inputSettings = readMap(in, limit);
+            inputs.add(new WkHtmlToXJob.Input(inputSettings, readString(in, limit)));
+        }
+        if (type == WkHtmlToXJob.Type.PDF) {
+            return WkHtmlToXJob.pdf(tenant, settings, inputs);
+        }
+        if (inputs.isEmpty()) {
+            throw new IOException("Image job without input");
+        }
+        return WkHtmlToXJob.image(tenant, settings, inputs.get(0).getHtmlData());
+    }
+
+    public static void writeMessage(DataOutputStream out, byte type, long id, String message) throws IOException {
+        out.writeByte(type);
+        out.writeLong(id);
+        writeString(out, message);
+    }
+
+    public static void writeProgress(DataOutputStream out, long id, WkHtmlToXProgress progress) throws IOException {
+        out.writeByte(PROGRESS);
+        out.writeLong(id);
+        out.writeInt(progress.getPhase());
+        writeString(out, progress.getPhaseDescription());
+        out.writeInt(progress.getTotalPhases());
+        out.writeInt(progress.getPhaseProgress());
+    }
+
+    public static WkHtmlToXProgress readProgress(DataInputStream in) throws IOException {
+        return readProgress(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a progress update taking at most the specified amount of bytes.
+     *
+     * @throws IOException if the update is larger
+     */
+    public static WkHtmlToXProgress readProgress(DataInputStream in, int maxBytes) throws IOException {
+        int phase = in.readInt();
+        String description = readString(in, new Limit(maxBytes));
+        int totalPhases = in.readInt();
+        return new WkHtmlToXProgress(phase, description, totalPhases, in.readInt());
+    }
+
+    public static void writeResult(DataOutputStream out, long id, WkHtmlToXResult result) throws IOException {
+        writeResult(out, id, result, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes a result, passing documents of at least the specified size through a memory mapped
+     * file in the specified directory.
+     */
+    public static void writeResult(DataOutputStream out, long id, WkHtmlToXResult result,
+                                   Path directory, int mappedOutputBytes) throws IOException {
+        ByteBuffer output = result.getOutputBuffer();
+        Path mapped = null;
+        if (output != null && directory != null && output.remaining() >= mappedOutputBytes) {
+            mapped = map(directory, output);
+        }
+        out.writeByte(RESULT);
+        out.writeLong(id);
+        out.writeBoolean(result.isSuccess());
+        if (mapped != null) {
+            out.writeByte(MAPPED_OUTPUT);
+            writeString(out, mapped.toString());
+            out.writeInt(output.remaining());
+        } else {
+            out.writeByte(INLINE_OUTPUT);
+            writeBytes(out, result.getOutput());
+        }
+        out.writeInt(result.getLog().size());
+        for (String line : result.getLog()) {
+            writeString(out, line);
+        }
+        out.writeInt(result.getHttpErrorCode());
+    }
+
+    public static void writeStats(DataOutputStream out, long id, long rssBytes) throws IOException {
+        out.writeByte(STATS);
+        out.writeLong(id);
+        out.writeLong(rssBytes);
+    }
+
+    public static WkHtmlToXResult readResult(DataInputStream in) throws IOException {
+        return readResult(in, true, new Limit(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Reads a result sent by an untrusted peer, e.g. a remote render node, which must send the
+     * document through the connection rather than name a file on this host, and may take at
+     * most the specified amount of bytes.
+     *
+     * @throws IOException if the result is larger or names a file
+     */
+    public static WkHtmlToXResult readInlineResult(DataInputStream in, int maxBytes) throws IOException {
+        return readResult(in, false, new Limit(maxBytes));
+    }
+
+    private static WkHtmlToXResult readResult(DataInputStream in, boolean allowMapped, Limit limit)
+            throws IOException {
+        boolean success = in.readBoolean();
+        byte[] output = null;
+        ByteBuffer mapped = null;
+        if (in.readByte() == MAPPED_OUTPUT) {
+            if (!allowMapped) {
+                throw new IOException("Unexpected memory mapped output from untrusted peer");
+            }
+            Path file = Paths.get(readString(in, limit));
+            mapped = unmap(file, in.readInt());
+        } else {
+            output = readBytes(in, limit);
+        }
+        int count = readCount(in, limit);
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            log.add(readString(in, limit));
+        }
+        int httpErrorCode = in.readInt();
+        if (mapped != null) {
+            return WkHtmlToXResult.ofBuffer(success, mapped, log, httpErrorCode);
+        }
+        return new WkHtmlToXResult(success, output, log, httpErrorCode);
+    }
+
+    private static Path map(Path directory, ByteBuffer output) {
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, "wkhtmltox-", ".out");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, output.remaining()).put(output.duplicate());
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            // E.g. the file system is full; the document is sent through the connection instead.
+            if (file != null) {
+                file.toFile().delete();
+            }
+            return null;
+        }
+    }
+
+    private static ByteBuffer unmap(Path file, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            // The mapping stays valid after the file is deleted, except on Windows.
+            if (!file.toFile().delete()) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        return readString(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a string taking at most the specified amount of bytes.
+     *
+     * @throws IOException if the string is larger
+     */
+    public static String readString(DataInputStream in, int maxBytes) throws IOException {
+        return readString(in, new Limit(maxBytes));
+    }
+
+    private static String readString(DataInputStream in, Limit limit) throws IOException {
+        byte[] bytes = readBytes(in, limit);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        return readBytes(in, new Limit(Integer.MAX_VALUE));
+    }
+
+    private static byte[] readBytes(DataInputStream in, Limit limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        limit.take(length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in, Limit limit) throws IOException {
+        int size = readCount(in, limit);
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in, limit), readString(in, limit));
+        }
+        return map;
+    }
+
+    /**
+     * Reads the amount of elements following, each taking at least the four bytes of its length.
+     */
+    private static int readCount(DataInputStream in, Limit limit) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Negative element count " + count);
+        }
+        limit.take(4L * count);
+        return count;
+    }
+
+    /**
+     * The amount of bytes the rest of a message may take.
+     */
+    private static final class Limit {
+        private final int maxBytes;
+        private long remaining;
+
+        Limit(int maxBytes) {
+            this.maxBytes = maxBytes;
+            this.remaining = maxBytes;
+        }
+
+        void take(long bytes) throws IOException {
+            if (bytes > remaining) {
+                throw new IOException("Message larger than " + maxBytes + " bytes");
+            }
+            remaining -= bytes;
+        }
+    }
+}
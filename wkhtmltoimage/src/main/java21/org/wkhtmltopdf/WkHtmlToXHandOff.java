@@ -0,0 +1,33 @@
+package org.wkhtmltopdf;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How callers wait for conversions rendered on other threads, on Java 21 and later.
+ * <p>
+ * Waiting on the future parks a virtual thread without holding a monitor or its carrier thread,
+ * so it costs no more than its continuation. Blocking operations of non-blocking callers run on
+ * virtual threads instead of a pool of platform threads.
+ */
+final class WkHtmlToXHandOff {
+
+    private WkHtmlToXHandOff() {
+    }
+
+    /**
+     * Waits for the result of a task.
+     */
+    static <T> T await(CompletableFuture<T> result) throws InterruptedException, ExecutionException {
+        return result.get();
+    }
+
+    /**
+     * Creates the executor running blocking operations on behalf of non-blocking callers.
+     */
+    static ExecutorService newCallerExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("wkhtmltox-caller-", 0).factory());
+    }
+}
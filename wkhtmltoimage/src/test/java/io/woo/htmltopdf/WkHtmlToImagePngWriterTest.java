@@ -0,0 +1,148 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.remote.WkHtmlToXNodeServer;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+import org.wkhtmltopdf.wkhtmltoimage.HtmlToImageConverter;
+import org.wkhtmltopdf.wkhtmltoimage.WkHtmlToImagePngWriter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class WkHtmlToImagePngWriterTest {
+
+    @Test
+    public void itStitchesTilesIntoOnePng() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (WkHtmlToImagePngWriter writer = new WkHtmlToImagePngWriter(bytes, 300, 250)) {
+            writer.write(tile(300, 100, 0x123456));
+            writer.write(tile(300, 100, 0xabcdef));
+            writer.write(tile(280, 30, 0x00ff00));
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(300, image.getWidth());
+        assertEquals(250, image.getHeight());
+        assertEquals(0x123456, image.getRGB(150, 50) & 0xffffff);
+        assertEquals(0xabcdef, image.getRGB(0, 199) & 0xffffff);
+        assertEquals(0x00ff00, image.getRGB(279, 229) & 0xffffff);
+        assertEquals(0xffffff, image.getRGB(290, 229) & 0xffffff);
+        assertEquals(0xffffff, image.getRGB(10, 249) & 0xffffff);
+    }
+
+    @Test
+    public void itKeepsABoundedWindowOfTilesRendering() throws IOException {
+        AtomicInteger rendering = new AtomicInteger();
+        AtomicInteger maxRendering = new AtomicInteger();
+        withNode((job, listener) -> {
+            if (measuring(job)) {
+                return measured(450);
+            }
+            maxRendering.accumulateAndGet(rendering.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rendering.decrementAndGet();
+            int height = Integer.parseInt(job.getSettings().get("crop.height"));
+            return new WkHtmlToXResult(true, bmp(tile(40, height, 0x123456)), Collections.emptyList());
+        }, () -> {
+            List<Boolean> finished = new ArrayList<>();
+            ByteBuffer png = HtmlToImageConverter.fromHtml("<p>Tall</p>").tileHeight(100).tileWindow(2)
+                    .finished(finished::add).toByteBuffer();
+
+            byte[] bytes = new byte[png.remaining()];
+            png.get(bytes);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            assertEquals(40, image.getWidth());
+            assertEquals(450, image.getHeight());
+            assertEquals(0x123456, image.getRGB(20, 449) & 0xffffff);
+            assertEquals(2, maxRendering.get());
+            assertEquals(Collections.singletonList(true), finished);
+        });
+    }
+
+    @Test
+    public void itReportsTilesWhichCannotBeDecodedToTheCallbacks() throws IOException {
+        withNode((job, listener) -> measuring(job) ? measured(300)
+                : new WkHtmlToXResult(true, new byte[]{1, 2, 3}, Collections.emptyList()), () -> {
+            List<Boolean> finished = new ArrayList<>();
+            try {
+                HtmlToImageConverter.fromHtml("<p>Tall</p>").tileHeight(100).finished(finished::add).toByteBuffer();
+                fail("Undecodable tiles must fail the conversion");
+            } catch (WkHtmlToXException e) {
+                assertEquals(Collections.singletonList(false), finished);
+            }
+        });
+    }
+
+    /**
+     * Runs the test with the executor rendering on a node using the specified renderer, allowing
+     * it to render four tiles at the same time.
+     */
+    private static void withNode(BiFunction<WkHtmlToXJob, WkHtmlToXListener, WkHtmlToXResult> renderer,
+                                 IOAction test) throws IOException {
+        WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create().renderer(renderer).bind("127.0.0.1", 0).start();
+        WkHtmlToXRemoteNodes nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000)
+                .node("127.0.0.1", server.getPort());
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().remote(nodes);
+        executor.getConcurrencyLimiter().bounds(4, 4);
+        try {
+            test.run();
+        } finally {
+            executor.remote(null);
+            nodes.close();
+            server.close();
+        }
+    }
+
+    private static boolean measuring(WkHtmlToXJob job) {
+        return "1".equals(job.getSettings().get("crop.height"));
+    }
+
+    private static WkHtmlToXResult measured(int height) {
+        return new WkHtmlToXResult(true, new byte[0], Collections.singletonList("Warning: wkhtmltox-page-height:" + height));
+    }
+
+    private static byte[] bmp(BufferedImage image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "bmp", bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private static BufferedImage tile(int width, int height, int rgb) {
+        BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                tile.setRGB(x, y, rgb);
+            }
+        }
+        return tile;
+    }
+}
@@ -0,0 +1,142 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.remote.WkHtmlToXNodeServer;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+import org.wkhtmltopdf.wkhtmltopdf.HtmlToPdfConverter;
+import org.wkhtmltopdf.wkhtmltopdf.WkHtmlToPdfMerger;
+import org.wkhtmltopdf.wkhtmltopdf.WkHtmlToPdfObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToPdfMergerTest {
+
+    @Test
+    public void itMergesPagesOutlinesAndDestinationsInOrder() throws IOException {
+        byte[] first = pdf(1, "Chapter 1");
+        byte[] second = pdf(2, "Chapter 2");
+        assertEquals(2, WkHtmlToPdfMerger.getPageCount(second));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WkHtmlToPdfMerger.merge(Arrays.asList(first, second), out);
+        byte[] merged = out.toByteArray();
+        String text = new String(merged, StandardCharsets.ISO_8859_1);
+
+        assertEquals(3, WkHtmlToPdfMerger.getPageCount(merged));
+        assertTrue(text.contains("(Chapter 1)"));
+        assertTrue(text.contains("(Chapter 2)"));
+        assertTrue(text.contains("/anchor "));
+        assertTrue(text.contains("/anchor_1 "));
+        assertTrue(text.contains("/Outlines 3 0 R"));
+        assertTrue(text.contains("BT /F1 12 Tf (Page 2) Tj ET"));
+        // Pages are attached to the merged page tree and keep the attributes they inherited.
+        Matcher page = Pattern.compile("/Type /Page /Parent 2 0 R [^\n]*/MediaBox \\[0 0 595 842 \\]").matcher(text);
+        int pages = 0;
+        while (page.find()) {
+            pages++;
+        }
+        assertEquals(3, pages);
+
+        // Every in-use cross-reference entry points at its object.
+        int xref = Integer.parseInt(text.substring(text.lastIndexOf("startxref") + 10).trim().split("\\s+")[0]);
+        int number = 0;
+        int checked = 0;
+        Matcher all = Pattern.compile("(\\d{10}) (\\d{5}) ([nf])").matcher(text.substring(xref));
+        while (all.find()) {
+            if (all.group(3).equals("n")) {
+                int offset = Integer.parseInt(all.group(1));
+                assertTrue(text.startsWith(number + " 0 obj", offset));
+                checked++;
+            }
+            number++;
+        }
+        assertTrue(checked > 8);
+    }
+
+    @Test
+    public void itOnlyRendersShardsAgainWhoseFirstPageMoved() throws IOException {
+        List<String> offsets = new CopyOnWriteArrayList<>();
+        WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create().renderer((job, listener) -> {
+            offsets.add(job.getSettings().getOrDefault("pageOffset", "none"));
+            return new WkHtmlToXResult(true, pdf(2, "Shard"), Collections.emptyList());
+        }).bind("127.0.0.1", 0).start();
+        WkHtmlToXRemoteNodes nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000)
+                .node("127.0.0.1", server.getPort());
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().remote(nodes);
+        List<Boolean> finished = new ArrayList<>();
+        ByteBuffer merged;
+        try {
+            merged = HtmlToPdfConverter.create()
+                    .object(WkHtmlToPdfObject.forHtml("<p>1</p>").headerCenter("[page]"))
+                    .object(WkHtmlToPdfObject.forHtml("<p>2</p>").headerCenter("[page]"))
+                    .object(WkHtmlToPdfObject.forHtml("<p>3</p>").headerCenter("[page]"))
+                    .shards(3)
+                    .finished(finished::add)
+                    .toByteBuffer();
+        } finally {
+            executor.remote(null);
+            nodes.close();
+            server.close();
+        }
+
+        byte[] pdf = new byte[merged.remaining()];
+        merged.get(pdf);
+        assertEquals(6, WkHtmlToPdfMerger.getPageCount(pdf));
+        Collections.sort(offsets);
+        assertEquals(Arrays.asList("2", "4", "none", "none", "none"), offsets);
+        assertEquals(Collections.singletonList(true), finished);
+    }
+
+    /**
+     * Builds a PDF in the layout written by wkhtmltopdf: a page tree with inherited resources,
+     * an outline and named destinations.
+     */
+    private static byte[] pdf(int pageCount, String title) {
+        List<String> objects = new ArrayList<>();
+        objects.add("<< /Type /Catalog /Pages 2 0 R /Outlines 3 0 R /Dests 4 0 R /PageMode /UseOutlines >>");
+        StringBuilder kids = new StringBuilder();
+        for (int i = 0; i < pageCount; i++) {
+            kids.append(7 + 2 * i).append(" 0 R ");
+        }
+        objects.add("<< /Type /Pages /Kids [" + kids + "] /Count " + pageCount
+                + " /Resources << /Font << /F1 6 0 R >> >> /MediaBox [0 0 595 842] >>");
+        objects.add("<< /Type /Outlines /First 5 0 R /Last 5 0 R /Count 1 >>");
+        objects.add("<< /anchor [7 0 R /XYZ 0 842 0] >>");
+        objects.add("<< /Title (" + title + ") /Parent 3 0 R /Dest /anchor >>");
+        objects.add("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>");
+        for (int i = 0; i < pageCount; i++) {
+            objects.add("<< /Type /Page /Parent 2 0 R /Contents " + (8 + 2 * i) + " 0 R >>");
+            String content = "BT /F1 12 Tf (Page " + (i + 1) + ") Tj ET";
+            objects.add("<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream");
+        }
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i++) {
+            offsets.add(pdf.length());
+            pdf.append(i + 1).append(" 0 obj\n").append(objects.get(i)).append("\nendobj\n");
+        }
+        int xref = pdf.length();
+        pdf.append("xref\n0 ").append(objects.size() + 1).append("\n0000000000 65535 f\r\n");
+        for (int offset : offsets) {
+            pdf.append(String.format("%010d 00000 n\r\n", offset));
+        }
+        pdf.append("trailer\n<< /Size ").append(objects.size() + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                .append(xref).append("\n%%EOF\n");
+        return pdf.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
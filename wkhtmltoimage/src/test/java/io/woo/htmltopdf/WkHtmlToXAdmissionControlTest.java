@@ -0,0 +1,114 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXAdmissionControl;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.WkHtmlToXTenantPolicy;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WkHtmlToXAdmissionControlTest {
+    private static final WkHtmlToXJob JOB = WkHtmlToXJob.image(null, Collections.singletonMap("fmt", "png"), "<p>Hello</p>");
+
+    @Test
+    public void itRejectsConversionsBeyondTheInFlightBytes() throws InterruptedException {
+        WkHtmlToXAdmissionControl admission = WkHtmlToXAdmissionControl.create()
+                .defaultOutputBytes(600).maxInFlightBytes(1000).maxWaitMillis(50);
+        long reserved = admission.acquire(JOB);
+        try {
+            admission.acquire(JOB);
+            fail("Expected rejection");
+        } catch (WkHtmlToXException e) {
+            assertEquals(600, admission.getInFlightBytes());
+        }
+        admission.release(JOB, reserved, null);
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    @Test
+    public void itAdmitsWaitingConversionsOnceMemoryIsReleased() throws Exception {
+        WkHtmlToXAdmissionControl admission = WkHtmlToXAdmissionControl.create()
+                .defaultOutputBytes(600).maxInFlightBytes(1000);
+        long reserved = admission.acquire(JOB);
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.acquire(JOB);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+
+        admission.release(JOB, reserved, new WkHtmlToXResult(true, new byte[100], Collections.emptyList()));
+        assertEquals(600, (long) waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(100, admission.estimate(JOB));
+    }
+
+    @Test
+    public void itReleasesTheReservationOfConversionsRejectedByTheQueue() {
+        WkHtmlToXAdmissionControl admission = WkHtmlToXAdmissionControl.create()
+                .defaultOutputBytes(600).maxInFlightBytes(1000).maxWaitMillis(0);
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().admissionControl(admission);
+        executor.getScheduler().tenant("full", WkHtmlToXTenantPolicy.create().maxQueued(0));
+        WkHtmlToXJob job = WkHtmlToXJob.image("full", Collections.singletonMap("fmt", "png"), "<p>Hello</p>");
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    executor.render(job, WkHtmlToXListener.NONE);
+                    fail("Expected rejection");
+                } catch (WkHtmlToXException e) {
+                    assertTrue(e.getMessage(), e.getMessage().startsWith("Queue limit"));
+                }
+                assertEquals(0, admission.getInFlightBytes());
+            }
+        } finally {
+            executor.admissionControl(null);
+        }
+    }
+
+    @Test
+    public void itAdmitsAsynchronousConversionsWithoutBlockingTheCaller() throws Exception {
+        WkHtmlToXAdmissionControl admission = WkHtmlToXAdmissionControl.create()
+                .defaultOutputBytes(600).maxInFlightBytes(1000).maxWaitMillis(2000);
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().admissionControl(admission);
+        executor.getScheduler().tenant("full", WkHtmlToXTenantPolicy.create().maxQueued(0));
+        WkHtmlToXJob job = WkHtmlToXJob.image("full", Collections.singletonMap("fmt", "png"), "<p>Hello</p>");
+        long reserved = admission.acquire(JOB);
+        try {
+            CompletableFuture<WkHtmlToXResult> result = executor.renderAsync(job, WkHtmlToXListener.NONE);
+            Thread.sleep(100);
+            assertFalse(result.isDone());
+            assertEquals(1, admission.getWaiting());
+
+            admission.release(JOB, reserved, null);
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected rejection");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Queue limit"));
+            }
+        } finally {
+            executor.admissionControl(null);
+        }
+    }
+
+    @Test
+    public void itAlwaysAdmitsASingleConversion() throws InterruptedException {
+        WkHtmlToXAdmissionControl admission = WkHtmlToXAdmissionControl.create()
+                .defaultOutputBytes(5000).maxInFlightBytes(1000).maxWaitMillis(0);
+        assertEquals(5000, admission.acquire(JOB));
+    }
+}
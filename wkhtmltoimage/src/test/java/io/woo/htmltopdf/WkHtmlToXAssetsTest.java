@@ -0,0 +1,77 @@
+package io.woo.htmltopdf;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.asset.WkHtmlToXAssets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class WkHtmlToXAssetsTest {
+    private final WkHtmlToXAssets assets = WkHtmlToXAssets.create();
+
+    @After
+    public void tearDown() {
+        assets.close();
+    }
+
+    @Test
+    public void itServesAssetsAndResolvesReferencesBetweenThem() throws IOException {
+        assets.put("css/report.css", "@font-face{src:url(wkasset://fonts/brand.woff2)}").start();
+        String base = assets.getBaseUrl();
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + "css/report.css").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("text/css; charset=utf-8", connection.getContentType());
+        assertEquals("@font-face{src:url(" + base + "fonts/brand.woff2)}", read(connection));
+        assertEquals(404, ((HttpURLConnection) new URL(base + "missing.png").openConnection()).getResponseCode());
+    }
+
+    @Test
+    public void itRewritesAssetUrlsOfJobs() {
+        assets.start();
+        WkHtmlToXJob job = WkHtmlToXJob.pdf(null, Collections.emptyMap(), Collections.singletonList(
+                new WkHtmlToXJob.Input(Collections.singletonMap("header.htmlUrl", "wkasset://header.html"),
+                        "<img src=\"wkasset://logo.png\">")));
+        WkHtmlToXJob.Input input = assets.apply(job).getInputs().get(0);
+        assertEquals(assets.getBaseUrl() + "header.html", input.getSettings().get("header.htmlUrl"));
+        assertEquals("<img src=\"" + assets.getBaseUrl() + "logo.png\">", input.getHtmlData());
+    }
+
+    @Test
+    public void itEvictsLeastRecentlyUsedAssetsAndLoadsThemAgain() throws IOException {
+        AtomicInteger loads = new AtomicInteger();
+        assets.maxBytes(10)
+                .loader(path -> {
+                    loads.incrementAndGet();
+                    return path.equals("a.txt") ? "aaaaaa".getBytes(StandardCharsets.UTF_8) : null;
+                })
+                .put("a.txt", "aaaaaa")
+                .put("b.txt", "bbbbbb")
+                .start();
+        assertEquals(6, assets.getBytes());
+        HttpURLConnection connection = (HttpURLConnection) new URL(assets.getBaseUrl() + "a.txt").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(1, loads.get());
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
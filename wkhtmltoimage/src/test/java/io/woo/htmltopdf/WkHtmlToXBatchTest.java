@@ -0,0 +1,159 @@
+package io.woo.htmltopdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.batch.WkHtmlToXBatch;
+import org.wkhtmltopdf.batch.WkHtmlToXTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXBatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void itMergesRowsIntoTheTemplate() {
+        WkHtmlToXTemplate template = WkHtmlToXTemplate.compile("<h1>{{ name }}</h1>{{{footer}}}{{missing}}!");
+
+        assertEquals(Arrays.asList("name", "footer", "missing"), template.getNames());
+        assertEquals("<h1>Tom &amp; &lt;Jerry&gt;</h1><hr>!",
+                template.merge(row("name", "Tom & <Jerry>", "footer", "<hr>")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void itRejectsUnclosedPlaceholders() {
+        WkHtmlToXTemplate.compile("<p>{{name</p>");
+    }
+
+    @Test
+    public void itStreamsDocumentsIntoAZipInRowOrderWithinTheWindow() throws IOException {
+        List<CompletableFuture<WkHtmlToXResult>> pending = new ArrayList<>();
+        AtomicInteger maxPending = new AtomicInteger();
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+
+        long written = WkHtmlToXBatch.create("<p>{{n}}</p>")
+                .window(3)
+                .name(row -> "invoice-" + row.get("n") + ".pdf")
+                .renderer((job, listener) -> {
+                    CompletableFuture<WkHtmlToXResult> result = new CompletableFuture<>();
+                    pending.add(result);
+                    long open = pending.stream().filter(future -> !future.isDone()).count();
+                    maxPending.accumulateAndGet((int) open, Math::max);
+                    // Complete the renders out of order: the previous one once the next one started.
+                    if (pending.size() > 1) {
+                        pending.get(pending.size() - 2).complete(document(pending.size() - 2));
+                    }
+                    if (pending.size() == 10) {
+                        result.complete(document(9));
+                    }
+                    return result;
+                })
+                .toZip(zip, rows(10));
+
+        assertEquals(10, written);
+        assertTrue(maxPending.get() <= 3);
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+        for (int i = 0; i < 10; i++) {
+            ZipEntry entry = in.getNextEntry();
+            assertEquals("invoice-" + i + ".pdf", entry.getName());
+            assertEquals("document " + i, read(in));
+        }
+        assertEquals(null, in.getNextEntry());
+    }
+
+    @Test
+    public void itWritesDocumentsToADirectoryAndSkipsFailedRows() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("out");
+        List<Long> failed = new ArrayList<>();
+        List<WkHtmlToXJob> jobs = new ArrayList<>();
+
+        long written = WkHtmlToXBatch.create("<p>{{n}}</p>")
+                .setting("orientation", "Landscape")
+                .failure((row, cause) -> failed.add(row))
+                .renderer((job, listener) -> {
+                    jobs.add(job);
+                    String html = job.getInputs().get(0).getHtmlData();
+                    boolean success = !html.equals("<p>1</p>");
+                    write(Paths.get(job.getSettings().get("out")), html);
+                    return CompletableFuture.completedFuture(
+                            new WkHtmlToXResult(success, null, Collections.singletonList("Error: failed")));
+                })
+                .toDirectory(directory, rows(3));
+
+        assertEquals(2, written);
+        assertEquals(Collections.singletonList(2L), failed);
+        assertEquals("<p>0</p>", new String(Files.readAllBytes(directory.resolve("000001.pdf")), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(directory.resolve("000002.pdf")));
+        assertFalse(Files.exists(directory.resolve("000002.pdf.part")));
+        assertTrue(Files.exists(directory.resolve("000003.pdf")));
+        assertEquals("Landscape", jobs.get(0).getSettings().get("orientation"));
+    }
+
+    @Test(expected = WkHtmlToXException.class)
+    public void itFailsTheBatchWithoutFailureHandler() {
+        WkHtmlToXBatch.create("<p>{{n}}</p>")
+                .renderer((job, listener) -> CompletableFuture.completedFuture(
+                        new WkHtmlToXResult(false, null, Collections.singletonList("Error: failed"))))
+                .toZip(new ByteArrayOutputStream(), rows(2));
+    }
+
+    private static Iterator<Map<String, ?>> rows(int count) {
+        return IntStream.range(0, count).<Map<String, ?>>mapToObj(i -> row("n", i)).iterator();
+    }
+
+    private static Map<String, Object> row(Object... values) {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 0; i < values.length; i += 2) {
+            row.put((String) values[i], values[i + 1]);
+        }
+        return row;
+    }
+
+    private static WkHtmlToXResult document(int i) {
+        return new WkHtmlToXResult(true, ("document " + i).getBytes(StandardCharsets.UTF_8), Collections.emptyList());
+    }
+
+    private static void write(Path path, String content) {
+        try {
+            Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String read(ZipInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
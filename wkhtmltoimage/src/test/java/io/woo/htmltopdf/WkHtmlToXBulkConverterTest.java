@@ -0,0 +1,139 @@
+package io.woo.htmltopdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.cli.WkHtmlToXBulkConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXBulkConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void itConvertsDirectoriesAndResumesWhereItStopped() throws IOException {
+        Path input = folder.newFolder("in").toPath();
+        Path output = folder.getRoot().toPath().resolve("out");
+        Files.createDirectories(input.resolve("nested"));
+        write(input.resolve("a.html"), "a");
+        write(input.resolve("nested/b.htm"), "b");
+        write(input.resolve("notes.txt"), "ignored");
+        List<WkHtmlToXJob> jobs = new CopyOnWriteArrayList<>();
+
+        assertEquals(0, converter(jobs, null).convert(input, output));
+        assertEquals("converted", read(output.resolve("a.pdf")));
+        assertEquals("converted", read(output.resolve("nested/b.pdf")));
+        assertEquals(2, jobs.size());
+
+        write(input.resolve("c.html"), "c");
+        WkHtmlToXBulkConverter resumed = converter(jobs, null);
+        assertEquals(0, resumed.convert(input, output));
+        assertEquals(1, resumed.getConverted());
+        assertEquals(2, resumed.getSkipped());
+        assertEquals(3, jobs.size());
+    }
+
+    @Test
+    public void itConvertsManifestEntriesAndReportsFailures() throws IOException {
+        Path manifest = folder.newFile("manifest.txt").toPath();
+        Files.write(manifest, Arrays.asList(
+                "# inputs",
+                "https://example.com/invoices/1\tinvoices/1.png",
+                "",
+                "/tmp/failing.html"), StandardCharsets.UTF_8);
+        Path output = folder.getRoot().toPath().resolve("out");
+        List<WkHtmlToXJob> jobs = new CopyOnWriteArrayList<>();
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+
+        WkHtmlToXBulkConverter converter = converter(jobs, "/tmp/failing.html").format("png")
+                .report(new PrintStream(report, true));
+        assertEquals(1, converter.convert(manifest, output));
+
+        assertEquals("converted", read(output.resolve("invoices/1.png")));
+        assertEquals("https://example.com/invoices/1", jobs.get(0).getSettings().get("in"));
+        assertEquals("png", jobs.get(0).getSettings().get("fmt"));
+        assertFalse(Files.exists(output.resolve("failing.png")));
+        assertFalse(Files.exists(output.resolve("failing.png.part")));
+        assertTrue(report.toString(), report.toString().contains("Failed to convert /tmp/failing.html"));
+    }
+
+    @Test
+    public void itBoundsTheConversionsInFlight() throws IOException {
+        Path input = folder.newFolder("in").toPath();
+        for (int i = 0; i < 20; i++) {
+            write(input.resolve(i + ".html"), "x");
+        }
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        WkHtmlToXBulkConverter converter = WkHtmlToXBulkConverter.create()
+                .maxInFlight(3)
+                .reportMillis(0)
+                .report(new PrintStream(new ByteArrayOutputStream()))
+                .renderer((job, listener) -> CompletableFuture.supplyAsync(() -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(5);
+                        write(Paths.get(job.getSettings().get("out")), "converted");
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    inFlight.decrementAndGet();
+                    return new WkHtmlToXResult(true, null, Collections.emptyList());
+                }));
+
+        assertEquals(0, converter.convert(input, folder.getRoot().toPath().resolve("out")));
+
+        assertEquals(20, converter.getConverted());
+        assertTrue(maxInFlight.get() <= 3);
+        assertTrue(converter.getLatencyPercentile(0.99) >= converter.getLatencyPercentile(0.5));
+    }
+
+    private static WkHtmlToXBulkConverter converter(List<WkHtmlToXJob> jobs, String failing) {
+        return WkHtmlToXBulkConverter.create()
+                .reportMillis(0)
+                .report(new PrintStream(new ByteArrayOutputStream()))
+                .renderer((job, listener) -> {
+                    jobs.add(job);
+                    String input = job.getType() == WkHtmlToXJob.Type.PDF
+                            ? job.getInputs().get(0).getSettings().get("page")
+                            : job.getSettings().get("in");
+                    write(Paths.get(job.getSettings().get("out")), "converted");
+                    boolean success = !input.equals(failing);
+                    return CompletableFuture.completedFuture(
+                            new WkHtmlToXResult(success, null, Collections.singletonList("Error: failed")));
+                });
+    }
+
+    private static void write(Path path, String content) {
+        try {
+            Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,101 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.host.WkHtmlToXCircuitBreaker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXCircuitBreakerTest {
+    private static final List<String> HOST = Collections.singletonList("origin.example.com");
+
+    @Test
+    public void itFindsTheHostsJobsLoadPagesFrom() {
+        WkHtmlToXJob pdf = WkHtmlToXJob.pdf(null, Collections.emptyMap(), Arrays.asList(
+                new WkHtmlToXJob.Input(Collections.singletonMap("page", "https://Origin.example.com/a"), null),
+                new WkHtmlToXJob.Input(Collections.singletonMap("page", "file:///tmp/b.html"), null),
+                new WkHtmlToXJob.Input(Collections.emptyMap(), "<p>c</p>")));
+        assertEquals(Collections.singleton("origin.example.com"), pdf.getHosts());
+        Set<String> hosts = WkHtmlToXJob.image(null, Collections.singletonMap("in", "http://cdn.example.com:8080/x"),
+                null).getHosts();
+        assertEquals(Collections.singleton("cdn.example.com"), hosts);
+    }
+
+    @Test
+    public void itOpensAfterConsecutiveFailuresAndProbesAfterTheCoolDown() throws InterruptedException {
+        WkHtmlToXCircuitBreaker breaker = WkHtmlToXCircuitBreaker.create().failureThreshold(2).openMillis(50);
+        breaker.record(HOST, result(false, 503));
+        assertTrue(breaker.tryAcquire(HOST));
+        breaker.record(HOST, result(false, 0));
+        assertEquals(WkHtmlToXCircuitBreaker.State.OPEN, breaker.getState("origin.example.com"));
+        assertFalse(breaker.tryAcquire(HOST));
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire(HOST));
+        assertFalse(breaker.tryAcquire(HOST));
+        breaker.record(HOST, result(false, 502));
+        assertFalse(breaker.tryAcquire(HOST));
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire(HOST));
+        breaker.record(HOST, result(true, 0));
+        assertEquals(WkHtmlToXCircuitBreaker.State.CLOSED, breaker.getState("origin.example.com"));
+        assertTrue(breaker.tryAcquire(HOST));
+    }
+
+    @Test
+    public void itDoesNotCountClientErrorsAgainstTheHost() {
+        WkHtmlToXCircuitBreaker breaker = WkHtmlToXCircuitBreaker.create().failureThreshold(1);
+        breaker.record(HOST, result(false, 404));
+        assertTrue(breaker.tryAcquire(HOST));
+    }
+
+    @Test
+    public void itKeepsProbedHostsBlockedWhenAnotherHostRejectsTheConversion() throws InterruptedException {
+        WkHtmlToXCircuitBreaker breaker = WkHtmlToXCircuitBreaker.create().failureThreshold(1).openMillis(50);
+        breaker.record(HOST, result(false, 0));
+        Thread.sleep(60);
+        breaker.record(Collections.singletonList("cdn.example.com"), result(false, 0));
+
+        assertFalse(breaker.tryAcquire(Arrays.asList("origin.example.com", "cdn.example.com")));
+        assertEquals(WkHtmlToXCircuitBreaker.State.OPEN, breaker.getState("origin.example.com"));
+        assertTrue(breaker.tryAcquire(HOST));
+        assertEquals(WkHtmlToXCircuitBreaker.State.HALF_OPEN, breaker.getState("origin.example.com"));
+    }
+
+    @Test
+    public void itLetsAnotherConversionProbeOnceTheProbeIsReleased() throws InterruptedException {
+        WkHtmlToXCircuitBreaker breaker = WkHtmlToXCircuitBreaker.create().failureThreshold(1).openMillis(50);
+        breaker.record(HOST, result(false, 0));
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire(HOST));
+        assertFalse(breaker.tryAcquire(HOST));
+
+        breaker.release(HOST);
+        assertTrue(breaker.tryAcquire(HOST));
+    }
+
+    @Test
+    public void itOnlyCountsFailuresAgainstTheHostsNamedInTheLog() {
+        WkHtmlToXCircuitBreaker breaker = WkHtmlToXCircuitBreaker.create().failureThreshold(1);
+        List<String> hosts = Arrays.asList("origin.example.com", "cdn.example.com");
+        breaker.record(hosts, new WkHtmlToXResult(false, null, Collections.singletonList(
+                "Error: Failed loading page https://cdn.example.com/cover.html (sometimes it will work just to ignore this error with --load-error-handling ignore)")));
+
+        assertEquals(WkHtmlToXCircuitBreaker.State.OPEN, breaker.getState("cdn.example.com"));
+        assertEquals(WkHtmlToXCircuitBreaker.State.CLOSED, breaker.getState("origin.example.com"));
+        assertTrue(breaker.tryAcquire(HOST));
+    }
+
+    private static WkHtmlToXResult result(boolean success, int httpErrorCode) {
+        return new WkHtmlToXResult(success, null, Collections.emptyList(), httpErrorCode);
+    }
+}
@@ -0,0 +1,86 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXConcurrencyLimiter;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.remote.WkHtmlToXNodeServer;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXConcurrencyLimiterTest {
+
+    @Test
+    public void itGrowsTheLimitWhileSaturatedConversionsAreFast() throws InterruptedException {
+        WkHtmlToXConcurrencyLimiter limiter = new WkHtmlToXConcurrencyLimiter().bounds(1, 8);
+        saturate(limiter);
+
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void itShrinksTheLimitOnFailuresAndSlowConversions() throws InterruptedException {
+        WkHtmlToXConcurrencyLimiter limiter = new WkHtmlToXConcurrencyLimiter().bounds(1, 8);
+        saturate(limiter);
+        int limit = limiter.getLimit();
+
+        limiter.acquire();
+        limiter.release(100, TimeUnit.MILLISECONDS, false);
+        assertTrue(limiter.getLimit() < limit);
+        assertTrue(limiter.getFailureRate() > 0);
+
+        saturate(limiter);
+        limiter.acquire();
+        limiter.release(10, TimeUnit.SECONDS, true);
+        assertTrue(limiter.getLimit() < 8);
+    }
+
+    @Test
+    public void itCountsFailedResultsOfTheExecutorAsFailures() throws InterruptedException {
+        WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create()
+                .renderer((job, listener) -> new WkHtmlToXResult(false, null,
+                        Collections.singletonList("Error: Failed loading page https://origin.example.com/")))
+                .bind("127.0.0.1", 0).start();
+        WkHtmlToXRemoteNodes nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000)
+                .node("127.0.0.1", server.getPort());
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().remote(nodes);
+        WkHtmlToXConcurrencyLimiter limiter = executor.getConcurrencyLimiter();
+        try {
+            double failureRate = limiter.getFailureRate();
+            WkHtmlToXResult result = executor.render(WkHtmlToXJob.image(null,
+                    Collections.singletonMap("fmt", "png"), "<p>Hello</p>"), WkHtmlToXListener.NONE);
+            assertFalse(result.isSuccess());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (limiter.getFailureRate() <= failureRate && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(limiter.getFailureRate() > failureRate);
+        } finally {
+            executor.remote(null);
+            nodes.close();
+            server.close();
+        }
+    }
+
+    private static void saturate(WkHtmlToXConcurrencyLimiter limiter) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            int limit = limiter.getLimit();
+            for (int j = 0; j < limit; j++) {
+                limiter.acquire();
+            }
+            for (int j = 0; j < limit; j++) {
+                limiter.release(100, TimeUnit.MILLISECONDS, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.preprocess.WkHtmlToXHtmlPipeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class WkHtmlToXHtmlPipelineTest {
+    private static final Map<String, String> NO_SETTINGS = Collections.emptyMap();
+
+    @Test
+    public void itLeavesDocumentsUnchangedWithoutStages() {
+        String html = "<!DOCTYPE html><html><head><title>a < b</title>"
+                + "<script>if (a < b && c > d) { x = '</div>'; }</script></head>"
+                + "<body class='x' data-a=\"1>2\"><!-- note --><p>1 < 2</p><br/></body></html>";
+        assertEquals(html, WkHtmlToXHtmlPipeline.create().process(html, NO_SETTINGS));
+    }
+
+    @Test
+    public void itStripsScriptsWhenJavascriptIsDisabled() {
+        String html = "<p>a</p><SCRIPT src=\"app.js\"></SCRIPT><script>document.write('<b>')</script><p>b</p>";
+        WkHtmlToXHtmlPipeline pipeline = WkHtmlToXHtmlPipeline.create();
+        assertEquals(html, pipeline.process(html, NO_SETTINGS));
+        assertEquals("<p>a</p><p>b</p>",
+                pipeline.process(html, Collections.singletonMap("web.enableJavascript", "false")));
+    }
+
+    @Test
+    public void itStripsCommentsAndCollapsesWhitespaceOutsidePre() {
+        String html = "<div>\n    <!-- header -->\n    <h1>Title</h1>\n</div><pre>  keep\n  this</pre>";
+        String processed = WkHtmlToXHtmlPipeline.create().stripComments().collapseWhitespace()
+                .process(html, NO_SETTINGS);
+        assertEquals("<div> <h1>Title</h1> </div><pre>  keep\n  this</pre>", processed);
+    }
+
+    @Test
+    public void itInlinesSmallResources() {
+        byte[] logo = {1, 2, 3};
+        String html = "<img src=\"wkasset://logo.png\" alt=\"Logo\"><img src=\"big.png\">"
+                + "<link rel=\"stylesheet\" href=\"wkasset://a.css\" media=\"print\">";
+        String processed = WkHtmlToXHtmlPipeline.create()
+                .inline(url -> url.equals("wkasset://logo.png") ? logo
+                        : url.equals("wkasset://a.css") ? "p{color:red}".getBytes(StandardCharsets.UTF_8)
+                        : new byte[100], 50)
+                .process(html, NO_SETTINGS);
+        assertEquals("<img src=\"data:image/png;base64,AQID\" alt=\"Logo\"><img src=\"big.png\">"
+                + "<style media=\"print\">p{color:red}</style>", processed);
+    }
+
+    @Test
+    public void itDropsLargeRemoteResources() {
+        String html = "<img src=\"https://cdn.example.com/hero.jpg\" width=\"10\">"
+                + "<img src=\"https://cdn.example.com/icon.png\">"
+                + "<link rel=\"stylesheet\" href=\"https://cdn.example.com/huge.css\">";
+        String processed = WkHtmlToXHtmlPipeline.create()
+                .dropResourcesLargerThan(1000, url -> url.endsWith("icon.png") ? 200 : 5_000_000)
+                .process(html, NO_SETTINGS);
+        assertEquals("<img width=\"10\"><img src=\"https://cdn.example.com/icon.png\">", processed);
+    }
+}
@@ -0,0 +1,77 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXImageEncoder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXImageEncoderTest {
+
+    @Test
+    public void itTranscodesBitmapsToPngAndJpeg() throws IOException {
+        byte[] bitmap = bitmap(40, 30);
+
+        BufferedImage png = ImageIO.read(new ByteArrayInputStream(
+                WkHtmlToXImageEncoder.getInstance().transcode(bitmap, "png", -1)));
+        assertEquals(40, png.getWidth());
+        assertEquals(30, png.getHeight());
+        assertEquals(0xff0000, png.getRGB(5, 5) & 0xffffff);
+
+        byte[] jpeg = WkHtmlToXImageEncoder.getInstance().transcode(bitmap, "jpg", 50);
+        assertEquals((byte) 0xff, jpeg[0]);
+        assertEquals((byte) 0xd8, jpeg[1]);
+    }
+
+    @Test
+    public void itScalesVariantsKeepingTheAspectRatio() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bitmap(400, 300)));
+        WkHtmlToXImageEncoder encoder = WkHtmlToXImageEncoder.getInstance();
+
+        BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(
+                WkHtmlToXImageEncoder.await(encoder.encode(image, 40, 0, "png", -1))));
+        assertEquals(40, thumbnail.getWidth());
+        assertEquals(30, thumbnail.getHeight());
+        assertEquals(0xff0000, thumbnail.getRGB(20, 15) & 0xffffff);
+
+        BufferedImage stretched = ImageIO.read(new ByteArrayInputStream(
+                WkHtmlToXImageEncoder.await(encoder.encode(image, 100, 500, "png", -1))));
+        assertEquals(100, stretched.getWidth());
+        assertEquals(500, stretched.getHeight());
+    }
+
+    @Test
+    public void itClipsRegionsToTheImage() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bitmap(100, 50)));
+
+        BufferedImage crop = ImageIO.read(new ByteArrayInputStream(WkHtmlToXImageEncoder.await(
+                WkHtmlToXImageEncoder.getInstance().encodeRegion(image, 80, 10, 40, 20, "png", -1))));
+        assertEquals(20, crop.getWidth());
+        assertEquals(20, crop.getHeight());
+    }
+
+    @Test(expected = WkHtmlToXException.class)
+    public void itRejectsFormatsWithoutWriter() throws IOException {
+        assertTrue(!WkHtmlToXImageEncoder.canEncode("no-such-format"));
+        WkHtmlToXImageEncoder.getInstance().transcode(bitmap(1, 1), "no-such-format", -1);
+    }
+
+    private static byte[] bitmap(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xff0000);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", bytes);
+        return bytes.toByteArray();
+    }
+}
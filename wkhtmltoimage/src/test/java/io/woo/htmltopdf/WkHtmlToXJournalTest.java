@@ -0,0 +1,187 @@
+package io.woo.htmltopdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.journal.WkHtmlToXJournal;
+import org.wkhtmltopdf.remote.WkHtmlToXNodeServer;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void itRecoversUnfinishedConversionsAfterRestart() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        WkHtmlToXJournal journal = WkHtmlToXJournal.open(file);
+        long first = journal.submitted(job("a.pdf", "<p>a</p>"));
+        long second = journal.submitted(job("b.pdf", "<p>b</p>"));
+        journal.finished(first);
+        journal.close();
+
+        WkHtmlToXJournal reopened = WkHtmlToXJournal.open(file);
+        Map<Long, WkHtmlToXJob> unfinished = reopened.getUnfinished();
+        long third = reopened.submitted(job("c.pdf", "<p>c</p>"));
+        reopened.close();
+
+        assertEquals(Collections.singleton(second), unfinished.keySet());
+        WkHtmlToXJob job = unfinished.get(second);
+        assertEquals(job("b.pdf", "<p>b</p>").getFingerprint(), job.getFingerprint());
+        assertEquals(folder.getRoot().toPath().resolve("b.pdf").toString(), job.getSettings().get("out"));
+        assertTrue(third > second);
+    }
+
+    @Test
+    public void itTruncatesARecordTornByACrash() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        WkHtmlToXJournal journal = WkHtmlToXJournal.open(file);
+        long id = journal.submitted(job("a.pdf", "<p>a</p>"));
+        long size = journal.getSize();
+        journal.submitted(job("b.pdf", "<p>b</p>"));
+        journal.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 3);
+        }
+
+        WkHtmlToXJournal reopened = WkHtmlToXJournal.open(file);
+        assertEquals(Collections.singleton(id), reopened.getUnfinished().keySet());
+        assertEquals(size, reopened.getSize());
+        long next = reopened.submitted(job("c.pdf", "<p>c</p>"));
+        reopened.close();
+
+        assertEquals(Arrays.asList(id, next), new ArrayList<>(WkHtmlToXJournal.open(file).getUnfinished().keySet()));
+    }
+
+    @Test
+    public void itCompactsFinishedConversions() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        WkHtmlToXJournal journal = WkHtmlToXJournal.open(file);
+        long kept = journal.submitted(job("kept.pdf", "<p>kept</p>"));
+        for (int i = 0; i < 50; i++) {
+            journal.finished(journal.submitted(job(i + ".pdf", "<p>" + i + "</p>")));
+        }
+        journal.submitted(job("last.pdf", "<p>last</p>"));
+        long size = journal.getSize();
+
+        journal.compact();
+
+        assertTrue(journal.getSize() < size / 10);
+        journal.close();
+        assertEquals(2, WkHtmlToXJournal.open(file).getUnfinished().size());
+        assertTrue(WkHtmlToXJournal.open(file).getUnfinished().containsKey(kept));
+    }
+
+    @Test
+    public void itCommitsConcurrentSubmissionsTogether() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        WkHtmlToXJournal journal = WkHtmlToXJournal.open(file).groupCommitMillis(5).compactBytes(1024);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<Long>> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            WkHtmlToXJob job = job(i + ".pdf", "<p>" + i + "</p>");
+            ids.add(threads.submit(() -> journal.submitted(job)));
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            long id = ids.get(i).get(5, TimeUnit.SECONDS);
+            if (i % 2 == 0) {
+                journal.finished(id);
+            }
+        }
+        threads.shutdown();
+        journal.close();
+
+        assertEquals(100, WkHtmlToXJournal.open(file).getUnfinished().size());
+    }
+
+    @Test
+    public void itResumesConversionsWhoseOutputIsMissing() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        WkHtmlToXJournal journal = WkHtmlToXJournal.open(file);
+        journal.submitted(job("done.pdf", "<p>done</p>"));
+        journal.submitted(job("missing.pdf", "<p>old</p>"));
+        journal.submitted(job("missing.pdf", "<p>new</p>"));
+        Files.write(folder.getRoot().toPath().resolve("done.pdf"), new byte[]{1});
+        journal.close();
+
+        WkHtmlToXJournal reopened = WkHtmlToXJournal.open(file);
+        List<WkHtmlToXJob> resumed = new ArrayList<>();
+        List<CompletableFuture<WkHtmlToXResult>> results = reopened.resume((job, listener) -> {
+            resumed.add(job);
+            return CompletableFuture.completedFuture(new WkHtmlToXResult(true, null, Collections.emptyList()));
+        });
+
+        assertEquals(1, results.size());
+        assertEquals("<p>new</p>", resumed.get(0).getInputs().get(0).getHtmlData());
+        assertTrue(reopened.getUnfinished().isEmpty());
+        reopened.close();
+        assertTrue(WkHtmlToXJournal.open(file).getUnfinished().isEmpty());
+    }
+
+    @Test
+    public void itResumesConversionsWhoseOutputWasOnlyPartlyWritten() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        Path out = folder.getRoot().toPath().resolve("partial.pdf");
+        WkHtmlToXJournal journal = WkHtmlToXJournal.open(file);
+        journal.submitted(job("partial.pdf", "<p>partial</p>"));
+        // A crash while writing leaves the output under its temporary name only.
+        Files.write(folder.getRoot().toPath().resolve("partial.pdf.part"), new byte[]{'%', 'P'});
+        journal.close();
+
+        WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create()
+                .renderer((job, listener) -> new WkHtmlToXResult(true,
+                        "%PDF-1.4".getBytes(StandardCharsets.US_ASCII), Collections.emptyList()))
+                .bind("127.0.0.1", 0).start();
+        WkHtmlToXRemoteNodes nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000)
+                .node("127.0.0.1", server.getPort());
+        WkHtmlToXJournal reopened = WkHtmlToXJournal.open(file);
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().remote(nodes).journal(reopened);
+        try {
+            List<CompletableFuture<WkHtmlToXResult>> results = reopened.resume();
+
+            assertEquals(1, results.size());
+            assertTrue(results.get(0).get(5, TimeUnit.SECONDS).isSuccess());
+            assertEquals("%PDF-1.4", new String(Files.readAllBytes(out), StandardCharsets.US_ASCII));
+            assertFalse(Files.exists(folder.getRoot().toPath().resolve("partial.pdf.part")));
+            assertTrue(reopened.getUnfinished().isEmpty());
+        } finally {
+            executor.journal(null).remote(null);
+            reopened.close();
+            nodes.close();
+            server.close();
+        }
+    }
+
+    private WkHtmlToXJob job(String out, String html) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("out", folder.getRoot().toPath().resolve(out).toString());
+        return WkHtmlToXJob.pdf("batch", settings,
+                Collections.singletonList(new WkHtmlToXJob.Input(Collections.emptyMap(), html)));
+    }
+}
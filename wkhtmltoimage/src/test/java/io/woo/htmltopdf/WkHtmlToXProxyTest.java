@@ -0,0 +1,161 @@
+package io.woo.htmltopdf;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.asset.WkHtmlToXAssets;
+import org.wkhtmltopdf.proxy.WkHtmlToXProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class WkHtmlToXProxyTest {
+    private final Map<String, AtomicInteger> requests = new HashMap<>();
+    private HttpServer origin;
+    private WkHtmlToXProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serve("/fresh", "max-age=60", null);
+        serve("/nostore", "no-store", null);
+        serve("/etag", "no-cache", "\"v1\"");
+        origin.start();
+        proxy = WkHtmlToXProxy.create().deny("tracker.invalid").start();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.close();
+        origin.stop(0);
+    }
+
+    @Test
+    public void itAnswersFreshResponsesFromTheCache() throws IOException {
+        assertEquals("/fresh", get("/fresh", 200));
+        assertEquals("/fresh", get("/fresh", 200));
+        assertEquals(1, requests.get("/fresh").get());
+    }
+
+    @Test
+    public void itDoesNotStoreResponsesWithNoStore() throws IOException {
+        get("/nostore", 200);
+        get("/nostore", 200);
+        assertEquals(2, requests.get("/nostore").get());
+    }
+
+    @Test
+    public void itRevalidatesStaleResponsesWithTheirETag() throws IOException {
+        assertEquals("/etag", get("/etag", 200));
+        assertEquals("/etag", get("/etag", 200));
+        // The second request is answered by the origin with 304 and served from the cache.
+        assertEquals(2, requests.get("/etag").get());
+    }
+
+    @Test
+    public void itDeniesRequestsToBlockedHosts() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://ads.tracker.invalid/pixel.gif")
+                .openConnection(proxy());
+        assertEquals(403, connection.getResponseCode());
+    }
+
+    @Test
+    public void itLetsRequestsToTheAssetStoreThroughAnAllowList() throws IOException {
+        WkHtmlToXProxy allowing = WkHtmlToXProxy.create().allow("example.com");
+        WkHtmlToXAssets assets = WkHtmlToXAssets.create().put("css/report.css", "p {}");
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance();
+        try {
+            executor.assets(assets).proxy(allowing);
+            HttpURLConnection asset = (HttpURLConnection) new URL(assets.resolve("wkasset://css/report.css"))
+                    .openConnection(proxy(allowing));
+            assertEquals(200, asset.getResponseCode());
+
+            URL other = new URL("http://127.0.0.1:" + origin.getAddress().getPort() + "/fresh");
+            assertEquals(403, ((HttpURLConnection) other.openConnection(proxy(allowing))).getResponseCode());
+        } finally {
+            executor.proxy(null).assets(null);
+            allowing.close();
+            assets.close();
+        }
+    }
+
+    @Test
+    public void itConfiguresJobsWithoutAProxyOfTheirOwn() {
+        WkHtmlToXJob image = proxy.apply(WkHtmlToXJob.image(null, Collections.emptyMap(), "<p></p>"));
+        assertEquals(proxy.getAddress(), image.getSettings().get("load.proxy"));
+
+        WkHtmlToXJob pdf = proxy.apply(WkHtmlToXJob.pdf(null, Collections.emptyMap(), Arrays.asList(
+                new WkHtmlToXJob.Input(Collections.emptyMap(), "<p></p>"),
+                new WkHtmlToXJob.Input(Collections.singletonMap("load.proxy", "http://other:3128"), "<p></p>"))));
+        assertEquals(proxy.getAddress(), pdf.getInputs().get(0).getSettings().get("load.proxy"));
+        assertEquals("http://other:3128", pdf.getInputs().get(1).getSettings().get("load.proxy"));
+    }
+
+    private void serve(String path, String cacheControl, String etag) {
+        requests.put(path, new AtomicInteger());
+        origin.createContext(path, exchange -> {
+            requests.get(path).incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            byte[] body = path.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    private String get(String path, int expectedStatus) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + origin.getAddress().getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy());
+        assertEquals(expectedStatus, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private Proxy proxy() {
+        return proxy(proxy);
+    }
+
+    private static Proxy proxy(WkHtmlToXProxy proxy) {
+        URL address;
+        try {
+            address = new URL(proxy.getAddress());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(address.getHost(), address.getPort()));
+    }
+}
@@ -0,0 +1,262 @@
+package io.woo.htmltopdf;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.remote.WkHtmlToXNodeServer;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+import org.wkhtmltopdf.worker.WorkerProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WkHtmlToXRemoteNodesTest {
+    private final List<WkHtmlToXNodeServer> servers = new ArrayList<>();
+    private final List<ServerSocket> fakeNodes = new ArrayList<>();
+    private WkHtmlToXRemoteNodes nodes;
+
+    @After
+    public void tearDown() throws IOException {
+        if (nodes != null) {
+            nodes.close();
+        }
+        servers.forEach(WkHtmlToXNodeServer::close);
+        for (ServerSocket fakeNode : fakeNodes) {
+            fakeNode.close();
+        }
+    }
+
+    @Test
+    public void itRoutesRepeatedConversionsToTheSameNode() throws Exception {
+        startNodes(3);
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < 30; i++) {
+            String first = render(job(i));
+            assertEquals(first, render(job(i)));
+            assertEquals(nodes.route(job(i)).get(0), first);
+            used.add(first);
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void itFailsOverWhenANodeDrops() throws Exception {
+        startNodes(3);
+        WkHtmlToXJob job = job(7);
+        String home = render(job);
+        servers.stream().filter(server -> home.endsWith(":" + server.getPort())).forEach(WkHtmlToXNodeServer::close);
+
+        String fallback = render(job);
+        assertNotEquals(home, fallback);
+        assertEquals(nodes.route(job).get(1), fallback);
+    }
+
+    @Test
+    public void itForwardsNodeWarnings() throws Exception {
+        startNodes(1);
+        List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+        WkHtmlToXResult result = nodes.render(job(1), new WkHtmlToXListener() {
+            @Override
+            public void warning(String message) {
+                warnings.add(message);
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertTrue(result.isSuccess());
+        assertEquals(Collections.singletonList("rendered remotely"), warnings);
+    }
+
+    @Test
+    public void itFailsOverWhenANodeHangs() throws Exception {
+        startNodes(1);
+        int hung = fakeNode(socket -> {
+            // Accepts the conversion and never answers.
+        });
+        nodes.renderTimeoutMillis(200).node("127.0.0.1", hung);
+        WkHtmlToXJob job = jobRoutedTo("127.0.0.1:" + hung);
+
+        assertEquals("127.0.0.1:" + servers.get(0).getPort(), render(job));
+    }
+
+    @Test
+    public void itRejectsDocumentsPassedAsLocalFilesByNodes() throws Exception {
+        Path directory = Files.createTempDirectory("wkhtmltox-remote");
+        int node = fakeNode(socket -> {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in.readByte();
+                long id = in.readLong();
+                WorkerProtocol.readJob(in);
+                WkHtmlToXResult result = new WkHtmlToXResult(true, new byte[]{1, 2, 3}, Collections.emptyList());
+                WorkerProtocol.writeResult(out, id, result, directory, 0);
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000).node("127.0.0.1", node);
+
+        try {
+            nodes.render(job(1), WkHtmlToXListener.NONE).get(10, TimeUnit.SECONDS);
+            fail("Mapped output of a remote node must be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("No render node"));
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals("the named file must not be touched", 1, files.count());
+        }
+    }
+
+    @Test
+    public void itOnlyLoadsInlineHtmlAndHttpUrlsOnNodes() throws Exception {
+        List<WkHtmlToXJob> rendered = Collections.synchronizedList(new ArrayList<>());
+        WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create().renderer((job, listener) -> {
+            rendered.add(job);
+            return new WkHtmlToXResult(true, new byte[]{1}, Collections.emptyList());
+        }).bind("127.0.0.1", 0).start();
+        servers.add(server);
+        nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000).node("127.0.0.1", server.getPort());
+
+        Map<String, String> writing = new HashMap<>();
+        writing.put("fmt", "png");
+        writing.put("out", "/tmp/written-by-peer.png");
+        assertFalse(nodes.render(WkHtmlToXJob.image(null, writing, "<p>Hello</p>"), WkHtmlToXListener.NONE)
+                .get(10, TimeUnit.SECONDS).isSuccess());
+        WkHtmlToXJob reading = WkHtmlToXJob.pdf(null, Collections.emptyMap(), Collections.singletonList(
+                new WkHtmlToXJob.Input(Collections.singletonMap("page", "file:///etc/passwd"), null)));
+        assertFalse(nodes.render(reading, WkHtmlToXListener.NONE).get(10, TimeUnit.SECONDS).isSuccess());
+        assertTrue(rendered.isEmpty());
+
+        WkHtmlToXJob page = WkHtmlToXJob.pdf(null, Collections.emptyMap(), Collections.singletonList(
+                new WkHtmlToXJob.Input(Collections.singletonMap("page", "https://example.com/"), null)));
+        assertTrue(nodes.render(page, WkHtmlToXListener.NONE).get(10, TimeUnit.SECONDS).isSuccess());
+        assertTrue(nodes.render(job(1), WkHtmlToXListener.NONE).get(10, TimeUnit.SECONDS).isSuccess());
+        assertEquals("true", rendered.get(0).getInputs().get(0).getSettings().get("load.blockLocalFileAccess"));
+        assertEquals("true", rendered.get(1).getSettings().get("load.blockLocalFileAccess"));
+    }
+
+    @Test
+    public void itDropsClientsAnnouncingOversizedConversions() throws Exception {
+        startNodes(1);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), servers.get(0).getPort())) {
+            socket.setSoTimeout(5_000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(WorkerProtocol.JOB);
+            out.writeLong(1);
+            out.writeByte(WkHtmlToXJob.Type.IMAGE.ordinal());
+            // A tenant of 100 MB, which is never sent.
+            out.writeInt(100_000_000);
+            out.flush();
+
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        assertEquals("127.0.0.1:" + servers.get(0).getPort(), render(job(1)));
+    }
+
+    @Test
+    public void itRejectsOversizedResultsOfNodes() throws Exception {
+        int node = fakeNode(socket -> {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in.readByte();
+                long id = in.readLong();
+                WorkerProtocol.readJob(in);
+                WorkerProtocol.writeResult(out, id, new WkHtmlToXResult(true, new byte[4096], Collections.emptyList()));
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000).maxMessageBytes(1024).node("127.0.0.1", node);
+
+        try {
+            nodes.render(job(1), WkHtmlToXListener.NONE).get(10, TimeUnit.SECONDS);
+            fail("Results larger than the maximum message size must be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("No render node"));
+        }
+    }
+
+    private void startNodes(int count) {
+        nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000);
+        for (int i = 0; i < count; i++) {
+            int[] port = new int[1];
+            WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create().renderer((job, listener) -> {
+                listener.warning("rendered remotely");
+                byte[] node = ("127.0.0.1:" + port[0]).getBytes(StandardCharsets.UTF_8);
+                return new WkHtmlToXResult(true, node, Collections.emptyList());
+            }).bind("127.0.0.1", 0).start();
+            port[0] = server.getPort();
+            servers.add(server);
+            nodes.node("127.0.0.1", server.getPort());
+        }
+        nodes.start();
+    }
+
+    /**
+     * Starts a node accepting connections and handing them to the handler, without answering
+     * health checks.
+     */
+    private int fakeNode(Consumer<Socket> handler) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        fakeNodes.add(serverSocket);
+        Thread thread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    handler.accept(serverSocket.accept());
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    private WkHtmlToXJob jobRoutedTo(String node) {
+        for (int i = 0; ; i++) {
+            if (nodes.route(job(i)).get(0).equals(node)) {
+                return job(i);
+            }
+        }
+    }
+
+    private String render(WkHtmlToXJob job) throws Exception {
+        WkHtmlToXResult result = nodes.render(job, WkHtmlToXListener.NONE).get(10, TimeUnit.SECONDS);
+        return new String(result.getOutput(), StandardCharsets.UTF_8);
+    }
+
+    private static WkHtmlToXJob job(int page) {
+        return WkHtmlToXJob.image(null, Collections.singletonMap("fmt", "png"), "<p>Page " + page + "</p>");
+    }
+}
@@ -0,0 +1,167 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXCostModel;
+import org.wkhtmltopdf.WkHtmlToXException;
+import org.wkhtmltopdf.WkHtmlToXHostPolicy;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXScheduler;
+import org.wkhtmltopdf.WkHtmlToXTask;
+import org.wkhtmltopdf.WkHtmlToXTenantPolicy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXSchedulerTest {
+
+    @Test
+    public void itSharesCapacityProportionallyToTenantWeights() throws InterruptedException {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler()
+                .tenant("big", WkHtmlToXTenantPolicy.create().weight(3))
+                .tenant("small", WkHtmlToXTenantPolicy.create().weight(1));
+        for (int i = 0; i < 20; i++) {
+            scheduler.submit(task("big"));
+            scheduler.submit(task("small"));
+        }
+
+        Map<String, Integer> taken = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            WkHtmlToXTask<?> task = scheduler.take();
+            taken.merge(task.getTenant(), 1, Integer::sum);
+            scheduler.done(task);
+        }
+
+        assertEquals(6, (int) taken.get("big"));
+        assertEquals(2, (int) taken.get("small"));
+    }
+
+    @Test
+    public void itSkipsTenantsAtTheirInFlightLimit() throws InterruptedException {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler()
+                .tenant("noisy", WkHtmlToXTenantPolicy.create().weight(10).maxInFlight(1));
+        scheduler.submit(task("noisy"));
+        scheduler.submit(task("noisy"));
+        scheduler.submit(task("quiet"));
+
+        WkHtmlToXTask<?> first = scheduler.take();
+        WkHtmlToXTask<?> second = scheduler.take();
+
+        assertEquals("noisy", first.getTenant());
+        assertEquals("quiet", second.getTenant());
+        assertEquals(1, scheduler.getInFlight("noisy"));
+        assertEquals(1, scheduler.getQueued("noisy"));
+    }
+
+    @Test(expected = WkHtmlToXException.class)
+    public void itRejectsSubmissionsBeyondTheQueueLimit() {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler()
+                .tenant("limited", WkHtmlToXTenantPolicy.create().maxQueued(1));
+        scheduler.submit(task("limited"));
+        scheduler.submit(task("limited"));
+    }
+
+    @Test
+    public void cancelRemovesQueuedTask() {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler();
+        WkHtmlToXTask<?> task = task("tenant");
+        scheduler.submit(task);
+
+        assertTrue(scheduler.cancel(task));
+        assertFalse(scheduler.cancel(task));
+        assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test
+    public void itRendersCheaperConversionsFirst() throws InterruptedException {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler();
+        WkHtmlToXTask<?> slow = task(job(5000));
+        WkHtmlToXTask<?> fast = task(job(0));
+        scheduler.submit(slow);
+        scheduler.submit(fast);
+
+        assertSame(fast, scheduler.take());
+        assertSame(slow, scheduler.take());
+    }
+
+    @Test
+    public void itRendersInSubmissionOrderWithoutStretch() throws InterruptedException {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler().shortestJobFirst(0);
+        WkHtmlToXTask<?> slow = task(job(5000));
+        WkHtmlToXTask<?> fast = task(job(0));
+        scheduler.submit(slow);
+        scheduler.submit(fast);
+
+        assertSame(slow, scheduler.take());
+    }
+
+    @Test
+    public void itLearnsCostsPerSettingsFingerprint() {
+        WkHtmlToXCostModel costModel = new WkHtmlToXCostModel();
+        WkHtmlToXJob job = job(0);
+        long prior = costModel.estimate(job);
+        for (int i = 0; i < 50; i++) {
+            costModel.record(job, prior * 10);
+        }
+
+        assertTrue(costModel.estimate(job(0)) > prior * 9);
+        assertEquals(prior, costModel.estimate(WkHtmlToXJob.pdf(null, Collections.singletonMap("dpi", "300"),
+                Collections.singletonList(new WkHtmlToXJob.Input(Collections.emptyMap(), "<p>test</p>")))));
+    }
+
+    @Test
+    public void itSkipsConversionsForHostsAtTheirInFlightLimit() throws InterruptedException {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler()
+                .host("slow.example.com", WkHtmlToXHostPolicy.create().maxInFlight(1));
+        WkHtmlToXTask<?> first = task(url("https://slow.example.com/a"));
+        WkHtmlToXTask<?> second = task(url("https://slow.example.com/b"));
+        WkHtmlToXTask<?> other = task(url("https://fast.example.com/"));
+        scheduler.submit(first);
+        scheduler.submit(second);
+        scheduler.submit(other);
+
+        assertSame(first, scheduler.take());
+        assertSame(other, scheduler.take());
+        scheduler.done(first);
+        assertSame(second, scheduler.take());
+    }
+
+    @Test
+    public void itRateLimitsConversionsPerHost() throws InterruptedException {
+        WkHtmlToXScheduler scheduler = new WkHtmlToXScheduler()
+                .host("api.example.com", WkHtmlToXHostPolicy.create().rate(10, 2));
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(task(url("https://api.example.com/" + i)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            scheduler.done(scheduler.take());
+        }
+
+        // The burst starts two conversions right away, the third waits for a token.
+        assertTrue(System.nanoTime() - start >= 80_000_000L);
+    }
+
+    private static WkHtmlToXJob url(String url) {
+        return WkHtmlToXJob.image(null, Collections.singletonMap("in", url), null);
+    }
+
+    private static WkHtmlToXJob job(int jsDelay) {
+        return WkHtmlToXJob.pdf(null, Collections.emptyMap(), Collections.singletonList(new WkHtmlToXJob.Input(
+                Collections.singletonMap("load.jsdelay", String.valueOf(jsDelay)), "<p>test</p>")));
+    }
+
+    private static WkHtmlToXTask<Object> task(WkHtmlToXJob job) {
+        return new WkHtmlToXTask<>(job, wkHtmlToX -> null);
+    }
+
+    private static WkHtmlToXTask<Object> task(String tenant) {
+        return new WkHtmlToXTask<>(tenant, wkHtmlToX -> null);
+    }
+}
@@ -0,0 +1,54 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXMetrics;
+import org.wkhtmltopdf.WkHtmlToXReadiness;
+import org.wkhtmltopdf.WkHtmlToXScripts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXScriptsTest {
+
+    @Test
+    public void itQuotesStringsSafelyForInlineScripts() {
+        assertEquals("'div[data-id=\\'a\\']'", WkHtmlToXScripts.string("div[data-id='a']"));
+        assertEquals("'\\u003c/script\\u003e\\u000a'", WkHtmlToXScripts.string("</script>\n"));
+    }
+
+    @Test
+    public void itWaitsForTheWindowStatusAndRecordsWaits() {
+        Map<String, String> settings = new HashMap<>();
+        WkHtmlToXReadiness.append(settings, "measure();");
+        WkHtmlToXReadiness.configure(settings, "done", 3000);
+        String script = settings.get("load.runScript.append");
+        assertEquals("1", settings.get("load.jsdelay"));
+        assertTrue(settings.get("load.windowStatus").startsWith("done-"));
+        assertTrue(script.indexOf("__wkhtmltoxWhenReady=") < script.indexOf("measure();"));
+
+        Map<String, Number> before = WkHtmlToXMetrics.getInstance().snapshot();
+        WkHtmlToXReadiness.record(Arrays.asList(
+                "Warning: :1 wkhtmltox-ready:120",
+                "Warning: :1 wkhtmltox-ready-timeout:3000"));
+        Map<String, Number> after = WkHtmlToXMetrics.getInstance().snapshot();
+        assertEquals(1, after.get("readiness.signalled").longValue() - before.get("readiness.signalled").longValue());
+        assertEquals(1, after.get("readiness.timedOut").longValue() - before.get("readiness.timedOut").longValue());
+        assertEquals(3120, after.get("readiness.waitMillis.total").longValue()
+                - before.get("readiness.waitMillis.total").longValue());
+        assertTrue(WkHtmlToXScripts.isMarker(":1 wkhtmltox-ready:120"));
+    }
+
+    @Test
+    public void itFindsTheLastValueLoggedWithAMarker() {
+        assertEquals("2", WkHtmlToXScripts.find(Arrays.asList(
+                "Warning: :1 marker:1",
+                "Warning: Failed to load image",
+                "Warning: :1 marker: 2 "), "marker"));
+        assertNull(WkHtmlToXScripts.find(Arrays.asList("Warning: other:1"), "marker"));
+    }
+}
@@ -0,0 +1,120 @@
+package io.woo.htmltopdf;
+
+import org.junit.Test;
+import org.wkhtmltopdf.WkHtmlToXCostModel;
+import org.wkhtmltopdf.WkHtmlToXHedgingPolicy;
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.worker.WorkerPool;
+import org.wkhtmltopdf.worker.WorkerProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WkHtmlToXWorkerTest {
+
+    @Test
+    public void itTransfersJobsAndResultsToWorkers() throws IOException {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("size.pageSize", "A4");
+        WkHtmlToXJob job = WkHtmlToXJob.pdf("tenant", settings, Arrays.asList(
+                new WkHtmlToXJob.Input(Collections.singletonMap("page", "http://localhost/"), null),
+                new WkHtmlToXJob.Input(Collections.emptyMap(), "<p>Hello</p>")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WorkerProtocol.writeJob(out, job);
+        WorkerProtocol.writeResult(out, 1, new WkHtmlToXResult(true, new byte[]{1, 2, 3},
+                Collections.singletonList("Warning: slow"), 404));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        WkHtmlToXJob copy = WorkerProtocol.readJob(in);
+        assertEquals(job.getSettingsFingerprint(), copy.getSettingsFingerprint());
+        assertEquals("tenant", copy.getTenant());
+        assertEquals(2, copy.getObjectCount());
+        assertEquals("<p>Hello</p>", copy.getInputs().get(1).getHtmlData());
+
+        assertEquals(WorkerProtocol.RESULT, in.readByte());
+        assertEquals(1, in.readLong());
+        WkHtmlToXResult result = WorkerProtocol.readResult(in);
+        assertTrue(result.isSuccess());
+        assertArrayEquals(new byte[]{1, 2, 3}, result.getOutput());
+        assertEquals(Collections.singletonList("Warning: slow"), result.getLog());
+        assertEquals(404, result.getHttpErrorCode());
+    }
+
+    @Test
+    public void itPassesLargeOutputsThroughMappedFiles() throws IOException {
+        Path directory = Files.createTempDirectory("wkhtmltox-test");
+        byte[] document = new byte[100_000];
+        new Random(1).nextBytes(document);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WorkerProtocol.writeResult(new DataOutputStream(bytes), 1,
+                new WkHtmlToXResult(true, document, Collections.emptyList()), directory, 65536);
+        assertTrue(bytes.size() < 1000);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(WorkerProtocol.RESULT, in.readByte());
+        assertEquals(1, in.readLong());
+        WkHtmlToXResult result = WorkerProtocol.readResult(in);
+        assertEquals(document.length, result.getOutputSize());
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream stream = result.toInputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = stream.read(buffer)) > 0; ) {
+            read.write(buffer, 0, n);
+        }
+        assertArrayEquals(document, read.toByteArray());
+        assertArrayEquals(document, result.getOutput());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void itReportsWorkerMemoryBeforeResults() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WorkerProtocol.writeStats(new DataOutputStream(bytes), 7, 512L << 20);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(WorkerProtocol.STATS, in.readByte());
+        assertEquals(7, in.readLong());
+        assertEquals(512L << 20, in.readLong());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void itRejectsNegativeRecyclingLimits() {
+        WorkerPool.create(1).maxConversions(100).maxIdleMillis(60_000).maxRssBytes(-1);
+    }
+
+    @Test
+    public void itHedgesOnlyOnceEnoughDurationsWereObserved() {
+        WkHtmlToXCostModel costModel = new WkHtmlToXCostModel();
+        WkHtmlToXHedgingPolicy policy = WkHtmlToXHedgingPolicy.create().minSamples(10).minDelay(100);
+        WkHtmlToXJob job = WkHtmlToXJob.image(null, Collections.singletonMap("fmt", "png"), "<p>Hello</p>");
+
+        assertEquals(-1, policy.getDelay(costModel, job));
+        for (int i = 1; i <= 100; i++) {
+            costModel.record(job, i * 10);
+        }
+        long delay = policy.getDelay(costModel, job);
+        assertTrue(delay >= 900 && delay <= 1000);
+        assertEquals(-1, policy.getDelay(costModel, null));
+    }
+}
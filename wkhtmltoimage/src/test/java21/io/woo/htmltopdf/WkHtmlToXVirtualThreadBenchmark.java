@@ -0,0 +1,102 @@
+package io.woo.htmltopdf;
+
+import org.wkhtmltopdf.WkHtmlToXJob;
+import org.wkhtmltopdf.WkHtmlToXListener;
+import org.wkhtmltopdf.WkHtmlToXResult;
+import org.wkhtmltopdf.WkHtmlToXTaskExecutor;
+import org.wkhtmltopdf.remote.WkHtmlToXNodeServer;
+import org.wkhtmltopdf.remote.WkHtmlToXRemoteNodes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares callers on platform threads with 10k callers on virtual threads, all converting
+ * through {@link WkHtmlToXTaskExecutor#render(WkHtmlToXJob, WkHtmlToXListener)}, so that their
+ * conversions pass the scheduler, the concurrency limiter and the dispatch loop of the executor.
+ * Rendering is simulated by a {@link WkHtmlToXNodeServer} on the loopback interface, so the
+ * native library is not needed. Latencies grow with the amount of callers, as each waits behind
+ * all others queued in the scheduler; throughput should not drop, and the most conversions
+ * queued at once should match the amount of callers. Run with Java 21 or later, with JNA on the
+ * class path:
+ * <pre>
+ * java -cp target/classes:target/test-classes:jna.jar io.woo.htmltopdf.WkHtmlToXVirtualThreadBenchmark [conversions] [render micros]
+ * </pre>
+ */
+public class WkHtmlToXVirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int conversions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long renderNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 1 ? Long.parseLong(args[1]) : 200);
+
+        WkHtmlToXNodeServer server = WkHtmlToXNodeServer.create()
+                .renderer((job, listener) -> {
+                    long end = System.nanoTime() + renderNanos;
+                    while (System.nanoTime() < end) {
+                        Thread.onSpinWait();
+                    }
+                    return new WkHtmlToXResult(true, new byte[0], Collections.emptyList());
+                })
+                .start();
+        WkHtmlToXRemoteNodes nodes = WkHtmlToXRemoteNodes.create().healthCheckMillis(60_000)
+                .node("127.0.0.1", server.getPort());
+        WkHtmlToXTaskExecutor executor = WkHtmlToXTaskExecutor.getInstance().remote(nodes);
+        try {
+            run(executor, "warm-up", Executors.defaultThreadFactory(), 50, conversions / 10);
+            run(executor, "platform x 200", Executors.defaultThreadFactory(), 200, conversions);
+            run(executor, "virtual x 10000", Thread.ofVirtual().factory(), 10_000, conversions);
+        } finally {
+            executor.remote(null);
+            nodes.close();
+            server.close();
+        }
+    }
+
+    private static void run(WkHtmlToXTaskExecutor executor, String name, ThreadFactory factory, int callers,
+                            int conversions) {
+        WkHtmlToXJob job = WkHtmlToXJob.image(null, Collections.singletonMap("fmt", "png"), "<p>Hello</p>");
+        long[] latencies = new long[conversions];
+        int perCaller = conversions / callers;
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger maxQueued = new AtomicInteger();
+        Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                maxQueued.accumulateAndGet(executor.getScheduler().getQueued(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        long start = System.nanoTime();
+        try (ExecutorService threads = Executors.newThreadPerTaskExecutor(factory)) {
+            for (int c = 0; c < callers; c++) {
+                int offset = c * perCaller;
+                threads.execute(() -> {
+                    for (int i = 0; i < perCaller; i++) {
+                        long submitted = System.nanoTime();
+                        if (!executor.render(job, WkHtmlToXListener.NONE).isSuccess()) {
+                            failed.incrementAndGet();
+                        }
+                        latencies[offset + i] = System.nanoTime() - submitted;
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sampler.interrupt();
+
+        int completed = perCaller * callers;
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        System.out.printf("%-16s %8d conversions %8.0f/s  p50 %8.1f ms  p99 %8.1f ms  max queued %6d  failed %d%n",
+                name, completed, completed / (elapsed / 1e9),
+                sorted[completed / 2] / 1e6, sorted[(int) (completed * 0.99)] / 1e6, maxQueued.get(), failed.get());
+    }
+}